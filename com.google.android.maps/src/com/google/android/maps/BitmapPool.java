@@ -0,0 +1,255 @@
+package com.google.android.maps;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * A pool of tile bitmaps that are no longer drawn, to decode or draw new tiles
+ * into instead of allocating new bitmaps. Panning evicts and loads tiles of the
+ * same size and config all the time, and reusing their bitmaps saves the
+ * garbage collections that make the map stutter. The pool keeps the most
+ * recently returned bitmaps up to a size in bytes, and recycles the others.
+ * 
+ * Tiles are read from the cache without locking, so a tile evicted by a loader
+ * thread may still be drawn on the UI thread. Evicted bitmaps are therefore
+ * {@link #recycleDeferred(Bitmap) deferred}, and only enter the pool when
+ * {@link #releaseDeferred()} is called after a frame has been drawn.
+ */
+public class BitmapPool implements OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final BitmapPool INSTANCE = new BitmapPool(Runtime
+			.getRuntime().maxMemory() / BITMAP_POOL_HEAP_FRACTION);
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	// the most recently returned first
+	private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+
+	private long mMaximumSize;
+	private long mSize;
+
+	// bitmaps waiting for the end of a frame to enter the pool, the eldest
+	// first
+	private final LinkedList<Bitmap> mDeferred = new LinkedList<Bitmap>();
+	private long mDeferredSize;
+	private int mDeferredHolds;
+
+	private long mRequests;
+	private long mHits;
+	private long mEvictions;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pMaximumSize
+	 *            the size in bytes of the bitmaps the pool keeps
+	 */
+	public BitmapPool(final long pMaximumSize) {
+		mMaximumSize = pMaximumSize;
+	}
+
+	/**
+	 * @return the pool shared by the tile sources and caches
+	 */
+	public static BitmapPool getInstance() {
+		return INSTANCE;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the size in bytes of the bitmaps in the pool
+	 */
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	public synchronized long getMaximumSize() {
+		return mMaximumSize;
+	}
+
+	/**
+	 * Set the size in bytes of the bitmaps the pool keeps, recycling the least
+	 * recently returned ones if they don't fit anymore.
+	 */
+	public synchronized void setMaximumSize(final long pMaximumSize) {
+		mMaximumSize = pMaximumSize;
+		trimToSize();
+	}
+
+	/**
+	 * @return the number of bitmaps asked for
+	 */
+	public synchronized long getRequestCount() {
+		return mRequests;
+	}
+
+	/**
+	 * @return the number of bitmaps asked for that were in the pool
+	 */
+	public synchronized long getHitCount() {
+		return mHits;
+	}
+
+	/**
+	 * @return the fraction of the bitmaps asked for that were in the pool
+	 */
+	public synchronized float getHitRate() {
+		return mRequests == 0 ? 0 : (float) mHits / mRequests;
+	}
+
+	/**
+	 * @return the number of bitmaps recycled because the pool was full
+	 */
+	public synchronized long getEvictionCount() {
+		return mEvictions;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Take a bitmap of this size and config out of the pool. Its content is
+	 * undefined.
+	 *
+	 * @return the bitmap, or null if there's none in the pool
+	 */
+	public synchronized Bitmap obtain(final int pWidth, final int pHeight,
+			final Bitmap.Config pConfig) {
+		mRequests++;
+		final Iterator<Bitmap> iterator = mBitmaps.iterator();
+		while (iterator.hasNext()) {
+			final Bitmap bitmap = iterator.next();
+			if (bitmap.getWidth() == pWidth && bitmap.getHeight() == pHeight
+					&& bitmap.getConfig() == pConfig) {
+				iterator.remove();
+				mSize -= getByteCount(bitmap);
+				mHits++;
+				return bitmap;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get a bitmap of this size and config out of the pool, or a new one if
+	 * there's none. It's cleared like a new bitmap.
+	 */
+	public Bitmap createBitmap(final int pWidth, final int pHeight,
+			final Bitmap.Config pConfig) {
+		final Bitmap bitmap = obtain(pWidth, pHeight, pConfig);
+		if (bitmap == null) {
+			return Bitmap.createBitmap(pWidth, pHeight, pConfig);
+		}
+		bitmap.eraseColor(0);
+		return bitmap;
+	}
+
+	/**
+	 * Return a bitmap that is no longer drawn to the pool, or recycle it if it
+	 * can't be reused.
+	 */
+	public synchronized void recycle(final Bitmap pBitmap) {
+		if (pBitmap.isRecycled()) {
+			return;
+		}
+		final int size = getByteCount(pBitmap);
+		if (!pBitmap.isMutable() || size > mMaximumSize) {
+			pBitmap.recycle();
+			return;
+		}
+		mBitmaps.addFirst(pBitmap);
+		mSize += size;
+		trimToSize();
+	}
+
+	/**
+	 * Return a bitmap that may still be drawn on the UI thread. It enters the
+	 * pool with the next call to {@link #releaseDeferred()}. If no frames are
+	 * drawn and more bitmaps are waiting than the pool holds, the eldest are
+	 * recycled instead.
+	 */
+	public synchronized void recycleDeferred(final Bitmap pBitmap) {
+		if (pBitmap.isRecycled()) {
+			return;
+		}
+		mDeferred.addLast(pBitmap);
+		mDeferredSize += getByteCount(pBitmap);
+		while (mDeferredSize > mMaximumSize && !mDeferred.isEmpty()) {
+			final Bitmap bitmap = mDeferred.removeFirst();
+			mDeferredSize -= getByteCount(bitmap);
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * Move the deferred bitmaps into the pool. Call this on the UI thread after
+	 * a frame has been drawn, since no tile evicted before is drawn after.
+	 * Nothing is released while a thread {@link #holdDeferred() holds} them.
+	 */
+	public synchronized void releaseDeferred() {
+		if (mDeferredHolds > 0) {
+			return;
+		}
+		Bitmap bitmap;
+		while ((bitmap = mDeferred.pollFirst()) != null) {
+			mDeferredSize -= getByteCount(bitmap);
+			recycle(bitmap);
+		}
+	}
+
+	/**
+	 * Keep the deferred bitmaps out of the pool until
+	 * {@link #unholdDeferred()}, while a thread other than the UI thread draws
+	 * tiles from the cache.
+	 */
+	public synchronized void holdDeferred() {
+		mDeferredHolds++;
+	}
+
+	public synchronized void unholdDeferred() {
+		mDeferredHolds--;
+	}
+
+	/**
+	 * Recycle all bitmaps in the pool.
+	 */
+	public synchronized void clear() {
+		for (final Bitmap bitmap : mBitmaps) {
+			bitmap.recycle();
+		}
+		mBitmaps.clear();
+		mSize = 0;
+	}
+
+	private void trimToSize() {
+		while (mSize > mMaximumSize) {
+			final Bitmap bitmap = mBitmaps.removeLast();
+			mSize -= getByteCount(bitmap);
+			mEvictions++;
+			bitmap.recycle();
+		}
+		if (DEBUGMODE) {
+			Log.d("MapsAPI", "BitmapPool: " + mBitmaps.size()
+					+ " bitmaps pooled, hit rate " + getHitRate());
+		}
+	}
+
+	private static int getByteCount(final Bitmap pBitmap) {
+		return pBitmap.getRowBytes() * pBitmap.getHeight();
+	}
+}
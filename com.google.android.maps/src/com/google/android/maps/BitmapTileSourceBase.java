@@ -1,7 +1,12 @@
 package com.google.android.maps;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
 import java.util.Random;
 
 import android.graphics.Bitmap;
@@ -41,6 +46,8 @@ public abstract class BitmapTileSourceBase implements ITileSource,
 
 	private final string mResourceId;
 
+	private long mTileMaxAge = -1;
+
 	public BitmapTileSourceBase(final String aName, final string aResourceId,
 			final int aZoomMinLevel, final int aZoomMaxLevel,
 			final int aTileSizePixels, final String aImageFilenameEnding) {
@@ -56,27 +63,63 @@ public abstract class BitmapTileSourceBase implements ITileSource,
 	@Override
 	public Drawable getDrawable(final InputStream aFileInputStream)
 			throws LowMemoryException {
+		// default implementation will read just enough of the stream to tell
+		// whether the bitmap can be shared, and decode larger tiles from the
+		// stream into a pooled bitmap
+		final byte[] prefix = new byte[SharedTileBitmaps.MAXIMUM_SHARED_TILE_SIZE + 1];
+		final int length;
 		try {
-			// default implementation will load the file as a bitmap and create
-			// a BitmapDrawable from it
-			final Bitmap bitmap = BitmapFactory.decodeStream(aFileInputStream);
-			if (bitmap != null) {
-				return new ExpirableBitmapDrawable(bitmap);
+			length = read(aFileInputStream, prefix);
+		} catch (final IOException e) {
+			Log.e("MapsAPI", "BitmapsTileSourceBase: Error reading bitmap: " + e);
+			return null;
+		}
+		if (length < prefix.length) {
+			return getDrawable(Arrays.copyOf(prefix, length));
+		}
+		try {
+			final Bitmap bitmap = decode(prefix, aFileInputStream);
+			return bitmap == null ? null : new ExpirableBitmapDrawable(bitmap);
+		} catch (final OutOfMemoryError e) {
+			Log.e("MapsAPI", "BitmapsTileSourceBase: OutOfMemoryError loading bitmap");
+			System.gc();
+			throw new LowMemoryException(e);
+		}
+	}
+
+	@Override
+	public Drawable getDrawable(final byte[] aData) throws LowMemoryException {
+		try {
+			if (!SharedTileBitmaps.isShareable(aData)) {
+				final Bitmap bitmap = decode(aData);
+				return bitmap == null ? null : new ExpirableBitmapDrawable(bitmap);
 			}
+			// small tiles are mostly blank, and identical ones share a bitmap
+			final Drawable shared = SharedTileBitmaps.getDrawable(aData);
+			if (shared != null) {
+				return shared;
+			}
+			final Bitmap bitmap = decode(aData);
+			return bitmap == null ? null : SharedTileBitmaps.putDrawable(aData,
+					bitmap);
 		} catch (final OutOfMemoryError e) {
 			Log.e("MapsAPI", "BitmapsTileSourceBase: OutOfMemoryError loading bitmap");
 			System.gc();
 			throw new LowMemoryException(e);
 		}
-		return null;
 	}
 
 	@Override
 	public Drawable getDrawable(final String aFilePath) {
 		try {
 			// default implementation will load the file as a bitmap and create
-			// a BitmapDrawable from it
-			final Bitmap bitmap = BitmapFactory.decodeFile(aFilePath);
+			// a BitmapDrawable from it, sharing the bitmap of small tiles
+			final byte[] data = readSmallFile(aFilePath);
+			final Drawable drawable = data == null ? null : getDrawable(data);
+			if (drawable != null) {
+				return drawable;
+			}
+			final Bitmap bitmap = data == null ? decode(aFilePath) : null;
 			if (bitmap != null) {
 				return new ExpirableBitmapDrawable(bitmap);
 			} else {
@@ -87,6 +130,8 @@ public abstract class BitmapTileSourceBase implements ITileSource,
 					Log.e("MapsAPI", "BitmapsTileSourceBase: Error deleting invalid file: " + aFilePath, e);
 				}
 			}
+		} catch (final LowMemoryException e) {
+			Log.e("MapsAPI", "BitmapsTileSourceBase: OutOfMemoryError loading bitmap: " + aFilePath);
 		} catch (final OutOfMemoryError e) {
 			Log.e("MapsAPI", "BitmapsTileSourceBase: OutOfMemoryError loading bitmap: " + aFilePath);
 			System.gc();
@@ -94,6 +139,131 @@ public abstract class BitmapTileSourceBase implements ITileSource,
 		return null;
 	}
 
+	/**
+	 * Decode a tile into a bitmap from the {@link BitmapPool} if there's one of
+	 * the tile size, or into a new bitmap otherwise.
+	 */
+	private Bitmap decode(final byte[] aData) {
+		final BitmapFactory.Options options = getDecodeOptions();
+		if (options.inBitmap != null) {
+			try {
+				final Bitmap bitmap = BitmapFactory.decodeByteArray(aData, 0,
+						aData.length, options);
+				if (bitmap != null) {
+					return bitmap;
+				}
+			} catch (final IllegalArgumentException e) {
+				// the image isn't the tile size
+			}
+			BitmapPool.getInstance().recycle(options.inBitmap);
+			options.inBitmap = null;
+		}
+		return BitmapFactory.decodeByteArray(aData, 0, aData.length, options);
+	}
+
+	/**
+	 * Decode a tile from a stream, after the start of it that was already
+	 * read. The stream can only be decoded once, so the size of the image is
+	 * read from the start, and it's only decoded into a bitmap from the
+	 * {@link BitmapPool} if it's the tile size.
+	 */
+	private Bitmap decode(final byte[] aStart, final InputStream aRest) {
+		final BitmapFactory.Options bounds = new BitmapFactory.Options();
+		bounds.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(aStart, 0, aStart.length, bounds);
+
+		final BitmapFactory.Options options;
+		if (bounds.outWidth == mTileSizePixels
+				&& bounds.outHeight == mTileSizePixels) {
+			options = getDecodeOptions();
+		} else {
+			options = new BitmapFactory.Options();
+			options.inMutable = true;
+		}
+		Bitmap bitmap = null;
+		try {
+			bitmap = BitmapFactory.decodeStream(new SequenceInputStream(
+					new ByteArrayInputStream(aStart), aRest), null, options);
+		} catch (final IllegalArgumentException e) {
+			Log.e("MapsAPI", "BitmapsTileSourceBase: Error decoding bitmap: " + e);
+		}
+		if (bitmap == null && options.inBitmap != null) {
+			BitmapPool.getInstance().recycle(options.inBitmap);
+		}
+		return bitmap;
+	}
+
+	private Bitmap decode(final String aFilePath) {
+		final BitmapFactory.Options options = getDecodeOptions();
+		if (options.inBitmap != null) {
+			try {
+				final Bitmap bitmap = BitmapFactory.decodeFile(aFilePath,
+						options);
+				if (bitmap != null) {
+					return bitmap;
+				}
+			} catch (final IllegalArgumentException e) {
+				// the image isn't the tile size
+			}
+			BitmapPool.getInstance().recycle(options.inBitmap);
+			options.inBitmap = null;
+		}
+		return BitmapFactory.decodeFile(aFilePath, options);
+	}
+
+	private BitmapFactory.Options getDecodeOptions() {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		// mutable, so that the bitmap can be reused when the tile is evicted
+		options.inMutable = true;
+		options.inBitmap = BitmapPool.getInstance().obtain(mTileSizePixels,
+				mTileSizePixels, Bitmap.Config.ARGB_8888);
+		return options;
+	}
+
+	/**
+	 * Read from a stream until the buffer is full or the stream ends.
+	 *
+	 * @return the number of bytes read
+	 */
+	private static int read(final InputStream aIn, final byte[] aBuffer)
+			throws IOException {
+		int length = 0;
+		int count;
+		while (length < aBuffer.length
+				&& (count = aIn.read(aBuffer, length, aBuffer.length - length)) != -1) {
+			length += count;
+		}
+		return length;
+	}
+
+	/**
+	 * @return the content of the file if it's small enough to share its
+	 *         bitmap, or null if it's larger or can't be read
+	 */
+	private static byte[] readSmallFile(final String aFilePath) {
+		final File file = new File(aFilePath);
+		final long length = file.length();
+		if (length <= 0 || length > SharedTileBitmaps.MAXIMUM_SHARED_TILE_SIZE) {
+			return null;
+		}
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(file, "r");
+			final byte[] data = new byte[(int) length];
+			in.readFully(data);
+			return data;
+		} catch (final IOException e) {
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException ignore) {
+				}
+			}
+		}
+	}
+
 	@Override
 	public int getMaximumZoomLevel() {
 		return mMaximumZoomLevel;
@@ -123,6 +293,24 @@ public abstract class BitmapTileSourceBase implements ITileSource,
 		return mTileSizePixels;
 	}
 
+	@Override
+	public long getTileMaxAge() {
+		return mTileMaxAge;
+	}
+
+	/**
+	 * Set how long a cached tile of this tile source stays fresh, for instance
+	 * months for a basemap that rarely changes or an hour for an overlay that
+	 * changes often.
+	 * 
+	 * @param pTileMaxAge
+	 *            the age in milliseconds, or -1 to use the freshness sent by
+	 *            the tile server
+	 */
+	public void setTileMaxAge(final long pTileMaxAge) {
+		mTileMaxAge = pTileMaxAge;
+	}
+
 	public String imageFilenameEnding() {
 		return mImageFilenameEnding;
 	}
@@ -25,11 +25,52 @@ public class ExpirableBitmapDrawable extends BitmapDrawable {
 		return false;
 	}
 
-	private int[] mState;
+	// set by the cache while the UI thread may be drawing the tile
+	private volatile int[] mState;
+
+	// the shared bitmap this drawable holds a reference to, or null if the
+	// bitmap is its own
+	private final SharedTileBitmaps.Entry mSharedBitmap;
+	private boolean mRecycled;
 
 	public ExpirableBitmapDrawable(final Bitmap pBitmap) {
+		this(pBitmap, null);
+	}
+
+	ExpirableBitmapDrawable(final Bitmap pBitmap,
+			final SharedTileBitmaps.Entry pSharedBitmap) {
 		super(pBitmap);
 		mState = new int[0];
+		mSharedBitmap = pSharedBitmap;
+	}
+
+	/**
+	 * Recycle the bitmap when the tile is no longer in the cache, returning it
+	 * to the {@link BitmapPool} once the frame that may still draw it has been
+	 * drawn. A bitmap shared with other tiles of the same image is only
+	 * recycled when the last of them is.
+	 */
+	public synchronized void recycle() {
+		if (mRecycled) {
+			return;
+		}
+		mRecycled = true;
+		if (mSharedBitmap != null) {
+			mSharedBitmap.release();
+		} else {
+			final Bitmap bitmap = getBitmap();
+			if (bitmap != null) {
+				BitmapPool.getInstance().recycleDeferred(bitmap);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the tile has been {@link #recycle() recycled}, after
+	 *         which its bitmap may hold another tile
+	 */
+	public synchronized boolean isRecycled() {
+		return mRecycled;
 	}
 
 	@Override
@@ -1,17 +1,30 @@
 package com.google.android.maps;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * GEMF File handler class.
@@ -67,13 +80,16 @@ public class GEMFFile {
 				remainingBytes--;
 				return raf.read();
 			} else {
-				throw new IOException("End of stream");
+				return -1;
 			}
 		}
 
 		@Override
 		public int read(final byte[] buffer, final int offset, final int length)
 				throws IOException {
+			if (remainingBytes == 0) {
+				return -1;
+			}
 			final int read = raf.read(buffer, offset,
 					length > remainingBytes ? remainingBytes : length);
 
@@ -82,31 +98,161 @@ public class GEMFFile {
 		}
 
 		@Override
-		public long skip(final long byteCount) {
-			return 0;
+		public long skip(final long byteCount) throws IOException {
+			final int skip = (int) Math.min(Math.max(byteCount, 0),
+					remainingBytes);
+			raf.seek(raf.getFilePointer() + skip);
+			remainingBytes -= skip;
+			return skip;
 		}
 	}
 
-	// Class to represent a range of stored tiles within the archive.
-	private class GEMFRange {
-		Integer zoom;
-		Integer xMin;
-		Integer xMax;
-		Integer yMin;
-		Integer yMax;
-		Integer sourceIndex;
-		Long offset;
+	// InputStream over a slice of a memory-mapped part, so that the tile
+	// bytes aren't copied and no file is opened per tile.
+	static class GEMFByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer mBuffer;
+
+		GEMFByteBufferInputStream(final ByteBuffer pBuffer) {
+			mBuffer = pBuffer;
+		}
+
+		@Override
+		public int available() {
+			return mBuffer.remaining();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(final int readLimit) {
+			mBuffer.mark();
+		}
+
+		@Override
+		public synchronized void reset() {
+			mBuffer.reset();
+		}
 
 		@Override
-		public String toString() {
-			return String
-					.format("GEMF Range: source=%d, zoom=%d, x=%d-%d, y=%d-%d, offset=0x%08X",
-							sourceIndex, zoom, xMin, xMax, yMin, yMax, offset);
+		public int read() {
+			return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) {
+			if (!mBuffer.hasRemaining()) {
+				return -1;
+			}
+			final int read = Math.min(length, mBuffer.remaining());
+			mBuffer.get(buffer, offset, read);
+			return read;
+		}
+
+		@Override
+		public long skip(final long byteCount) {
+			final int skip = (int) Math.min(Math.max(byteCount, 0),
+					mBuffer.remaining());
+			mBuffer.position(mBuffer.position() + skip);
+			return skip;
+		}
+	}
+
+	// Class to append tiles to the data files and to write their records into
+	// the header. Consecutive records are written together.
+	private static class GEMFWriter {
+
+		private final String mLocation;
+		private final RandomAccessFile mBaseFile;
+		private RandomAccessFile mDataFile;
+		private OutputStream mDataOut;
+		private int mFileIndex = 0;
+		// Offset in the current file, and over all files
+		private long mFileOffset;
+		private long mDataOffset;
+
+		private final ByteBuffer mRecords = ByteBuffer.allocate(BUILD_BUFFER_SIZE
+				/ (U32_SIZE + U64_SIZE) * (U32_SIZE + U64_SIZE));
+		private long mRecordsOffset;
+
+		GEMFWriter(final String pLocation, final RandomAccessFile pBaseFile,
+				final long pHeaderSize) throws IOException {
+			mLocation = pLocation;
+			mBaseFile = pBaseFile;
+			mDataFile = pBaseFile;
+			mDataFile.getChannel().position(pHeaderSize);
+			mDataOut = new BufferedOutputStream(Channels.newOutputStream(mDataFile
+					.getChannel()), BUILD_BUFFER_SIZE);
+			mFileOffset = pHeaderSize;
+			mDataOffset = pHeaderSize;
+		}
+
+		int getFileCount() {
+			return mFileIndex + 1;
+		}
+
+		void write(final long pRecord, final byte[] pTile) throws IOException {
+			if (mFileOffset > 0 && mFileOffset + pTile.length > FILE_SIZE_LIMIT) {
+				mDataOut.flush();
+				if (mDataFile != mBaseFile) {
+					mDataFile.close();
+				}
+				++mFileIndex;
+				mDataFile = new RandomAccessFile(mLocation + "-" + mFileIndex, "rw");
+				mDataFile.setLength(0);
+				mDataOut = new BufferedOutputStream(
+						Channels.newOutputStream(mDataFile.getChannel()),
+						BUILD_BUFFER_SIZE);
+				mFileOffset = 0;
+			}
+			mDataOut.write(pTile);
+
+			if (mRecords.position() > 0
+					&& (!mRecords.hasRemaining() || pRecord != mRecordsOffset
+							+ mRecords.position())) {
+				flushRecords();
+			}
+			if (mRecords.position() == 0) {
+				mRecordsOffset = pRecord;
+			}
+			mRecords.putLong(mDataOffset);
+			mRecords.putInt(pTile.length);
+
+			mFileOffset += pTile.length;
+			mDataOffset += pTile.length;
+		}
+
+		void finish() throws IOException {
+			flushRecords();
+			mDataOut.flush();
+		}
+
+		void close() throws IOException {
+			if (mDataFile != mBaseFile) {
+				mDataFile.close();
+			}
+			mBaseFile.close();
+		}
+
+		private void flushRecords() throws IOException {
+			final FileChannel channel = mBaseFile.getChannel();
+			long position = mRecordsOffset;
+			mRecords.flip();
+			while (mRecords.hasRemaining()) {
+				position += channel.write(mRecords, position);
+			}
+			mRecords.clear();
 		}
 	}
 
 	private static final long FILE_SIZE_LIMIT = 1 * 1024 * 1024 * 1024; // 1GB
-	private static final int FILE_COPY_BUFFER_SIZE = 1024;
+
+	// A mapping can't be bigger than 2GB, so parts are mapped in chunks
+	private static final long MAPPED_CHUNK_SIZE = 1L << 30; // 1GB
+	private static final int BUILD_BUFFER_SIZE = 256 * 1024;
 
 	private static final int VERSION = 4;
 	private static final int TILE_SIZE = 256;
@@ -128,10 +274,13 @@ public class GEMFFile {
 	private final List<String> mFileNames = new ArrayList<String>();
 
 	// Tile ranges represented within this archive
-	private final List<GEMFRange> mRangeData = new ArrayList<GEMFRange>();
+	private final GEMFRangeIndex mRangeIndex = new GEMFRangeIndex();
 
 	// File sizes for offset calculation
 	private final List<Long> mFileSizes = new ArrayList<Long>();
+
+	// Memory-mapped chunks of every file part, if the archive is read that way
+	private final List<MappedByteBuffer[]> mMappedFiles = new ArrayList<MappedByteBuffer[]>();
 	// List of tile sources within this archive
 	private final LinkedHashMap<Integer, String> mSources = new LinkedHashMap<Integer, String>();
 
@@ -154,6 +303,32 @@ public class GEMFFile {
 		this(pLocation.getAbsolutePath());
 	}
 
+	/*
+	 * Constructor to read existing GEMF archive
+	 * 
+	 * @param pLocation File object representing first GEMF archive file
+	 * 
+	 * @param pMemoryMapped Whether to memory-map the archive. Tiles are then
+	 * read without copying them and without opening a file per tile, and
+	 * several threads can read at the same time. This needs as much address
+	 * space as the archive is big.
+	 */
+	public GEMFFile(final File pLocation, final boolean pMemoryMapped)
+			throws FileNotFoundException, IOException {
+		this(pLocation.getAbsolutePath());
+		if (pMemoryMapped) {
+			try {
+				mapFiles();
+			} catch (final IOException e) {
+				close();
+				throw e;
+			} catch (final OutOfMemoryError e) {
+				close();
+				throw e;
+			}
+		}
+	}
+
 	// ===========================================================
 	// Private Methods
 	// ===========================================================
@@ -184,294 +359,194 @@ public class GEMFFile {
 	 */
 	public GEMFFile(final String pLocation, final List<File> pSourceFolders)
 			throws FileNotFoundException, IOException {
-		/*
-		 * 1. For each source folder 1. Create array of zoom levels, X rows, Y
-		 * rows 2. Build index data structure index[source][zoom][range] 1. For
-		 * each S-Z-X find list of Ys values 2. For each S-Z-X-Ys set, find
-		 * complete X ranges 3. For each S-Z-Xr-Ys set, find complete Y ranges,
-		 * create Range record 3. Write out index 1. Header 2. Sources 3. For
-		 * each Range 1. Write Range record 4. For each Range record 1. For each
-		 * Range entry 1. If over file size limit, start new data file 2. Write
-		 * tile data
-		 */
+		this(pLocation, pSourceFolders, Runtime.getRuntime()
+				.availableProcessors());
+	}
 
+	/*
+	 * Constructor to create new GEMF file from directory of sources/tiles.
+	 * 
+	 * The source folders are walked twice in sorted order, one directory at a
+	 * time, so memory use depends on the number of ranges rather than the
+	 * number of tiles. The first walk finds the ranges. The second one reads
+	 * the tiles with a pool of threads and appends them in order from the
+	 * calling thread.
+	 * 
+	 * @param pThreads Number of threads reading tiles.
+	 */
+	public GEMFFile(final String pLocation, final List<File> pSourceFolders,
+			final int pThreads) throws FileNotFoundException, IOException {
 		mLocation = pLocation;
 
-		// Create in-memory array of sources, X and Y values.
-		final LinkedHashMap<String, LinkedHashMap<Integer, LinkedHashMap<Integer, LinkedHashMap<Integer, File>>>> dirIndex = new LinkedHashMap<String, LinkedHashMap<Integer, LinkedHashMap<Integer, LinkedHashMap<Integer, File>>>>();
-
-		for (final File sourceDir : pSourceFolders) {
-
-			final LinkedHashMap<Integer, LinkedHashMap<Integer, LinkedHashMap<Integer, File>>> zList = new LinkedHashMap<Integer, LinkedHashMap<Integer, LinkedHashMap<Integer, File>>>();
-
-			for (final File zDir : sourceDir.listFiles()) {
-				// Make sure the directory name is just a number
-				try {
-					Integer.parseInt(zDir.getName());
-				} catch (final NumberFormatException e) {
-					continue;
-				}
-
-				final LinkedHashMap<Integer, LinkedHashMap<Integer, File>> xList = new LinkedHashMap<Integer, LinkedHashMap<Integer, File>>();
-
-				for (final File xDir : zDir.listFiles()) {
-
-					// Make sure the directory name is just a number
-					try {
-						Integer.parseInt(xDir.getName());
-					} catch (final NumberFormatException e) {
-						continue;
-					}
-
-					final LinkedHashMap<Integer, File> yList = new LinkedHashMap<Integer, File>();
-					for (final File yFile : xDir.listFiles()) {
-
-						try {
-							Integer.parseInt(yFile.getName().substring(0,
-									yFile.getName().indexOf('.')));
-						} catch (final NumberFormatException e) {
-							continue;
+		// Find the ranges. A column continues the ranges of the previous
+		// column that have the same Y run, and closes the others.
+		final GEMFRangeIndex found = new GEMFRangeIndex();
+		for (int source = 0; source < pSourceFolders.size(); source++) {
+			for (final File zDir : listNumbered(pSourceFolders.get(source), true)) {
+				final int zoom = getNumber(zDir);
+
+				long[] openRuns = new long[0];
+				int[] openSince = new int[0];
+				int lastX = 0;
+				for (final File xDir : listNumbered(zDir, true)) {
+					final int x = getNumber(xDir);
+					final long[] runs = getRuns(listNumbered(xDir, false));
+					final int[] since = new int[runs.length];
+
+					int i = 0;
+					int j = 0;
+					while (i < openRuns.length || j < runs.length) {
+						if (i < openRuns.length
+								&& (j == runs.length || x != lastX + 1 || openRuns[i] < runs[j])) {
+							found.add(zoom, openSince[i], lastX,
+									(int) (openRuns[i] >>> 32),
+									(int) openRuns[i], source, 0);
+							i++;
+						} else if (i == openRuns.length || openRuns[i] > runs[j]) {
+							since[j++] = x;
+						} else {
+							since[j++] = openSince[i++];
 						}
-
-						yList.put(
-								Integer.parseInt(yFile.getName().substring(0,
-										yFile.getName().indexOf('.'))), yFile);
 					}
 
-					xList.put(new Integer(xDir.getName()), yList);
+					openRuns = runs;
+					openSince = since;
+					lastX = x;
+				}
+				for (int i = 0; i < openRuns.length; i++) {
+					found.add(zoom, openSince[i], lastX,
+							(int) (openRuns[i] >>> 32), (int) openRuns[i],
+							source, 0);
 				}
-
-				zList.put(Integer.parseInt(zDir.getName()), xList);
 			}
-
-			dirIndex.put(sourceDir.getName(), zList);
 		}
 
-		// Create a source index list
-		final LinkedHashMap<String, Integer> sourceIndex = new LinkedHashMap<String, Integer>();
-		final LinkedHashMap<Integer, String> indexSource = new LinkedHashMap<Integer, String>();
-		int si = 0;
-		for (final String source : dirIndex.keySet()) {
-			sourceIndex.put(source, new Integer(si));
-			indexSource.put(new Integer(si), source);
-			++si;
+		// Calculate size of header for computation of data offsets
+		final byte[][] sourceNames = new byte[pSourceFolders.size()][];
+		long offset = U32_SIZE // GEMF Version
+				+ U32_SIZE // Tile size
+				+ U32_SIZE // Number of sources
+				+ U32_SIZE // Number of ranges
+				+ (long) found.size() * ((U32_SIZE * 6) + U64_SIZE);
+		for (int i = 0; i < sourceNames.length; i++) {
+			sourceNames[i] = pSourceFolders.get(i).getName().getBytes("UTF-8");
+			offset += U32_SIZE + U32_SIZE + sourceNames[i].length;
 		}
 
-		// Create the range objects
-		final List<GEMFRange> ranges = new ArrayList<GEMFRange>();
-
-		for (final String source : dirIndex.keySet()) {
-			for (final Integer zoom : dirIndex.get(source).keySet()) {
-
-				// Get non-contiguous Y sets for each Z/X
-				final LinkedHashMap<List<Integer>, List<Integer>> ySets = new LinkedHashMap<List<Integer>, List<Integer>>();
-
-				for (final Integer x : new TreeSet<Integer>(dirIndex
-						.get(source).get(zoom).keySet())) {
-
-					final List<Integer> ySet = new ArrayList<Integer>();
-					for (final Integer y : dirIndex.get(source).get(zoom)
-							.get(x).keySet()) {
-						ySet.add(y);
-					}
-
-					if (ySet.size() == 0) {
-						continue;
-					}
-
-					Collections.sort(ySet);
-
-					if (!ySets.containsKey(ySet)) {
-						ySets.put(ySet, new ArrayList<Integer>());
-					}
-
-					ySets.get(ySet).add(x);
-				}
-
-				// For each Y set find contiguous X sets
-				final LinkedHashMap<List<Integer>, List<Integer>> xSets = new LinkedHashMap<List<Integer>, List<Integer>>();
-
-				for (final List<Integer> ySet : ySets.keySet()) {
+		// Calculate offset for each range in the data set
+		final GEMFRangeIndex ranges = new GEMFRangeIndex();
+		for (int i = 0; i < found.size(); i++) {
+			ranges.add(found.getZoom(i), found.getXMin(i), found.getXMax(i),
+					found.getYMin(i), found.getYMax(i), found.getSource(i),
+					offset);
+			offset += (long) (found.getXMax(i) + 1 - found.getXMin(i))
+					* (found.getYMax(i) + 1 - found.getYMin(i))
+					* (U32_SIZE + U64_SIZE);
+		}
+		ranges.build();
 
-					final TreeSet<Integer> xList = new TreeSet<Integer>(
-							ySets.get(ySet));
+		final long headerSize = offset;
 
-					List<Integer> xSet = new ArrayList<Integer>();
-					for (int i = xList.first(); i < xList.last() + 1; ++i) {
-						if (xList.contains(new Integer(i))) {
-							xSet.add(new Integer(i));
-						} else {
-							if (xSet.size() > 0) {
-								xSets.put(ySet, xSet);
-								xSet = new ArrayList<Integer>();
+		final RandomAccessFile baseFile = new RandomAccessFile(pLocation, "rw");
+		final ExecutorService readers = Executors.newFixedThreadPool(Math.max(
+				pThreads, 1));
+		GEMFWriter writer = null;
+		try {
+			baseFile.setLength(headerSize);
+
+			// Write header and range objects
+			final DataOutputStream header = new DataOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(baseFile
+							.getChannel()), BUILD_BUFFER_SIZE));
+			header.writeInt(VERSION);
+			header.writeInt(TILE_SIZE);
+			header.writeInt(sourceNames.length);
+			for (int i = 0; i < sourceNames.length; i++) {
+				header.writeInt(i);
+				header.writeInt(sourceNames[i].length);
+				header.write(sourceNames[i]);
+			}
+			header.writeInt(ranges.size());
+			for (int i = 0; i < ranges.size(); i++) {
+				header.writeInt(ranges.getZoom(i));
+				header.writeInt(ranges.getXMin(i));
+				header.writeInt(ranges.getXMax(i));
+				header.writeInt(ranges.getYMin(i));
+				header.writeInt(ranges.getYMax(i));
+				header.writeInt(ranges.getSource(i));
+				header.writeLong(ranges.getOffset(i));
+			}
+			header.flush();
+
+			//
+			// Write tiles, and their records into the header
+			//
+
+			writer = new GEMFWriter(pLocation, baseFile, headerSize);
+
+			final int maxPending = Math.max(pThreads, 1) * 16;
+			final ArrayDeque<Future<byte[]>> pendingTiles = new ArrayDeque<Future<byte[]>>();
+			final ArrayDeque<Long> pendingRecords = new ArrayDeque<Long>();
+
+			for (int source = 0; source < pSourceFolders.size(); source++) {
+				for (final File zDir : listNumbered(pSourceFolders.get(source),
+						true)) {
+					final int zoom = getNumber(zDir);
+					for (final File xDir : listNumbered(zDir, true)) {
+						final int x = getNumber(xDir);
+						int lastY = -1;
+						for (final File yFile : listNumbered(xDir, false)) {
+							final int y = getNumber(yFile);
+							final int range = ranges.find(zoom, x, y, source);
+							if (range < 0 || y == lastY) {
+								// added since the ranges were found, or
+								// another file for the same tile
+								continue;
 							}
-						}
-					}
-
-					if (xSet.size() > 0) {
-						xSets.put(ySet, xSet);
-					}
-				}
-
-				// For each contiguous X set, find contiguous Y sets and create
-				// GEMFRange object
-				for (final List<Integer> xSet : xSets.keySet()) {
-
-					final TreeSet<Integer> yList = new TreeSet<Integer>(xSet);
-					final TreeSet<Integer> xList = new TreeSet<Integer>(
-							ySets.get(xSet));
-
-					GEMFRange range = new GEMFFile.GEMFRange();
-					range.zoom = zoom;
-					range.sourceIndex = sourceIndex.get(source);
-					range.xMin = xList.first();
-					range.xMax = xList.last();
-
-					for (int i = yList.first(); i < yList.last() + 1; ++i) {
-						if (yList.contains(new Integer(i))) {
-							if (range.yMin == null) {
-								range.yMin = i;
-							}
-							range.yMax = i;
-						} else {
-
-							if (range.yMin != null) {
-								ranges.add(range);
-
-								range = new GEMFFile.GEMFRange();
-								range.zoom = zoom;
-								range.sourceIndex = sourceIndex.get(source);
-								range.xMin = xList.first();
-								range.xMax = xList.last();
+							lastY = y;
+
+							final int numY = ranges.getYMax(range) + 1
+									- ranges.getYMin(range);
+							final long index = (long) (x - ranges.getXMin(range))
+									* numY + (y - ranges.getYMin(range));
+							pendingRecords.add(ranges.getOffset(range) + index
+									* (U32_SIZE + U64_SIZE));
+							pendingTiles.add(readers.submit(new Callable<byte[]>() {
+								@Override
+								public byte[] call() throws IOException {
+									return readTile(yFile);
+								}
+							}));
+
+							if (pendingTiles.size() >= maxPending) {
+								writer.write(pendingRecords.poll(),
+										getTile(pendingTiles.poll()));
 							}
 						}
 					}
-
-					if (range.yMin != null) {
-						ranges.add(range);
-					}
 				}
 			}
-		}
-
-		// Calculate size of header for computation of data offsets
-		int source_list_size = 0;
-		for (final String source : sourceIndex.keySet()) {
-			source_list_size += (U32_SIZE + U32_SIZE + source.length());
-		}
-
-		long offset = U32_SIZE
-				+ // GEMF Version
-				U32_SIZE
-				+ // Tile size
-				U32_SIZE
-				+ // Number of sources
-				source_list_size + ranges.size() * ((U32_SIZE * 6) + U64_SIZE)
-				+ U32_SIZE; // Number of ranges
-
-		// Calculate offset for each range in the data set
-		for (final GEMFRange range : ranges) {
-			range.offset = offset;
-
-			for (int x = range.xMin; x < range.xMax + 1; ++x) {
-				for (int y = range.yMin; y < range.yMax + 1; ++y) {
-					offset += (U32_SIZE + U64_SIZE);
-				}
+			while (!pendingTiles.isEmpty()) {
+				writer.write(pendingRecords.poll(), getTile(pendingTiles.poll()));
 			}
-		}
 
-		final long headerSize = offset;
-
-		RandomAccessFile gemfFile = new RandomAccessFile(pLocation, "rw");
-
-		// Write version header
-		gemfFile.writeInt(VERSION);
-
-		// Write file size header
-		gemfFile.writeInt(TILE_SIZE);
-
-		// Write number of sources
-		gemfFile.writeInt(sourceIndex.size());
-
-		// Write source list
-		for (final String source : sourceIndex.keySet()) {
-			gemfFile.writeInt(sourceIndex.get(source));
-			gemfFile.writeInt(source.length());
-			gemfFile.write(source.getBytes());
-		}
-
-		// Write number of ranges
-		gemfFile.writeInt(ranges.size());
-
-		// Write range objects
-		for (final GEMFRange range : ranges) {
-			gemfFile.writeInt(range.zoom);
-			gemfFile.writeInt(range.xMin);
-			gemfFile.writeInt(range.xMax);
-			gemfFile.writeInt(range.yMin);
-			gemfFile.writeInt(range.yMax);
-			gemfFile.writeInt(range.sourceIndex);
-			gemfFile.writeLong(range.offset);
-		}
-
-		// Write file offset list
-		for (final GEMFRange range : ranges) {
-			for (int x = range.xMin; x < range.xMax + 1; ++x) {
-				for (int y = range.yMin; y < range.yMax + 1; ++y) {
-					gemfFile.writeLong(offset);
-					final long fileSize = dirIndex
-							.get(indexSource.get(range.sourceIndex))
-							.get(range.zoom).get(x).get(y).length();
-					gemfFile.writeInt((int) fileSize);
-					offset += fileSize;
-				}
+			writer.finish();
+		} finally {
+			readers.shutdownNow();
+			if (writer != null) {
+				writer.close();
+			} else {
+				baseFile.close();
 			}
 		}
 
-		//
-		// Write tiles
-		//
-
-		final byte[] buf = new byte[FILE_COPY_BUFFER_SIZE];
-
-		long currentOffset = headerSize;
-		int fileIndex = 0;
-
-		for (final GEMFRange range : ranges) {
-			for (int x = range.xMin; x < range.xMax + 1; ++x) {
-				for (int y = range.yMin; y < range.yMax + 1; ++y) {
-
-					final long fileSize = dirIndex
-							.get(indexSource.get(range.sourceIndex))
-							.get(range.zoom).get(x).get(y).length();
-
-					if (currentOffset + fileSize > FILE_SIZE_LIMIT) {
-						gemfFile.close();
-						++fileIndex;
-						gemfFile = new RandomAccessFile(pLocation + "-"
-								+ fileIndex, "rw");
-						currentOffset = 0;
-					} else {
-						currentOffset += fileSize;
-					}
-
-					final FileInputStream tile = new FileInputStream(dirIndex
-							.get(indexSource.get(range.sourceIndex))
-							.get(range.zoom).get(x).get(y));
-
-					int read = tile.read(buf, 0, FILE_COPY_BUFFER_SIZE);
-					while (read != -1) {
-						gemfFile.write(buf, 0, read);
-						read = tile.read(buf, 0, FILE_COPY_BUFFER_SIZE);
-					}
-
-					tile.close();
-				}
+		// Remove files left from a bigger archive at the same location
+		for (int i = writer.getFileCount();; i++) {
+			if (!new File(pLocation + "-" + i).delete()) {
+				break;
 			}
 		}
 
-		gemfFile.close();
-
 		// Complete construction of GEMFFile object
 		openFiles();
 		readHeader();
@@ -492,6 +567,7 @@ public class GEMFFile {
 	 * Close open GEMF file handles.
 	 */
 	public void close() throws IOException {
+		mMappedFiles.clear();
 		for (final RandomAccessFile file : mFiles) {
 			file.close();
 		}
@@ -503,68 +579,119 @@ public class GEMFFile {
 	 * @return InputStream of tile data, or null if not found.
 	 */
 	public InputStream getInputStream(final int pX, final int pY, final int pZ) {
-		GEMFRange range = null;
-
-		for (final GEMFRange rs : mRangeData) {
-			if ((pZ == rs.zoom)
-					&& (pX >= rs.xMin)
-					&& (pX <= rs.xMax)
-					&& (pY >= rs.yMin)
-					&& (pY <= rs.yMax)
-					&& ((!mSourceLimited) || (rs.sourceIndex == mCurrentSource))) {
-				range = rs;
-				break;
-			}
-		}
-
-		if (range == null) {
+		final long offset = getTileRecordOffset(pX, pY, pZ);
+		if (offset < 0) {
 			return null;
 		}
 
-		long dataOffset;
-		int dataLength;
-
 		try {
-
-			// Determine offset to requested tile record in the header
-			final int numY = range.yMax + 1 - range.yMin;
-			final int xIndex = pX - range.xMin;
-			final int yIndex = pY - range.yMin;
-			long offset = (xIndex * numY) + yIndex;
-			offset *= (U32_SIZE + U64_SIZE);
-			offset += range.offset;
+			long dataOffset;
+			int dataLength;
 
 			// Read tile record from header, get offset and size of data record
-			final RandomAccessFile baseFile = mFiles.get(0);
-			baseFile.seek(offset);
-			dataOffset = baseFile.readLong();
-			dataLength = baseFile.readInt();
-
-			// Seek to correct data file and offset.
-			RandomAccessFile pDataFile = mFiles.get(0);
-			int index = 0;
-			if (dataOffset > mFileSizes.get(0)) {
-				final int fileListCount = mFileSizes.size();
-
-				while ((index < (fileListCount - 1))
-						&& (dataOffset > mFileSizes.get(index))) {
-
-					dataOffset -= mFileSizes.get(index);
-					index += 1;
+			if (!mMappedFiles.isEmpty()) {
+				final ByteBuffer record = getMappedBytes(0, offset, U64_SIZE
+						+ U32_SIZE);
+				dataOffset = record.getLong(0);
+				dataLength = record.getInt(U64_SIZE);
+			} else {
+				final RandomAccessFile baseFile = mFiles.get(0);
+				synchronized (baseFile) {
+					baseFile.seek(offset);
+					dataOffset = baseFile.readLong();
+					dataLength = baseFile.readInt();
 				}
-
-				pDataFile = mFiles.get(index);
 			}
 
-			// Read data block into a byte array
-			pDataFile.seek(dataOffset);
+			// Find the data file and the offset in it
+			int index = 0;
+			final int fileListCount = mFileSizes.size();
+			while ((index < (fileListCount - 1))
+					&& (dataOffset >= mFileSizes.get(index))) {
+				dataOffset -= mFileSizes.get(index);
+				index += 1;
+			}
 
+			if (!mMappedFiles.isEmpty()) {
+				return new GEMFByteBufferInputStream(getMappedBytes(index,
+						dataOffset, dataLength));
+			}
 			return new GEMFInputStream(mFileNames.get(index), dataOffset,
 					dataLength);
 
 		} catch (final java.io.IOException e) {
 			return null;
+		} catch (final IndexOutOfBoundsException e) {
+			// a corrupt tile record
+			return null;
+		}
+	}
+
+	/*
+	 * Get the bytes of a memory-mapped part. They're a slice of the mapping
+	 * unless they span two chunks.
+	 */
+	private ByteBuffer getMappedBytes(final int pFile, final long pOffset,
+			final int pLength) {
+		final MappedByteBuffer[] chunks = mMappedFiles.get(pFile);
+		final int chunk = (int) (pOffset / MAPPED_CHUNK_SIZE);
+		final int position = (int) (pOffset % MAPPED_CHUNK_SIZE);
+
+		final ByteBuffer buffer = chunks[chunk].duplicate();
+		if (position + pLength <= buffer.capacity()) {
+			buffer.position(position);
+			buffer.limit(position + pLength);
+			return buffer.slice();
 		}
+
+		final byte[] bytes = new byte[pLength];
+		buffer.position(position);
+		final int first = buffer.remaining();
+		buffer.get(bytes, 0, first);
+		chunks[chunk + 1].duplicate().get(bytes, first, pLength - first);
+		return ByteBuffer.wrap(bytes);
+	}
+
+	/*
+	 * Map all the file parts into memory.
+	 */
+	private void mapFiles() throws IOException {
+		for (int i = 0; i < mFiles.size(); i++) {
+			final FileChannel channel = mFiles.get(i).getChannel();
+			final long size = mFileSizes.get(i);
+			final MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size
+					+ MAPPED_CHUNK_SIZE - 1) / MAPPED_CHUNK_SIZE)];
+			for (int c = 0; c < chunks.length; c++) {
+				final long position = c * MAPPED_CHUNK_SIZE;
+				chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY,
+						position, Math.min(MAPPED_CHUNK_SIZE, size - position));
+			}
+			mMappedFiles.add(chunks);
+		}
+	}
+
+	/*
+	 * Get the offset of the record of a tile in the header.
+	 * 
+	 * @return the offset, or -1 if the tile isn't in the archive
+	 */
+	private long getTileRecordOffset(final int pX, final int pY, final int pZ) {
+		final GEMFRangeIndex index = mRangeIndex;
+		final int range = mSourceLimited ? index.find(pZ, pX, pY,
+				mCurrentSource) : index.find(pZ, pX, pY);
+
+		if (range < 0) {
+			return -1;
+		}
+
+		// Determine offset to requested tile record in the header
+		final int numY = index.getYMax(range) + 1 - index.getYMin(range);
+		final int xIndex = pX - index.getXMin(range);
+		final int yIndex = pY - index.getYMin(range);
+		long offset = ((long) xIndex * numY) + yIndex;
+		offset *= (U32_SIZE + U64_SIZE);
+		offset += index.getOffset(range);
+		return offset;
 	}
 
 	/*
@@ -582,14 +709,30 @@ public class GEMFFile {
 		return mSources;
 	}
 
+	/*
+	 * Return the tile ranges of the sources that getInputStream() uses.
+	 */
+	public List<MapTileRange> getTileRanges() {
+		final GEMFRangeIndex index = mRangeIndex;
+		final List<MapTileRange> ranges = new ArrayList<MapTileRange>(
+				index.size());
+		for (int i = 0; i < index.size(); i++) {
+			if (!mSourceLimited || index.getSource(i) == mCurrentSource) {
+				ranges.add(new MapTileRange(index.getZoom(i), index.getXMin(i),
+						index.getYMin(i), index.getXMax(i), index.getYMax(i)));
+			}
+		}
+		return ranges;
+	}
+
 	/*
 	 * Return list of zoom levels contained within this archive.
 	 */
 	public Set<Integer> getZoomLevels() {
 		final Set<Integer> zoomLevels = new TreeSet<Integer>();
 
-		for (final GEMFRange rs : mRangeData) {
-			zoomLevels.add(rs.zoom);
+		for (int i = 0; i < mRangeIndex.size(); i++) {
+			zoomLevels.add(mRangeIndex.getZoom(i));
 		}
 
 		return zoomLevels;
@@ -619,6 +762,94 @@ public class GEMFFile {
 		}
 	}
 
+	/*
+	 * List the directories, or the tile files, with a number as their name,
+	 * sorted by that number.
+	 */
+	private static File[] listNumbered(final File pDir,
+			final boolean pDirectories) {
+		final File[] files = pDir.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+
+		// Sort number and position together
+		final long[] sorted = new long[files.length];
+		int count = 0;
+		for (int i = 0; i < files.length; i++) {
+			final int number = getNumber(files[i]);
+			// Tile files have an extension, so they can be told apart without
+			// asking the file system
+			if (number >= 0
+					&& (pDirectories ? files[i].isDirectory() : files[i]
+							.getName().indexOf('.') > 0)) {
+				sorted[count++] = (long) number << 32 | i;
+			}
+		}
+		Arrays.sort(sorted, 0, count);
+
+		final File[] numbered = new File[count];
+		for (int i = 0; i < count; i++) {
+			numbered[i] = files[(int) sorted[i]];
+		}
+		return numbered;
+	}
+
+	/*
+	 * @return the number a file is named after, or -1
+	 */
+	private static int getNumber(final File pFile) {
+		final String name = pFile.getName();
+		final int dot = name.indexOf('.');
+		try {
+			return Integer.parseInt(dot < 0 ? name : name.substring(0, dot));
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/*
+	 * Get the contiguous runs of tiles in a column, as first Y << 32 | last Y.
+	 */
+	private static long[] getRuns(final File[] pTiles) {
+		final long[] runs = new long[pTiles.length];
+		int count = 0;
+		for (final File tile : pTiles) {
+			final int y = getNumber(tile);
+			if (count > 0 && y <= (int) runs[count - 1] + 1) {
+				runs[count - 1] = (runs[count - 1] & 0xFFFFFFFF00000000L) | y;
+			} else {
+				runs[count++] = (long) y << 32 | y;
+			}
+		}
+		return Arrays.copyOf(runs, count);
+	}
+
+	private static byte[] readTile(final File pFile) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(pFile, "r");
+		try {
+			final byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			return data;
+		} finally {
+			file.close();
+		}
+	}
+
+	private static byte[] getTile(final Future<byte[]> pTile)
+			throws IOException {
+		try {
+			return pTile.get();
+		} catch (final InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause().toString());
+		}
+	}
+
 	// ===========================================================
 	// Inner and Anonymous Classes
 	// ===========================================================
@@ -659,19 +890,25 @@ public class GEMFFile {
 			mSources.put(new Integer(sourceIndex), sourceName);
 		}
 
-		// Read Ranges
+		// Read Ranges, all at once rather than with a read per field
 		final int num_ranges = baseFile.readInt();
+		if (num_ranges < 0) {
+			throw new IOException("Bad range count: " + num_ranges);
+		}
+		final byte[] rangeData = new byte[num_ranges * (6 * U32_SIZE + U64_SIZE)];
+		baseFile.readFully(rangeData);
+		final ByteBuffer ranges = ByteBuffer.wrap(rangeData);
 		for (int i = 0; i < num_ranges; i++) {
-			final GEMFRange rs = new GEMFRange();
-			rs.zoom = baseFile.readInt();
-			rs.xMin = baseFile.readInt();
-			rs.xMax = baseFile.readInt();
-			rs.yMin = baseFile.readInt();
-			rs.yMax = baseFile.readInt();
-			rs.sourceIndex = baseFile.readInt();
-			rs.offset = baseFile.readLong();
-			mRangeData.add(rs);
+			final int zoom = ranges.getInt();
+			final int xMin = ranges.getInt();
+			final int xMax = ranges.getInt();
+			final int yMin = ranges.getInt();
+			final int yMax = ranges.getInt();
+			final int sourceIndex = ranges.getInt();
+			final long offset = ranges.getLong();
+			mRangeIndex.add(zoom, xMin, xMax, yMin, yMax, sourceIndex, offset);
 		}
+		mRangeIndex.build();
 	};
 
 	/*
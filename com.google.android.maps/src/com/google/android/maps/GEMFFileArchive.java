@@ -4,6 +4,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
+
+import android.util.Log;
 
 public class GEMFFileArchive implements IArchiveFile {
 
@@ -16,7 +19,23 @@ public class GEMFFileArchive implements IArchiveFile {
 
 	private GEMFFileArchive(final File pFile) throws FileNotFoundException,
 			IOException {
-		mFile = new GEMFFile(pFile);
+		mFile = openFile(pFile);
+	}
+
+	/**
+	 * Memory-map the archive if there's enough address space for it, otherwise
+	 * read it through files.
+	 */
+	private static GEMFFile openFile(final File pFile)
+			throws FileNotFoundException, IOException {
+		try {
+			return new GEMFFile(pFile, true);
+		} catch (final IOException e) {
+			Log.w("MapsAPI", "GEMFFileArchive: Unable to map " + pFile + ": " + e);
+		} catch (final OutOfMemoryError e) {
+			Log.w("MapsAPI", "GEMFFileArchive: Unable to map " + pFile + ": " + e);
+		}
+		return new GEMFFile(pFile);
 	}
 
 	@Override
@@ -26,6 +45,19 @@ public class GEMFFileArchive implements IArchiveFile {
 				pTile.getZoomLevel());
 	}
 
+	@Override
+	public List<MapTileRange> getTileRanges() {
+		return mFile.getTileRanges();
+	}
+
+	@Override
+	public void close() {
+		try {
+			mFile.close();
+		} catch (final IOException ignore) {
+		}
+	}
+
 	@Override
 	public String toString() {
 		return "GEMFFileArchive [mGEMFFile=" + mFile.getName() + "]";
@@ -0,0 +1,301 @@
+package com.google.android.maps;
+
+import java.util.Arrays;
+
+/**
+ * The tile ranges of a GEMF archive, kept in primitive arrays and indexed for
+ * lookups in O(log n). The ranges are grouped by zoom level and source. Within
+ * a group the x axis is cut into slabs at the edges of the ranges, and every
+ * slab lists the ranges crossing it sorted by y, so a tile is found with two
+ * binary searches. A group whose ranges overlap is scanned linearly instead,
+ * so that the first range in the file still wins. Ranges are added with
+ * {@link #add} and the index is built with {@link #build()} before lookups.
+ * It isn't synchronized while building, but lookups may run concurrently.
+ */
+class GEMFRangeIndex {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final int MINIMUM_CAPACITY = 16;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private int mSize;
+	private int[] mZoom = new int[MINIMUM_CAPACITY];
+	private int[] mXMin = new int[MINIMUM_CAPACITY];
+	private int[] mXMax = new int[MINIMUM_CAPACITY];
+	private int[] mYMin = new int[MINIMUM_CAPACITY];
+	private int[] mYMax = new int[MINIMUM_CAPACITY];
+	private int[] mSource = new int[MINIMUM_CAPACITY];
+	private long[] mOffset = new long[MINIMUM_CAPACITY];
+
+	// sorted by zoom level, then source
+	private long[] mGroupKeys = new long[0];
+	private Group[] mGroups = new Group[0];
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public int size() {
+		return mSize;
+	}
+
+	public int getZoom(final int pRange) {
+		return mZoom[pRange];
+	}
+
+	public int getXMin(final int pRange) {
+		return mXMin[pRange];
+	}
+
+	public int getXMax(final int pRange) {
+		return mXMax[pRange];
+	}
+
+	public int getYMin(final int pRange) {
+		return mYMin[pRange];
+	}
+
+	public int getYMax(final int pRange) {
+		return mYMax[pRange];
+	}
+
+	public int getSource(final int pRange) {
+		return mSource[pRange];
+	}
+
+	/**
+	 * @return the offset of the first tile record of the range in the header
+	 */
+	public long getOffset(final int pRange) {
+		return mOffset[pRange];
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Add a range. The bounds are inclusive.
+	 */
+	public void add(final int pZoom, final int pXMin, final int pXMax,
+			final int pYMin, final int pYMax, final int pSource,
+			final long pOffset) {
+		if (mSize == mZoom.length) {
+			final int capacity = mSize * 2;
+			mZoom = Arrays.copyOf(mZoom, capacity);
+			mXMin = Arrays.copyOf(mXMin, capacity);
+			mXMax = Arrays.copyOf(mXMax, capacity);
+			mYMin = Arrays.copyOf(mYMin, capacity);
+			mYMax = Arrays.copyOf(mYMax, capacity);
+			mSource = Arrays.copyOf(mSource, capacity);
+			mOffset = Arrays.copyOf(mOffset, capacity);
+		}
+		mZoom[mSize] = pZoom;
+		mXMin[mSize] = pXMin;
+		mXMax[mSize] = pXMax;
+		mYMin[mSize] = pYMin;
+		mYMax[mSize] = pYMax;
+		mSource[mSize] = pSource;
+		mOffset[mSize] = pOffset;
+		mSize++;
+	}
+
+	/**
+	 * Build the lookup structures for the ranges added so far.
+	 */
+	public void build() {
+		// sort the ranges by group, keeping the file order within a group
+		final long[] sorted = new long[mSize];
+		final long[] keys = new long[mSize];
+		for (int i = 0; i < mSize; i++) {
+			keys[i] = getGroupKey(mZoom[i], mSource[i]);
+		}
+		final long[] distinct = keys.clone();
+		Arrays.sort(distinct);
+		int groupCount = 0;
+		for (int i = 0; i < distinct.length; i++) {
+			if (i == 0 || distinct[i] != distinct[i - 1]) {
+				distinct[groupCount++] = distinct[i];
+			}
+		}
+		for (int i = 0; i < mSize; i++) {
+			sorted[i] = (long) Arrays.binarySearch(distinct, 0, groupCount,
+					keys[i]) << 32 | i;
+		}
+		Arrays.sort(sorted);
+
+		final long[] groupKeys = Arrays.copyOf(distinct, groupCount);
+		final Group[] groups = new Group[groupCount];
+		int start = 0;
+		for (int g = 0; g < groupCount; g++) {
+			int end = start;
+			while (end < mSize && (int) (sorted[end] >>> 32) == g) {
+				end++;
+			}
+			final int[] ranges = new int[end - start];
+			for (int i = start; i < end; i++) {
+				ranges[i - start] = (int) sorted[i];
+			}
+			groups[g] = buildGroup(ranges);
+			start = end;
+		}
+
+		mGroupKeys = groupKeys;
+		mGroups = groups;
+	}
+
+	/**
+	 * Find the first range of any source that contains a tile.
+	 *
+	 * @return the range, or -1 if no range contains the tile
+	 */
+	public int find(final int pZoom, final int pX, final int pY) {
+		int g = Arrays.binarySearch(mGroupKeys, getGroupKey(pZoom,
+				Integer.MIN_VALUE));
+		if (g < 0) {
+			g = -g - 1;
+		}
+		int found = -1;
+		for (; g < mGroupKeys.length && (int) (mGroupKeys[g] >> 32) == pZoom; g++) {
+			final int range = find(mGroups[g], pX, pY);
+			if (range >= 0 && (found < 0 || range < found)) {
+				found = range;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Find the range of a source that contains a tile.
+	 *
+	 * @return the range, or -1 if no range of the source contains the tile
+	 */
+	public int find(final int pZoom, final int pX, final int pY,
+			final int pSource) {
+		final int g = Arrays.binarySearch(mGroupKeys, getGroupKey(pZoom,
+				pSource));
+		return g < 0 ? -1 : find(mGroups[g], pX, pY);
+	}
+
+	private int find(final Group pGroup, final int pX, final int pY) {
+		if (pGroup.mLinear != null) {
+			for (final int range : pGroup.mLinear) {
+				if (pX >= mXMin[range] && pX <= mXMax[range]
+						&& pY >= mYMin[range] && pY <= mYMax[range]) {
+					return range;
+				}
+			}
+			return -1;
+		}
+
+		final int[] slabX = pGroup.mSlabX;
+		if (pX < slabX[0] || pX >= slabX[slabX.length - 1]) {
+			return -1;
+		}
+		int slab = Arrays.binarySearch(slabX, pX);
+		if (slab < 0) {
+			slab = -slab - 2;
+		}
+
+		// the last range in the slab starting at or above the tile
+		int low = pGroup.mSlabStart[slab];
+		int high = pGroup.mSlabStart[slab + 1] - 1;
+		int found = -1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			if (mYMin[pGroup.mEntries[mid]] <= pY) {
+				found = pGroup.mEntries[mid];
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return found >= 0 && pY <= mYMax[found] ? found : -1;
+	}
+
+	private Group buildGroup(final int[] pRanges) {
+		final Group group = new Group();
+
+		// the slab edges are where ranges start and end
+		int[] edges = new int[pRanges.length * 2];
+		for (int i = 0; i < pRanges.length; i++) {
+			edges[i * 2] = mXMin[pRanges[i]];
+			edges[i * 2 + 1] = mXMax[pRanges[i]] + 1;
+		}
+		Arrays.sort(edges);
+		int edgeCount = 0;
+		for (int i = 0; i < edges.length; i++) {
+			if (i == 0 || edges[i] != edges[i - 1]) {
+				edges[edgeCount++] = edges[i];
+			}
+		}
+		edges = Arrays.copyOf(edges, edgeCount);
+
+		// count the ranges crossing every slab, then fill them in
+		final int slabCount = edgeCount - 1;
+		final int[] slabStart = new int[slabCount + 1];
+		for (final int range : pRanges) {
+			final int first = Arrays.binarySearch(edges, mXMin[range]);
+			final int last = Arrays.binarySearch(edges, mXMax[range] + 1);
+			for (int s = first; s < last; s++) {
+				slabStart[s + 1]++;
+			}
+		}
+		for (int s = 0; s < slabCount; s++) {
+			slabStart[s + 1] += slabStart[s];
+		}
+		final long[] entries = new long[slabStart[slabCount]];
+		final int[] fill = Arrays.copyOf(slabStart, slabCount);
+		for (final int range : pRanges) {
+			final int first = Arrays.binarySearch(edges, mXMin[range]);
+			final int last = Arrays.binarySearch(edges, mXMax[range] + 1);
+			for (int s = first; s < last; s++) {
+				entries[fill[s]++] = (long) mYMin[range] << 32 | range;
+			}
+		}
+
+		final int[] sortedEntries = new int[entries.length];
+		for (int s = 0; s < slabCount; s++) {
+			Arrays.sort(entries, slabStart[s], slabStart[s + 1]);
+			for (int e = slabStart[s]; e < slabStart[s + 1]; e++) {
+				sortedEntries[e] = (int) entries[e];
+				if (e > slabStart[s]
+						&& mYMin[sortedEntries[e]] <= mYMax[sortedEntries[e - 1]]) {
+					group.mLinear = pRanges;
+					return group;
+				}
+			}
+		}
+
+		group.mSlabX = edges;
+		group.mSlabStart = slabStart;
+		group.mEntries = sortedEntries;
+		return group;
+	}
+
+	private static long getGroupKey(final int pZoom, final int pSource) {
+		return (long) pZoom << 32 | (pSource & 0xFFFFFFFFL) ^ 0x80000000L;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private static class Group {
+		// the first x of every slab, followed by the end of the last one
+		int[] mSlabX;
+		// the entries of slab s are mEntries[mSlabStart[s]] up to
+		// mSlabStart[s + 1]
+		int[] mSlabStart;
+		// the ranges crossing every slab, sorted by their first y
+		int[] mEntries;
+		// the ranges in file order, if they overlap
+		int[] mLinear;
+	}
+}
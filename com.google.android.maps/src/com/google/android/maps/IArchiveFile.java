@@ -1,6 +1,7 @@
 package com.google.android.maps;
 
 import java.io.InputStream;
+import java.util.List;
 
 public interface IArchiveFile {
 
@@ -12,4 +13,17 @@ public interface IArchiveFile {
 	 */
 	InputStream getInputStream(ITileSource tileSource, MapTile tile);
 
+	/**
+	 * Get the tiles in the archive. A range may include tiles that aren't in
+	 * the archive, but every tile in the archive must be in a range.
+	 * 
+	 * @return the tile ranges
+	 */
+	List<MapTileRange> getTileRanges();
+
+	/**
+	 * Close the archive. It can't be used afterwards.
+	 */
+	void close();
+
 }
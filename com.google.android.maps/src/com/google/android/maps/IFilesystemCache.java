@@ -3,7 +3,9 @@ package com.google.android.maps;
 import java.io.InputStream;
 
 /**
- * Represents a write-only interface into a file system cache.
+ * Represents an interface into a file system cache. Tiles are read from the
+ * cache by a tile provider, but their metadata can be read here so that the
+ * tiles can be revalidated.
  * 
  * @author Marc Kurtz
  * 
@@ -23,4 +25,49 @@ public interface IFilesystemCache {
 	 */
 	boolean saveFile(final ITileSource pTileSourceInfo, MapTile pTile,
 			final InputStream pStream);
+
+	/**
+	 * Save an InputStream as the specified tile in the file system cache for
+	 * the specified tile source, along with the HTTP metadata of the tile.
+	 * 
+	 * @param pTileSourceInfo
+	 *            a tile source
+	 * @param pTile
+	 *            a tile
+	 * @param pStream
+	 *            an InputStream
+	 * @param pMetadata
+	 *            the metadata, or null if there is none
+	 * @return
+	 */
+	boolean saveFile(final ITileSource pTileSourceInfo, MapTile pTile,
+			final InputStream pStream, final MapTileMetadata pMetadata);
+
+	/**
+	 * Get the metadata that was saved with the specified tile.
+	 * 
+	 * @param pTileSourceInfo
+	 *            a tile source
+	 * @param pTile
+	 *            a tile
+	 * @return the metadata, or null if the tile isn't in the cache or it was
+	 *         saved without metadata
+	 */
+	MapTileMetadata getMetadata(final ITileSource pTileSourceInfo,
+			MapTile pTile);
+
+	/**
+	 * Mark the specified tile as fresh without rewriting it, for instance
+	 * because the server said it hasn't changed.
+	 * 
+	 * @param pTileSourceInfo
+	 *            a tile source
+	 * @param pTile
+	 *            a tile
+	 * @param pMetadata
+	 *            the new metadata of the tile
+	 * @return true if the tile is in the cache and was refreshed
+	 */
+	boolean refreshFile(final ITileSource pTileSourceInfo, MapTile pTile,
+			final MapTileMetadata pMetadata);
 }
@@ -27,6 +27,16 @@ public interface ITileSource {
 	 */
 	Drawable getDrawable(String aFilePath) throws LowMemoryException;
 
+	/**
+	 * Get a rendered Drawable from the specified image data. Tiles with the
+	 * same small image data, such as blank sea, may share their bitmap.
+	 * 
+	 * @param aData
+	 *            the image data
+	 * @return the rendered Drawable
+	 */
+	Drawable getDrawable(byte[] aData) throws LowMemoryException;
+
 	/**
 	 * Get the maximum zoom level this tile source can provide.
 	 * 
@@ -60,6 +70,15 @@ public interface ITileSource {
 	 */
 	public int getTileSizePixels();
 
+	/**
+	 * Get how long a cached tile of this tile source stays fresh. This
+	 * overrides the freshness sent by the tile server.
+	 * 
+	 * @return the age in milliseconds, or -1 to use the freshness sent by the
+	 *         tile server
+	 */
+	public long getTileMaxAge();
+
 	/**
 	 * A localized human-friendly name for this tile source
 	 * 
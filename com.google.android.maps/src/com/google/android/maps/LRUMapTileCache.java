@@ -1,33 +1,244 @@
 package com.google.android.maps;
 
-import java.util.LinkedHashMap;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 
-public class LRUMapTileCache extends LinkedHashMap<MapTile, Drawable> implements
-		OpenStreetMapTileProviderConstants {
+/**
+ * A cache of tiles that keeps the bitmaps of the recently used tiles within a
+ * budget in bytes. The bitmaps are counted by their actual size, so the number
+ * of tiles it holds depends on their size and bitmap config. A bitmap shared by
+ * several tiles is counted once. The tiles needed to fill the screen are kept
+ * even if they don't fit in the budget.
+ * <p>
+ * The tiles are kept by their {@link MapTile#getKey() key} in an open
+ * addressing table, so looking a tile up doesn't allocate anything. Reads
+ * don't lock, so the UI thread can draw while the loader threads add tiles. A
+ * read racing with a removal may miss a tile that moves to close the gap, which
+ * only makes the tile load again. Reads only mark a tile as used, and the
+ * tiles are evicted with the
+ * clock algorithm, an approximation of least recently used: the clock hand
+ * passes the tiles in the order they were added, gives a used tile a second
+ * chance by clearing its mark, and evicts the first unused one. Writes are
+ * synchronized.
+ */
+public class LRUMapTileCache implements OpenStreetMapTileProviderConstants {
 
-	private static final long serialVersionUID = -541142277575493335L;
+	private static final int MINIMUM_TABLE_SIZE = 16;
 
-	private int mCapacity;
+	// open addressing over the tile keys, replaced when it grows
+	private volatile AtomicReferenceArray<Entry> mTable;
+	private volatile int mTileCount;
 
+	// the tiles in the order the clock hand passes them
+	private final ArrayDeque<Entry> mClock;
+
+	private volatile int mCapacity;
+
+	private long mMaximumSize;
+	private long mSize;
+	private long mPeakSize;
+
+	// the bitmaps in the cache, with their size and the number of tiles
+	// drawing them
+	private final IdentityHashMap<Bitmap, int[]> mBitmaps = new IdentityHashMap<Bitmap, int[]>();
+
+	/**
+	 * @param aCapacity
+	 *            the number of tiles to keep whatever their size
+	 */
 	public LRUMapTileCache(final int aCapacity) {
-		super(aCapacity + 2, 0.1f, true);
+		this(aCapacity, getDefaultMaximumSize());
+	}
+
+	/**
+	 * @param aCapacity
+	 *            the number of tiles to keep whatever their size
+	 * @param aMaximumSize
+	 *            the size in bytes the bitmaps of the tiles beyond those may
+	 *            take up
+	 */
+	public LRUMapTileCache(final int aCapacity, final long aMaximumSize) {
+		mTable = new AtomicReferenceArray<Entry>(MINIMUM_TABLE_SIZE);
+		mClock = new ArrayDeque<Entry>(aCapacity + 2);
 		mCapacity = aCapacity;
+		mMaximumSize = aMaximumSize;
+	}
+
+	/**
+	 * @return the default budget, a fraction of the maximum heap size
+	 */
+	public static long getDefaultMaximumSize() {
+		return Runtime.getRuntime().maxMemory() / CACHE_MAPTILE_HEAP_FRACTION;
+	}
+
+	/**
+	 * @return the size in bytes of the bitmaps in the cache
+	 */
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	/**
+	 * @return the largest size in bytes the bitmaps in the cache have had
+	 */
+	public synchronized long getPeakSize() {
+		return mPeakSize;
+	}
+
+	public synchronized long getMaximumSize() {
+		return mMaximumSize;
+	}
+
+	/**
+	 * Set the budget in bytes, removing tiles if they don't fit anymore.
+	 */
+	public synchronized void setMaximumSize(final long aMaximumSize) {
+		mMaximumSize = aMaximumSize;
+		trimToSize();
+	}
+
+	/**
+	 * @return the number of tiles in the cache
+	 */
+	public int size() {
+		return mTileCount;
+	}
+
+	public boolean containsKey(final MapTile aTile) {
+		return find(aTile.getKey()) != null;
 	}
 
-	@Override
-	public void clear() {
-		// remove them all individually so that they get recycled
-		while (!isEmpty()) {
-			remove(keySet().iterator().next());
+	public Drawable get(final MapTile aTile) {
+		return get(aTile.getKey());
+	}
+
+	/**
+	 * Get a tile by its key and mark it as used. This doesn't lock.
+	 */
+	public Drawable get(final long aKey) {
+		final Entry entry = find(aKey);
+		if (entry == null) {
+			return null;
+		}
+		// don't write if it's marked already, the tiles on screen are read
+		// on every frame
+		if (!entry.mReferenced) {
+			entry.mReferenced = true;
+		}
+		return entry.mDrawable;
+	}
+
+	/**
+	 * Add or replace a tile, removing tiles if they don't fit anymore.
+	 * 
+	 * @return the tile it replaced, which is recycled unless it's the same
+	 */
+	public Drawable put(final MapTile aTile, final Drawable aDrawable) {
+		return put(aTile.getKey(), aDrawable);
+	}
+
+	/**
+	 * Add or replace a tile by its key, removing tiles if they don't fit
+	 * anymore. A tile that is replaced by another drawable, such as a scaled
+	 * placeholder by the real tile, is recycled; putting the same drawable
+	 * again, as a revalidated expired tile, only updates it.
+	 * 
+	 * @return the tile it replaced, which is recycled unless it's the same
+	 */
+	public synchronized Drawable put(final long aKey, final Drawable aDrawable) {
+		// count the new tile before others are removed to make room
+		addBitmap(aDrawable);
+		Drawable previous = null;
+		final Entry entry = find(aKey);
+		if (entry != null) {
+			previous = entry.mDrawable;
+			entry.mDrawable = aDrawable;
+			entry.mReferenced = true;
+			if (previous != aDrawable) {
+				recycle(previous);
+			} else {
+				removeBitmap(previous);
+			}
+		} else {
+			final Entry added = new Entry(aKey, aDrawable);
+			insert(added);
+			mClock.addLast(added);
+			trimToSize();
 		}
+		mPeakSize = Math.max(mPeakSize, mSize);
+		return previous;
+	}
 
-		// and then clear
-		super.clear();
+	/**
+	 * Add a tile by its key unless the key is in the cache already. This is
+	 * for placeholders, which mustn't replace a tile that has just arrived.
+	 * 
+	 * @return whether the tile was added
+	 */
+	public synchronized boolean putIfAbsent(final long aKey,
+			final Drawable aDrawable) {
+		if (find(aKey) != null) {
+			return false;
+		}
+		put(aKey, aDrawable);
+		return true;
+	}
+
+	/**
+	 * Clear the expired state of a tile the server has confirmed, if it's
+	 * still the one in the cache. The state is changed under the lock, so the
+	 * tile can't be evicted and recycled meanwhile.
+	 * 
+	 * @return false if it has been evicted, replaced or recycled since
+	 */
+	public synchronized boolean revalidate(final long aKey,
+			final Drawable aDrawable) {
+		final Entry entry = find(aKey);
+		if (entry == null
+				|| entry.mDrawable != aDrawable
+				|| (aDrawable instanceof ExpirableBitmapDrawable && ((ExpirableBitmapDrawable) aDrawable)
+						.isRecycled())) {
+			return false;
+		}
+		aDrawable.setState(new int[0]);
+		entry.mReferenced = true;
+		return true;
+	}
+
+	/**
+	 * Remove a tile and recycle it.
+	 */
+	public Drawable remove(final MapTile aTile) {
+		return remove(aTile.getKey());
+	}
+
+	/**
+	 * Remove a tile by its key and recycle it.
+	 */
+	public synchronized Drawable remove(final long aKey) {
+		final Entry entry = delete(aKey);
+		if (entry == null) {
+			return null;
+		}
+		mClock.remove(entry);
+		recycle(entry.mDrawable);
+		return entry.mDrawable;
+	}
+
+	public synchronized void clear() {
+		// recycle them all individually
+		Entry entry;
+		while ((entry = mClock.pollFirst()) != null) {
+			recycle(entry.mDrawable);
+		}
+		mTable = new AtomicReferenceArray<Entry>(MINIMUM_TABLE_SIZE);
+		mTileCount = 0;
 	}
 
 	public void ensureCapacity(final int aCapacity) {
@@ -38,29 +249,148 @@ public class LRUMapTileCache extends LinkedHashMap<MapTile, Drawable> implements
 		}
 	}
 
-	@Override
-	public Drawable remove(final Object aKey) {
-		final Drawable drawable = super.remove(aKey);
-		if (drawable instanceof BitmapDrawable) {
-			final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+	private void trimToSize() {
+		while (mSize > mMaximumSize && mTileCount > mCapacity) {
+			final Entry entry = mClock.pollFirst();
+			if (entry.mReferenced) {
+				// give it a second chance
+				entry.mReferenced = false;
+				mClock.addLast(entry);
+				continue;
+			}
+			if (DEBUGMODE) {
+				Log.d("MapsAPI","LRUMapTileCache: Remove old tile: /"
+						+ MapTile.getZoomLevel(entry.mKey) + "/"
+						+ MapTile.getX(entry.mKey) + "/"
+						+ MapTile.getY(entry.mKey));
+			}
+			delete(entry.mKey);
+			recycle(entry.mDrawable);
+		}
+	}
+
+	private Entry find(final long aKey) {
+		final AtomicReferenceArray<Entry> table = mTable;
+		final int mask = table.length() - 1;
+		int slot = LongHashMap.hash(aKey) & mask;
+		Entry entry;
+		while ((entry = table.get(slot)) != null) {
+			if (entry.mKey == aKey) {
+				return entry;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	private void insert(final Entry aEntry) {
+		if ((mTileCount + 1) * 2 > mTable.length()) {
+			// fill a bigger table before readers can see it
+			final AtomicReferenceArray<Entry> table = mTable;
+			final AtomicReferenceArray<Entry> grown = new AtomicReferenceArray<Entry>(
+					table.length() * 2);
+			for (int i = 0; i < table.length(); i++) {
+				final Entry entry = table.get(i);
+				if (entry != null) {
+					insert(grown, entry);
+				}
+			}
+			mTable = grown;
+		}
+		insert(mTable, aEntry);
+		mTileCount++;
+	}
+
+	private static void insert(final AtomicReferenceArray<Entry> aTable,
+			final Entry aEntry) {
+		final int mask = aTable.length() - 1;
+		int slot = LongHashMap.hash(aEntry.mKey) & mask;
+		while (aTable.get(slot) != null) {
+			slot = (slot + 1) & mask;
+		}
+		aTable.set(slot, aEntry);
+	}
+
+	private Entry delete(final long aKey) {
+		final AtomicReferenceArray<Entry> table = mTable;
+		final int mask = table.length() - 1;
+		int gap = LongHashMap.hash(aKey) & mask;
+		Entry removed;
+		while ((removed = table.get(gap)) != null && removed.mKey != aKey) {
+			gap = (gap + 1) & mask;
+		}
+		if (removed == null) {
+			return null;
+		}
+		// move the entries after it back to close the gap, writing each one
+		// to its new slot before its old slot is overwritten
+		int slot = (gap + 1) & mask;
+		Entry entry;
+		while ((entry = table.get(slot)) != null) {
+			final int home = LongHashMap.hash(entry.mKey) & mask;
+			if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+				table.set(gap, entry);
+				gap = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		table.set(gap, null);
+		mTileCount--;
+		return removed;
+	}
+
+	private void recycle(final Drawable aDrawable) {
+		removeBitmap(aDrawable);
+		if (aDrawable instanceof ExpirableBitmapDrawable) {
+			// it may share its bitmap with other tiles
+			((ExpirableBitmapDrawable) aDrawable).recycle();
+		} else if (aDrawable instanceof BitmapDrawable) {
+			final Bitmap bitmap = ((BitmapDrawable) aDrawable).getBitmap();
 			if (bitmap != null) {
 				bitmap.recycle();
 			}
 		}
-		return drawable;
 	}
 
-	@Override
-	protected boolean removeEldestEntry(
-			final java.util.Map.Entry<MapTile, Drawable> aEldest) {
-		if (size() > mCapacity) {
-			final MapTile eldest = aEldest.getKey();
-			if (DEBUGMODE) {
-				Log.d("MapsAPI","LRUMapTileCache: Remove old tile: " + eldest);
-			}
-			remove(eldest);
-			// don't return true because we've already removed it
+	private void addBitmap(final Drawable aDrawable) {
+		if (!(aDrawable instanceof BitmapDrawable)) {
+			return;
+		}
+		final Bitmap bitmap = ((BitmapDrawable) aDrawable).getBitmap();
+		if (bitmap == null) {
+			return;
+		}
+		final int[] usage = mBitmaps.get(bitmap);
+		if (usage != null) {
+			usage[0]++;
+		} else {
+			final int size = bitmap.getRowBytes() * bitmap.getHeight();
+			mBitmaps.put(bitmap, new int[] { 1, size });
+			mSize += size;
+		}
+	}
+
+	private void removeBitmap(final Drawable aDrawable) {
+		if (!(aDrawable instanceof BitmapDrawable)) {
+			return;
+		}
+		final Bitmap bitmap = ((BitmapDrawable) aDrawable).getBitmap();
+		final int[] usage = bitmap == null ? null : mBitmaps.get(bitmap);
+		if (usage != null && --usage[0] == 0) {
+			mBitmaps.remove(bitmap);
+			mSize -= usage[1];
+		}
+	}
+
+	private static class Entry {
+		private final long mKey;
+		private volatile Drawable mDrawable;
+		// set when the tile is read, cleared when the clock hand passes it
+		private volatile boolean mReferenced;
+
+		private Entry(final long pKey, final Drawable pDrawable) {
+			mKey = pKey;
+			mDrawable = pDrawable;
 		}
-		return false;
 	}
 }
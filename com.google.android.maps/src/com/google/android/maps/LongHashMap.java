@@ -0,0 +1,215 @@
+package com.google.android.maps;
+
+import java.util.Arrays;
+
+/**
+ * A map from long keys, such as {@link MapTile#getKey() tile keys}, to
+ * objects. It uses open addressing over primitive arrays, so it doesn't box the
+ * keys or allocate entries, and once it has grown to its working size putting,
+ * getting and clearing don't allocate at all. Null values aren't allowed. It
+ * isn't synchronized.
+ */
+class LongHashMap<V> {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final int MINIMUM_CAPACITY = 16;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private long[] mKeys;
+	private Object[] mValues;
+	private int mSize;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public LongHashMap() {
+		this(MINIMUM_CAPACITY);
+	}
+
+	/**
+	 * @param pExpectedSize
+	 *            the number of entries it should hold without growing
+	 */
+	public LongHashMap(final int pExpectedSize) {
+		int capacity = MINIMUM_CAPACITY;
+		while (capacity * 3 < pExpectedSize * 4) {
+			capacity *= 2;
+		}
+		mKeys = new long[capacity];
+		mValues = new Object[capacity];
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public int size() {
+		return mSize;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	/**
+	 * @return the number of slots, to iterate with {@link #getValueAt(int)}
+	 */
+	public int capacity() {
+		return mKeys.length;
+	}
+
+	/**
+	 * @return the key in the slot, which is undefined if the slot is empty
+	 */
+	public long getKeyAt(final int pSlot) {
+		return mKeys[pSlot];
+	}
+
+	/**
+	 * @return the value in the slot, or null if the slot is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public V getValueAt(final int pSlot) {
+		return (V) mValues[pSlot];
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Mix the bits of a key, so that neighbouring tiles don't cluster.
+	 */
+	static int hash(final long pKey) {
+		long h = pKey * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 32;
+		return (int) h;
+	}
+
+	/**
+	 * @return the value of the key, or null if it isn't in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(final long pKey) {
+		final int mask = mKeys.length - 1;
+		int slot = hash(pKey) & mask;
+		while (mValues[slot] != null) {
+			if (mKeys[slot] == pKey) {
+				return (V) mValues[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	public boolean containsKey(final long pKey) {
+		return get(pKey) != null;
+	}
+
+	/**
+	 * Add or replace an entry.
+	 *
+	 * @return the value it replaced, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(final long pKey, final V pValue) {
+		if (pValue == null) {
+			throw new IllegalArgumentException("null value");
+		}
+		if ((mSize + 1) * 4 > mKeys.length * 3) {
+			resize(mKeys.length * 2);
+		}
+		final int mask = mKeys.length - 1;
+		int slot = hash(pKey) & mask;
+		while (mValues[slot] != null) {
+			if (mKeys[slot] == pKey) {
+				final V previous = (V) mValues[slot];
+				mValues[slot] = pValue;
+				return previous;
+			}
+			slot = (slot + 1) & mask;
+		}
+		mKeys[slot] = pKey;
+		mValues[slot] = pValue;
+		mSize++;
+		return null;
+	}
+
+	/**
+	 * @return the value that was removed, or null if the key wasn't in the map
+	 */
+	public V remove(final long pKey) {
+		final int mask = mKeys.length - 1;
+		int slot = hash(pKey) & mask;
+		while (mValues[slot] != null) {
+			if (mKeys[slot] == pKey) {
+				final V previous = getValueAt(slot);
+				removeAt(slot);
+				return previous;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Remove the entry in a slot. Entries after it move back to close the gap,
+	 * so when iterating over the slots the current slot has to be checked
+	 * again.
+	 */
+	public void removeAt(final int pSlot) {
+		final int mask = mKeys.length - 1;
+		int gap = pSlot;
+		int slot = (pSlot + 1) & mask;
+		while (mValues[slot] != null) {
+			final int home = hash(mKeys[slot]) & mask;
+			// move the entry into the gap unless its home is between the gap
+			// and the entry
+			if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+				mKeys[gap] = mKeys[slot];
+				mValues[gap] = mValues[slot];
+				gap = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		mValues[gap] = null;
+		mSize--;
+	}
+
+	/**
+	 * Remove all entries, keeping the capacity.
+	 */
+	public void clear() {
+		if (mSize > 0) {
+			Arrays.fill(mValues, null);
+			mSize = 0;
+		}
+	}
+
+	private void resize(final int pCapacity) {
+		final long[] keys = mKeys;
+		final Object[] values = mValues;
+		mKeys = new long[pCapacity];
+		mValues = new Object[pCapacity];
+		mSize = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (values[i] != null) {
+				final int mask = pCapacity - 1;
+				int slot = hash(keys[i]) & mask;
+				while (mValues[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				mKeys[slot] = keys[i];
+				mValues[slot] = values[i];
+				mSize++;
+			}
+		}
+	}
+}
@@ -0,0 +1,678 @@
+package com.google.android.maps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * An implementation of {@link IFilesystemCache} that stores the tiles of every
+ * tile source in an MBTiles database. Identical tiles, like those of the open
+ * sea, are stored once using the map and images tables of the MBTiles spec, and
+ * the tiles table is a view of them, so the database is also a normal MBTiles
+ * archive. Saved tiles are written by a background thread in batches of one
+ * transaction each. The database uses write-ahead logging so that tiles can be
+ * read while a batch is written. Use it with a {@link MapTileDatabaseProvider}.
+ * If the cache exceeds 600 Mb then the least recently saved tiles are removed
+ * until it's down to 500 Mb.
+ */
+public class MBTilesCache implements IFilesystemCache,
+		OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	/** the most tiles written in one transaction */
+	private static final int BATCH_SIZE = 64;
+
+	/** how long the writer waits for a batch to fill up */
+	private static final long BATCH_DELAY_MILLISECONDS = 500;
+
+	/** saving a tile waits while this many tiles are waiting to be written */
+	private static final int MAXIMUM_PENDING_SIZE = BATCH_SIZE * 8;
+
+	/** the number of tiles removed at a time when trimming */
+	private static final int TRIM_BATCH_SIZE = 1000;
+
+	private static final String[] SQL_CREATE = {
+			"CREATE TABLE IF NOT EXISTS map (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_id TEXT, saved_time INTEGER, etag TEXT, last_modified TEXT, expires INTEGER)",
+			"CREATE UNIQUE INDEX IF NOT EXISTS map_index ON map (zoom_level, tile_column, tile_row)",
+			"CREATE INDEX IF NOT EXISTS map_tile_id ON map (tile_id)",
+			"CREATE INDEX IF NOT EXISTS map_saved_time ON map (saved_time)",
+			"CREATE TABLE IF NOT EXISTS images (tile_data BLOB, tile_id TEXT)",
+			"CREATE UNIQUE INDEX IF NOT EXISTS images_id ON images (tile_id)",
+			"CREATE VIEW IF NOT EXISTS tiles AS SELECT map.zoom_level AS zoom_level, map.tile_column AS tile_column, map.tile_row AS tile_row, images.tile_data AS tile_data FROM map JOIN images ON images.tile_id = map.tile_id",
+			"CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)",
+			"CREATE UNIQUE INDEX IF NOT EXISTS metadata_name ON metadata (name)" };
+
+	private static final String SQL_INSERT_IMAGE = "INSERT OR IGNORE INTO images (tile_id, tile_data) VALUES (?, ?)";
+
+	private static final String SQL_INSERT_MAP = "INSERT OR REPLACE INTO map (zoom_level, tile_column, tile_row, tile_id, saved_time, etag, last_modified, expires) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+	private static final String SQL_REFRESH = "UPDATE map SET saved_time=?, etag=?, last_modified=?, expires=? WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+
+	private static final String SQL_READ = "SELECT map.saved_time, map.etag, map.last_modified, map.expires, images.tile_data FROM map JOIN images ON images.tile_id = map.tile_id WHERE map.zoom_level=? AND map.tile_column=? AND map.tile_row=?";
+
+	private static final String SQL_READ_METADATA = "SELECT saved_time, etag, last_modified, expires FROM map WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final File mBaseDirectory;
+
+	private final HashMap<String, Store> mStores = new HashMap<String, Store>();
+
+	/** the tiles waiting to be written, oldest first */
+	private final List<PendingTile> mPending = new ArrayList<PendingTile>();
+
+	/**
+	 * the newest pending write of each tile by source and tile key, guarded by
+	 * {@link #mPending}
+	 */
+	private final HashMap<String, LongHashMap<PendingTile>> mPendingBySource = new HashMap<String, LongHashMap<PendingTile>>();
+
+	/** the thread writing the pending tiles, or null if there are none */
+	private Thread mWriter;
+
+	private boolean mClosed;
+
+	/** only used by the writer */
+	private MessageDigest mDigest;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public MBTilesCache() {
+		this(TILE_DATABASE_PATH_BASE);
+	}
+
+	public MBTilesCache(final File pBaseDirectory) {
+		mBaseDirectory = pBaseDirectory;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * Get the amount of disk space used by the tiles in the databases that
+	 * have been opened.
+	 *
+	 * @return size in bytes
+	 */
+	public long getUsedCacheSpace() {
+		long length = 0;
+		for (final Store store : getStores()) {
+			length += store.getUsedSpace();
+		}
+		return length;
+	}
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public boolean saveFile(final ITileSource pTileSource, final MapTile pTile,
+			final InputStream pStream) {
+		return saveFile(pTileSource, pTile, pStream, null);
+	}
+
+	@Override
+	public boolean saveFile(final ITileSource pTileSource, final MapTile pTile,
+			final InputStream pStream, final MapTileMetadata pMetadata) {
+		final ByteArrayOutputStream data = new ByteArrayOutputStream(
+				StreamUtils.IO_BUFFER_SIZE);
+		try {
+			StreamUtils.copy(pStream, data);
+		} catch (final IOException e) {
+			Log.w("MapsAPI", "MBTilesCache: Error saving " + pTile + " : " + e);
+			return false;
+		}
+		return addPending(new PendingTile(pTileSource.name(), pTile,
+				data.toByteArray(), pMetadata, System.currentTimeMillis()));
+	}
+
+	@Override
+	public MapTileMetadata getMetadata(final ITileSource pTileSource,
+			final MapTile pTile) {
+		final Record record = read(pTileSource, pTile, false);
+		return record != null ? record.mMetadata : null;
+	}
+
+	@Override
+	public boolean refreshFile(final ITileSource pTileSource,
+			final MapTile pTile, final MapTileMetadata pMetadata) {
+		if (read(pTileSource, pTile, false) == null) {
+			return false;
+		}
+		return addPending(new PendingTile(pTileSource.name(), pTile, null,
+				pMetadata, System.currentTimeMillis()));
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Read a tile, including one that is still waiting to be written.
+	 *
+	 * @return the tile, or null if it isn't in the cache
+	 */
+	Record read(final ITileSource pTileSource, final MapTile pTile) {
+		return read(pTileSource, pTile, true);
+	}
+
+	private Record read(final ITileSource pTileSource, final MapTile pTile,
+			final boolean pWithData) {
+		final PendingTile pending = getPending(pTileSource.name(), pTile);
+		if (pending != null && pending.mData != null) {
+			return new Record(pending.mSavedTime, pending.mMetadata,
+					pending.mData);
+		}
+
+		final Store store = getStore(pTileSource.name(), false);
+		if (store == null) {
+			return null;
+		}
+		final Record record = store.read(pTile, pWithData);
+		if (record != null && pending != null) {
+			// it's waiting to be refreshed
+			return new Record(pending.mSavedTime, pending.mMetadata,
+					record.mData);
+		}
+		return record;
+	}
+
+	/**
+	 * Write the pending tiles and close the databases. The cache can't be used
+	 * afterwards.
+	 */
+	public void close() {
+		synchronized (mPending) {
+			mClosed = true;
+			mPending.notifyAll();
+			while (mWriter != null) {
+				try {
+					mPending.wait();
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+		}
+		synchronized (mStores) {
+			for (final Store store : mStores.values()) {
+				store.close();
+			}
+			mStores.clear();
+		}
+	}
+
+	private boolean addPending(final PendingTile pTile) {
+		synchronized (mPending) {
+			while (mPending.size() >= MAXIMUM_PENDING_SIZE && !mClosed) {
+				try {
+					mPending.wait();
+				} catch (final InterruptedException e) {
+					return false;
+				}
+			}
+			if (mClosed) {
+				return false;
+			}
+			mPending.add(pTile);
+			LongHashMap<PendingTile> tiles = mPendingBySource.get(pTile.mSource);
+			if (tiles == null) {
+				tiles = new LongHashMap<PendingTile>();
+				mPendingBySource.put(pTile.mSource, tiles);
+			}
+			tiles.put(pTile.mTile.getKey(), pTile);
+			if (mWriter == null) {
+				mWriter = new Thread() {
+					@Override
+					public void run() {
+						writePending();
+					}
+				};
+				mWriter.setPriority(Thread.MIN_PRIORITY);
+				mWriter.start();
+			} else if (mPending.size() >= BATCH_SIZE) {
+				mPending.notifyAll();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @return the newest pending write of a tile, or null
+	 */
+	private PendingTile getPending(final String pSource, final MapTile pTile) {
+		synchronized (mPending) {
+			final LongHashMap<PendingTile> tiles = mPendingBySource.get(pSource);
+			return tiles != null ? tiles.get(pTile.getKey()) : null;
+		}
+	}
+
+	/**
+	 * Remove the written tiles from the pending tiles, but not the newer
+	 * writes of them.
+	 */
+	private void removePending(final List<PendingTile> pBatch) {
+		mPending.subList(0, pBatch.size()).clear();
+		for (final PendingTile tile : pBatch) {
+			final LongHashMap<PendingTile> tiles = mPendingBySource
+					.get(tile.mSource);
+			final long key = tile.mTile.getKey();
+			if (tiles.get(key) == tile) {
+				tiles.remove(key);
+				if (tiles.isEmpty()) {
+					mPendingBySource.remove(tile.mSource);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the pending tiles in batches until there are none left. The tiles
+	 * stay pending until their batch is committed, so that they can be read.
+	 */
+	private void writePending() {
+		for (;;) {
+			final List<PendingTile> batch;
+			synchronized (mPending) {
+				if (!mClosed && mPending.size() < BATCH_SIZE) {
+					try {
+						mPending.wait(BATCH_DELAY_MILLISECONDS);
+					} catch (final InterruptedException e) {
+						// write what there is
+					}
+				}
+				if (mPending.isEmpty()) {
+					mWriter = null;
+					mPending.notifyAll();
+					return;
+				}
+				batch = new ArrayList<PendingTile>(mPending.subList(0,
+						Math.min(BATCH_SIZE, mPending.size())));
+			}
+
+			write(batch);
+
+			synchronized (mPending) {
+				removePending(batch);
+				mPending.notifyAll();
+			}
+
+			cutCurrentCache();
+		}
+	}
+
+	private void write(final List<PendingTile> pBatch) {
+		final HashMap<String, List<PendingTile>> bySource = new HashMap<String, List<PendingTile>>();
+		for (final PendingTile tile : pBatch) {
+			List<PendingTile> tiles = bySource.get(tile.mSource);
+			if (tiles == null) {
+				tiles = new ArrayList<PendingTile>();
+				bySource.put(tile.mSource, tiles);
+			}
+			tiles.add(tile);
+		}
+
+		for (final List<PendingTile> tiles : bySource.values()) {
+			final Store store = getStore(tiles.get(0).mSource, true);
+			if (store == null) {
+				continue;
+			}
+			try {
+				store.write(tiles, getDigest());
+			} catch (final SQLiteException e) {
+				Log.w("MapsAPI", "MBTilesCache: Error writing "
+						+ tiles.size() + " tiles : " + e);
+			}
+		}
+	}
+
+	private MessageDigest getDigest() {
+		if (mDigest == null) {
+			try {
+				mDigest = MessageDigest.getInstance("MD5");
+			} catch (final NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e.toString());
+			}
+		}
+		return mDigest;
+	}
+
+	/**
+	 * @param pCreate
+	 *            whether to create the database if there is none, which only
+	 *            the writer does
+	 * @return the database of a tile source, or null if there is none or it
+	 *         can't be opened
+	 */
+	private Store getStore(final String pName, final boolean pCreate) {
+		synchronized (mStores) {
+			Store store = mStores.get(pName);
+			if (store == null) {
+				final File file = new File(mBaseDirectory, pName + ".mbtiles");
+				if (!pCreate && !file.exists()) {
+					return null;
+				}
+				try {
+					mBaseDirectory.mkdirs();
+					store = new Store(file, pName);
+				} catch (final SQLiteException e) {
+					Log.w("MapsAPI", "MBTilesCache: Can't open database of "
+							+ pName + " : " + e);
+					return null;
+				}
+				mStores.put(pName, store);
+			}
+			return store;
+		}
+	}
+
+	private List<Store> getStores() {
+		synchronized (mStores) {
+			return new ArrayList<Store>(mStores.values());
+		}
+	}
+
+	/**
+	 * If the cache size is greater than the max then remove the least recently
+	 * saved tiles until it's down to the trim level. Only the writer calls
+	 * this.
+	 */
+	private void cutCurrentCache() {
+		long usedCacheSpace = getUsedCacheSpace();
+		if (usedCacheSpace <= TILE_MAX_CACHE_SIZE_BYTES) {
+			return;
+		}
+
+		Log.i("MapsAPI", "MBTilesCache: Trimming tile cache from "
+				+ usedCacheSpace + " to " + TILE_TRIM_CACHE_SIZE_BYTES);
+
+		while (usedCacheSpace > TILE_TRIM_CACHE_SIZE_BYTES) {
+			Store oldest = null;
+			long oldestTime = Long.MAX_VALUE;
+			for (final Store store : getStores()) {
+				final long time = store.getOldestSavedTime();
+				if (time < oldestTime) {
+					oldest = store;
+					oldestTime = time;
+				}
+			}
+			try {
+				if (oldest == null || oldest.removeOldest(TRIM_BATCH_SIZE) == 0) {
+					break;
+				}
+			} catch (final SQLiteException e) {
+				Log.w("MapsAPI", "MBTilesCache: Error trimming : " + e);
+				break;
+			}
+			usedCacheSpace = getUsedCacheSpace();
+		}
+
+		Log.i("MapsAPI", "MBTilesCache: Finished trimming tile cache");
+	}
+
+	private static String toHex(final byte[] pBytes) {
+		final StringBuilder hex = new StringBuilder(pBytes.length * 2);
+		for (final byte b : pBytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * A tile read from the cache.
+	 */
+	static class Record {
+		final long mSavedTime;
+		/** the metadata, or null if it was saved without */
+		final MapTileMetadata mMetadata;
+		/** the tile, or null if only the metadata was read */
+		final byte[] mData;
+
+		Record(final long pSavedTime, final MapTileMetadata pMetadata,
+				final byte[] pData) {
+			mSavedTime = pSavedTime;
+			mMetadata = pMetadata;
+			mData = pData;
+		}
+	}
+
+	/**
+	 * A tile that is waiting to be written, or to be refreshed if it has no
+	 * data.
+	 */
+	private static class PendingTile {
+		final String mSource;
+		final MapTile mTile;
+		final byte[] mData;
+		final MapTileMetadata mMetadata;
+		final long mSavedTime;
+
+		PendingTile(final String pSource, final MapTile pTile,
+				final byte[] pData, final MapTileMetadata pMetadata,
+				final long pSavedTime) {
+			mSource = pSource;
+			mTile = pTile;
+			mData = pData;
+			mMetadata = pMetadata;
+			mSavedTime = pSavedTime;
+		}
+	}
+
+	/**
+	 * The database of a tile source.
+	 */
+	private static class Store {
+		private final SQLiteDatabase mDatabase;
+
+		// compiled by the writer, which is the only one to use them
+		private SQLiteStatement mInsertImage;
+		private SQLiteStatement mInsertMap;
+		private SQLiteStatement mRefresh;
+
+		Store(final File pFile, final String pName) throws SQLiteException {
+			mDatabase = SQLiteDatabase.openDatabase(pFile.getPath(), null,
+					SQLiteDatabase.CREATE_IF_NECESSARY
+							| SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+			try {
+				mDatabase.enableWriteAheadLogging();
+				for (final String sql : SQL_CREATE) {
+					mDatabase.execSQL(sql);
+				}
+				mDatabase.execSQL(
+						"INSERT OR IGNORE INTO metadata (name, value) VALUES (?, ?)",
+						new Object[] { "name", pName });
+			} catch (final SQLiteException e) {
+				mDatabase.close();
+				throw e;
+			}
+		}
+
+		Record read(final MapTile pTile, final boolean pWithData) {
+			final int zoom = pTile.getZoomLevel();
+			try {
+				final Cursor cur = mDatabase.rawQueryWithFactory(
+						new MBTilesFileArchive.IntegerArguments(zoom, pTile
+								.getX(), MBTilesFileArchive.getRow(zoom, pTile
+								.getY())), pWithData ? SQL_READ
+								: SQL_READ_METADATA, null, null);
+				try {
+					if (!cur.moveToFirst()) {
+						return null;
+					}
+					final String eTag = cur.getString(1);
+					final String lastModified = cur.getString(2);
+					final long expires = cur.getLong(3);
+					final MapTileMetadata metadata = eTag != null
+							|| lastModified != null || expires != 0 ? new MapTileMetadata(
+							eTag, lastModified, expires) : null;
+					return new Record(cur.getLong(0), metadata,
+							pWithData ? cur.getBlob(4) : null);
+				} finally {
+					cur.close();
+				}
+			} catch (final SQLiteException e) {
+				Log.w("MapsAPI", "MBTilesCache: Error reading " + pTile + " : "
+						+ e);
+				return null;
+			}
+		}
+
+		void write(final List<PendingTile> pTiles, final MessageDigest pDigest)
+				throws SQLiteException {
+			if (mInsertImage == null) {
+				mInsertImage = mDatabase.compileStatement(SQL_INSERT_IMAGE);
+				mInsertMap = mDatabase.compileStatement(SQL_INSERT_MAP);
+				mRefresh = mDatabase.compileStatement(SQL_REFRESH);
+			}
+
+			mDatabase.beginTransaction();
+			try {
+				for (final PendingTile tile : pTiles) {
+					final MapTileMetadata metadata = tile.mMetadata;
+					final int zoom = tile.mTile.getZoomLevel();
+					final int row = MBTilesFileArchive.getRow(zoom,
+							tile.mTile.getY());
+
+					final SQLiteStatement statement;
+					int index = 1;
+					if (tile.mData == null) {
+						statement = mRefresh;
+					} else {
+						final String tileId = toHex(pDigest.digest(tile.mData));
+						mInsertImage.bindString(1, tileId);
+						mInsertImage.bindBlob(2, tile.mData);
+						mInsertImage.executeInsert();
+
+						statement = mInsertMap;
+						statement.bindLong(index++, zoom);
+						statement.bindLong(index++, tile.mTile.getX());
+						statement.bindLong(index++, row);
+						statement.bindString(index++, tileId);
+					}
+
+					statement.bindLong(index++, tile.mSavedTime);
+					bindString(statement, index++,
+							metadata != null ? metadata.getETag() : null);
+					bindString(statement, index++,
+							metadata != null ? metadata.getLastModified() : null);
+					statement.bindLong(index++,
+							metadata != null ? metadata.getExpires() : 0);
+
+					if (tile.mData == null) {
+						statement.bindLong(index++, zoom);
+						statement.bindLong(index++, tile.mTile.getX());
+						statement.bindLong(index++, row);
+						statement.executeUpdateDelete();
+					} else {
+						statement.executeInsert();
+					}
+				}
+				mDatabase.setTransactionSuccessful();
+			} finally {
+				mDatabase.endTransaction();
+			}
+		}
+
+		long getUsedSpace() {
+			try {
+				return (queryLong("PRAGMA page_count") - queryLong("PRAGMA freelist_count"))
+						* queryLong("PRAGMA page_size");
+			} catch (final SQLiteException e) {
+				return 0;
+			}
+		}
+
+		/**
+		 * @return the time the oldest tile was saved, or
+		 *         {@link Long#MAX_VALUE} if there are none
+		 */
+		long getOldestSavedTime() {
+			try {
+				final Cursor cur = mDatabase.rawQuery(
+						"SELECT MIN(saved_time) FROM map", null);
+				try {
+					return cur.moveToFirst() && !cur.isNull(0) ? cur.getLong(0)
+							: Long.MAX_VALUE;
+				} finally {
+					cur.close();
+				}
+			} catch (final SQLiteException e) {
+				return Long.MAX_VALUE;
+			}
+		}
+
+		/**
+		 * Remove the least recently saved tiles, and the images no tile uses
+		 * any more.
+		 *
+		 * @return the number of tiles removed
+		 */
+		int removeOldest(final int pCount) throws SQLiteException {
+			mDatabase.beginTransaction();
+			try {
+				final SQLiteStatement delete = mDatabase
+						.compileStatement("DELETE FROM map WHERE rowid IN (SELECT rowid FROM map ORDER BY saved_time LIMIT "
+								+ pCount + ")");
+				final int removed = delete.executeUpdateDelete();
+				delete.close();
+				mDatabase.execSQL("DELETE FROM images WHERE tile_id NOT IN (SELECT tile_id FROM map)");
+				mDatabase.setTransactionSuccessful();
+				return removed;
+			} finally {
+				mDatabase.endTransaction();
+			}
+		}
+
+		void close() {
+			if (mInsertImage != null) {
+				mInsertImage.close();
+				mInsertMap.close();
+				mRefresh.close();
+			}
+			mDatabase.close();
+		}
+
+		private long queryLong(final String pSql) {
+			final Cursor cur = mDatabase.rawQuery(pSql, null);
+			try {
+				return cur.moveToFirst() ? cur.getLong(0) : 0;
+			} finally {
+				cur.close();
+			}
+		}
+
+		private static void bindString(final SQLiteStatement pStatement,
+				final int pIndex, final String pValue) {
+			if (pValue != null) {
+				pStatement.bindString(pIndex, pValue);
+			} else {
+				pStatement.bindNull(pIndex);
+			}
+		}
+	}
+}
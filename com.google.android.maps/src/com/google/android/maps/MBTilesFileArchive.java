@@ -1,12 +1,22 @@
 package com.google.android.maps;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Point;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 public class MBTilesFileArchive implements IArchiveFile {
@@ -21,6 +31,27 @@ public class MBTilesFileArchive implements IArchiveFile {
 	public final static String COL_TILES_TILE_ROW = "tile_row";
 	public final static String COL_TILES_TILE_DATA = "tile_data";
 
+	// TABLE metadata (name TEXT, value TEXT);
+	public final static String TABLE_METADATA = "metadata";
+	public final static String COL_METADATA_NAME = "name";
+	public final static String COL_METADATA_VALUE = "value";
+
+	/** the highest zoom level a range is computed for from the bounds */
+	private final static int MAXIMUM_ZOOMLEVEL = 30;
+
+	private final static double MAXIMUM_LATITUDE = 85.05112878;
+
+	private final static String SQL_TILE = "SELECT " + COL_TILES_TILE_DATA
+			+ " FROM " + TABLE_TILES + " WHERE " + COL_TILES_ZOOM_LEVEL
+			+ "=? AND " + COL_TILES_TILE_COLUMN + "=? AND "
+			+ COL_TILES_TILE_ROW + "=?";
+
+	private final static String SQL_TILES = "SELECT " + COL_TILES_TILE_COLUMN
+			+ ", " + COL_TILES_TILE_ROW + ", " + COL_TILES_TILE_DATA + " FROM "
+			+ TABLE_TILES + " WHERE " + COL_TILES_ZOOM_LEVEL + "=? AND "
+			+ COL_TILES_TILE_COLUMN + " BETWEEN ? AND ? AND "
+			+ COL_TILES_TILE_ROW + " BETWEEN ? AND ?";
+
 	public static MBTilesFileArchive getDatabaseFileArchive(final File pFile)
 			throws SQLiteException {
 		return new MBTilesFileArchive(SQLiteDatabase.openDatabase(
@@ -29,34 +60,230 @@ public class MBTilesFileArchive implements IArchiveFile {
 						| SQLiteDatabase.OPEN_READONLY));
 	}
 
+	private List<MapTileRange> mTileRanges;
+
+	/** the tile range of every zoom level, or null where there are no tiles */
+	private volatile MapTileRange[] mRangeByZoom;
+
+	// from the metadata table
+	private int mMinimumZoomLevel = -1;
+	private int mMaximumZoomLevel = -1;
+	/** west, south, east, north, or null */
+	private double[] mBounds;
+	private String mFormat;
+
+	/** the statements compiled by {@link #mTileStatement}, to close them */
+	private final List<SQLiteStatement> mStatements = new ArrayList<SQLiteStatement>();
+
+	/**
+	 * A statement can't be used by several threads at once, so every thread
+	 * compiles its own one.
+	 */
+	private final ThreadLocal<SQLiteStatement> mTileStatement = new ThreadLocal<SQLiteStatement>() {
+		@Override
+		protected SQLiteStatement initialValue() {
+			final SQLiteStatement statement = mDatabase
+					.compileStatement(SQL_TILE);
+			synchronized (mStatements) {
+				mStatements.add(statement);
+			}
+			return statement;
+		}
+	};
+
+	/**
+	 * Binds the arguments of a query as integers. The arguments of a cursor
+	 * query are bound as strings, which only match integer columns through
+	 * their type affinity. {@link MBTilesCache} uses it too.
+	 */
+	static class IntegerArguments implements
+			SQLiteDatabase.CursorFactory {
+		private final long[] mArguments;
+
+		IntegerArguments(final long... pArguments) {
+			mArguments = pArguments;
+		}
+
+		@Override
+		public Cursor newCursor(final SQLiteDatabase pDatabase,
+				final SQLiteCursorDriver pDriver, final String pEditTable,
+				final SQLiteQuery pQuery) {
+			for (int i = 0; i < mArguments.length; i++) {
+				pQuery.bindLong(i + 1, mArguments[i]);
+			}
+			return new SQLiteCursor(pDriver, pEditTable, pQuery);
+		}
+	}
+
 	private MBTilesFileArchive(final SQLiteDatabase pDatabase) {
 		mDatabase = pDatabase;
+		readMetadata();
+	}
+
+	/**
+	 * @return the image format of the tiles from the metadata, usually "png"
+	 *         or "jpg", or null if the archive doesn't say
+	 */
+	public String getFormat() {
+		return mFormat;
+	}
+
+	/**
+	 * @return the lowest zoom level of the archive, or -1 if it has no tiles
+	 */
+	public int getMinimumZoomLevel() {
+		final MapTileRange[] ranges = getRangeByZoom();
+		for (int zoom = 0; zoom < ranges.length; zoom++) {
+			if (ranges[zoom] != null) {
+				return zoom;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the highest zoom level of the archive, or -1 if it has no tiles
+	 */
+	public int getMaximumZoomLevel() {
+		final MapTileRange[] ranges = getRangeByZoom();
+		for (int zoom = ranges.length - 1; zoom >= 0; zoom--) {
+			if (ranges[zoom] != null) {
+				return zoom;
+			}
+		}
+		return -1;
+	}
+
+	private void readMetadata(final String pName, final String pValue) {
+		if (pName == null || pValue == null) {
+			return;
+		}
+		try {
+			if (pName.equals("minzoom")) {
+				mMinimumZoomLevel = Integer.parseInt(pValue.trim());
+			} else if (pName.equals("maxzoom")) {
+				mMaximumZoomLevel = Integer.parseInt(pValue.trim());
+			} else if (pName.equals("bounds")) {
+				final String[] bounds = pValue.split(",");
+				if (bounds.length == 4) {
+					mBounds = new double[4];
+					for (int i = 0; i < 4; i++) {
+						mBounds[i] = Double.parseDouble(bounds[i].trim());
+					}
+				}
+			} else if (pName.equals("format")) {
+				mFormat = pValue;
+			}
+		} catch (final NumberFormatException e) {
+			Log.w("MapsAPI", "MBTilesFileArchive: Bad metadata " + pName + "="
+					+ pValue + ": " + mDatabase.getPath());
+			if (pName.equals("bounds")) {
+				mBounds = null;
+			}
+		}
+	}
+
+	/**
+	 * Read the zoom levels, bounds and format from the metadata table. Any of
+	 * them may be missing or malformed, in which case the tiles table is asked.
+	 */
+	private void readMetadata() {
+		try {
+			final Cursor cur = mDatabase.rawQuery("SELECT "
+					+ COL_METADATA_NAME + ", " + COL_METADATA_VALUE + " FROM "
+					+ TABLE_METADATA, null);
+			try {
+				while (cur.moveToNext()) {
+					readMetadata(cur.getString(0), cur.getString(1));
+				}
+			} finally {
+				cur.close();
+			}
+		} catch (final SQLiteException e) {
+			Log.w("MapsAPI", "MBTilesFileArchive: Error reading metadata: "
+					+ mDatabase.getPath(), e);
+		}
+	}
+
+	private MapTileRange[] getRangeByZoom() {
+		MapTileRange[] ranges = mRangeByZoom;
+		if (ranges == null) {
+			getTileRanges();
+			ranges = mRangeByZoom;
+		}
+		return ranges;
+	}
+
+	/**
+	 * Get the range of the bounds from the metadata at a zoom level, or of the
+	 * whole world if there are no bounds.
+	 */
+	private MapTileRange getBoundsRange(final int pZoomLevel) {
+		final int max = (1 << pZoomLevel) - 1;
+		if (mBounds == null) {
+			return new MapTileRange(pZoomLevel, 0, 0, max, max);
+		}
+
+		final Point topLeft = Mercator.projectGeoPoint(
+				clampLatitude(mBounds[3]), mBounds[0], pZoomLevel, null);
+		final Point bottomRight = Mercator.projectGeoPoint(
+				clampLatitude(mBounds[1]), mBounds[2], pZoomLevel, null);
+		int left = clamp(topLeft.x, max);
+		int right = clamp(bottomRight.x, max);
+		if (left > right) {
+			// the bounds cross the antimeridian
+			left = 0;
+			right = max;
+		}
+		return new MapTileRange(pZoomLevel, left, clamp(topLeft.y, max), right,
+				clamp(bottomRight.y, max));
+	}
+
+	private static double clampLatitude(final double pLatitude) {
+		return Math.max(-MAXIMUM_LATITUDE,
+				Math.min(MAXIMUM_LATITUDE, pLatitude));
+	}
+
+	private static int clamp(final int pValue, final int pMax) {
+		return pValue < 0 ? 0 : pValue > pMax ? pMax : pValue;
+	}
+
+	/**
+	 * Get the row of a tile in the TMS tiling scheme, which counts from the
+	 * bottom.
+	 */
+	static int getRow(final int pZoomLevel, final int pY) {
+		return (1 << pZoomLevel) - 1 - pY;
 	}
 
+	/**
+	 * The tile is read with a statement that's compiled once per thread and
+	 * binds the zoom level, column and row as integers, which a cursor query
+	 * can't do. The data is copied once into shared memory and read through a
+	 * file descriptor, just as a cursor would copy it into its window.
+	 */
 	@Override
 	public InputStream getInputStream(final ITileSource pTileSource,
 			final MapTile pTile) {
+		final MapTileRange[] ranges = getRangeByZoom();
+		final int zoom = pTile.getZoomLevel();
+		if (zoom < 0 || zoom >= ranges.length || ranges[zoom] == null
+				|| !ranges[zoom].contains(pTile)) {
+			return null;
+		}
+
 		try {
-			InputStream ret = null;
-			final String[] tile = { COL_TILES_TILE_DATA };
-			final String[] xyz = {
-					Integer.toString(pTile.getX()),
-					Double.toString(Math.pow(2, pTile.getZoomLevel())
-							- pTile.getY() - 1) // Use Google Tiling Spec
-					, Integer.toString(pTile.getZoomLevel()) };
-
-			final Cursor cur = mDatabase.query(TABLE_TILES, tile,
-					"tile_column=? and tile_row=? and zoom_level=?", xyz, null,
-					null, null);
-
-			if (cur.getCount() != 0) {
-				cur.moveToFirst();
-				ret = new ByteArrayInputStream(cur.getBlob(0));
-			}
-			cur.close();
-			if (ret != null) {
-				return ret;
+			final SQLiteStatement statement = mTileStatement.get();
+			statement.bindLong(1, pTile.getZoomLevel());
+			statement.bindLong(2, pTile.getX());
+			statement.bindLong(3, getRow(pTile.getZoomLevel(), pTile.getY()));
+			final ParcelFileDescriptor data = statement
+					.simpleQueryForBlobFileDescriptor();
+			if (data != null) {
+				return new ParcelFileDescriptor.AutoCloseInputStream(data);
 			}
+		} catch (final SQLiteDoneException e) {
+			// the archive doesn't have the tile
 		} catch (final Throwable e) {
 			Log.w("MapsAPI", "MBTilesFileArchive: Error getting db stream: "
 					+ pTile, e);
@@ -65,6 +292,106 @@ public class MBTilesFileArchive implements IArchiveFile {
 		return null;
 	}
 
+	/**
+	 * Get the data of all the tiles in a range with one query.
+	 * 
+	 * @return the data of the tiles the archive has
+	 */
+	public Map<MapTile, byte[]> getTiles(final MapTileRange pRange) {
+		final Map<MapTile, byte[]> tiles = new HashMap<MapTile, byte[]>();
+		final int zoom = pRange.getZoomLevel();
+		try {
+			final Cursor cur = mDatabase.rawQueryWithFactory(
+					new IntegerArguments(zoom, pRange.getLeft(),
+							pRange.getRight(), getRow(zoom, pRange.getBottom()),
+							getRow(zoom, pRange.getTop())), SQL_TILES, null,
+					null);
+			try {
+				while (cur.moveToNext()) {
+					tiles.put(new MapTile(zoom, cur.getInt(0), getRow(zoom,
+							cur.getInt(1))), cur.getBlob(2));
+				}
+			} finally {
+				cur.close();
+			}
+		} catch (final SQLiteException e) {
+			Log.w("MapsAPI", "MBTilesFileArchive: Error getting tiles: "
+					+ pRange, e);
+		}
+		return tiles;
+	}
+
+	/**
+	 * The ranges come from the zoom levels and bounds in the metadata. If
+	 * there are no zoom levels, the tiles table is scanned for them once.
+	 */
+	@Override
+	public synchronized List<MapTileRange> getTileRanges() {
+		if (mTileRanges != null) {
+			return mTileRanges;
+		}
+
+		mTileRanges = new ArrayList<MapTileRange>();
+		if (mMinimumZoomLevel >= 0
+				&& mMaximumZoomLevel >= mMinimumZoomLevel
+				&& mMaximumZoomLevel <= MAXIMUM_ZOOMLEVEL) {
+			for (int zoom = mMinimumZoomLevel; zoom <= mMaximumZoomLevel; zoom++) {
+				mTileRanges.add(getBoundsRange(zoom));
+			}
+		} else {
+			try {
+				final Cursor cur = mDatabase.rawQuery("SELECT "
+						+ COL_TILES_ZOOM_LEVEL + ", MIN(" + COL_TILES_TILE_COLUMN
+						+ "), MIN(" + COL_TILES_TILE_ROW + "), MAX("
+						+ COL_TILES_TILE_COLUMN + "), MAX(" + COL_TILES_TILE_ROW
+						+ ") FROM " + TABLE_TILES + " GROUP BY "
+						+ COL_TILES_ZOOM_LEVEL, null);
+				try {
+					while (cur.moveToNext()) {
+						final int zoom = cur.getInt(0);
+						if (zoom < 0 || zoom > MAXIMUM_ZOOMLEVEL) {
+							continue;
+						}
+						// rows count from the bottom in the TMS tiling scheme
+						final int last = (1 << zoom) - 1;
+						mTileRanges.add(new MapTileRange(zoom, cur.getInt(1),
+								last - cur.getInt(4), cur.getInt(3), last
+										- cur.getInt(2)));
+					}
+				} finally {
+					cur.close();
+				}
+			} catch (final SQLiteException e) {
+				Log.w("MapsAPI", "MBTilesFileArchive: Error getting tile ranges: "
+						+ mDatabase.getPath(), e);
+			}
+		}
+
+		int maxZoom = -1;
+		for (final MapTileRange range : mTileRanges) {
+			maxZoom = Math.max(maxZoom, range.getZoomLevel());
+		}
+		final MapTileRange[] rangeByZoom = new MapTileRange[maxZoom + 1];
+		for (final MapTileRange range : mTileRanges) {
+			if (range.getZoomLevel() >= 0) {
+				rangeByZoom[range.getZoomLevel()] = range;
+			}
+		}
+		mRangeByZoom = rangeByZoom;
+		return mTileRanges;
+	}
+
+	@Override
+	public void close() {
+		synchronized (mStatements) {
+			for (final SQLiteStatement statement : mStatements) {
+				statement.close();
+			}
+			mStatements.clear();
+		}
+		mDatabase.close();
+	}
+
 	@Override
 	public String toString() {
 		return "DatabaseFileArchive [mDatabase=" + mDatabase.getPath() + "]";
@@ -11,6 +11,12 @@ public class MapTile {
 	public static final int MAPTILE_SUCCESS_ID = 0;
 	public static final int MAPTILE_FAIL_ID = MAPTILE_SUCCESS_ID + 1;
 
+	/** the highest zoom level a tile key has room for */
+	public static final int MAXIMUM_KEY_ZOOMLEVEL = 29;
+
+	private static final int KEY_COORDINATE_BITS = 29;
+	private static final long KEY_COORDINATE_MASK = (1L << KEY_COORDINATE_BITS) - 1;
+
 	// This class must be immutable because it's used as the key in the cache
 	// hash map
 	// (ie all the fields are final).
@@ -51,13 +57,37 @@ public class MapTile {
 		return zoomLevel;
 	}
 
+	/**
+	 * Get the key of this tile, with the zoom level, x and y packed into a
+	 * long. It identifies a tile up to zoom level
+	 * {@link #MAXIMUM_KEY_ZOOMLEVEL} without allocating anything.
+	 */
+	public long getKey() {
+		return getKey(zoomLevel, x, y);
+	}
+
+	public static long getKey(final int pZoomLevel, final int pX, final int pY) {
+		return (long) pZoomLevel << (2 * KEY_COORDINATE_BITS)
+				| (long) pX << KEY_COORDINATE_BITS | pY;
+	}
+
+	public static int getZoomLevel(final long pKey) {
+		return (int) (pKey >>> (2 * KEY_COORDINATE_BITS));
+	}
+
+	public static int getX(final long pKey) {
+		return (int) (pKey >>> KEY_COORDINATE_BITS & KEY_COORDINATE_MASK);
+	}
+
+	public static int getY(final long pKey) {
+		return (int) (pKey & KEY_COORDINATE_MASK);
+	}
+
 	@Override
 	public int hashCode() {
-		int code = 17;
-		code *= 37 + zoomLevel;
-		code *= 37 + x;
-		code *= 37 + y;
-		return code;
+		// mix the bits of the key, so that neighbouring tiles and tiles with
+		// x and y swapped don't collide
+		return LongHashMap.hash(getKey());
 	}
 
 	@Override
@@ -0,0 +1,173 @@
+package com.google.android.maps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An index of the tiles in a set of archives. The tile ranges of every zoom
+ * level are put in the cells of a coarse grid, so finding the archives that
+ * may contain a tile only looks at the few ranges in its cell instead of
+ * asking every archive.
+ */
+class MapTileArchiveIndex {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	/** the grid of a zoom level has at most this many cells across */
+	private static final int GRID_SIZE_SHIFT = 6;
+
+	private static final int MAXIMUM_ZOOMLEVEL = 31;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final List<IArchiveFile> mArchives = new ArrayList<IArchiveFile>();
+
+	private final List<MapTileRange> mRanges = new ArrayList<MapTileRange>();
+
+	/** the archive of every range */
+	private final List<IArchiveFile> mRangeArchives = new ArrayList<IArchiveFile>();
+
+	/**
+	 * The cells by zoom level; every cell has the numbers of the ranges that
+	 * overlap it, in the order they were added.
+	 */
+	private final int[][][] mCells = new int[MAXIMUM_ZOOMLEVEL + 1][][];
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public List<IArchiveFile> getArchives() {
+		return mArchives;
+	}
+
+	/**
+	 * @return the lowest zoom level of the ranges, or
+	 *         {@link Integer#MAX_VALUE} if there are none
+	 */
+	public int getMinimumZoomLevel() {
+		for (int zoom = 0; zoom <= MAXIMUM_ZOOMLEVEL; zoom++) {
+			if (mCells[zoom] != null) {
+				return zoom;
+			}
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @return the highest zoom level of the ranges, or -1 if there are none
+	 */
+	public int getMaximumZoomLevel() {
+		for (int zoom = MAXIMUM_ZOOMLEVEL; zoom >= 0; zoom--) {
+			if (mCells[zoom] != null) {
+				return zoom;
+			}
+		}
+		return -1;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Add an archive and the tile ranges it has.
+	 */
+	public void add(final IArchiveFile pArchive) {
+		mArchives.add(pArchive);
+
+		for (final MapTileRange range : pArchive.getTileRanges()) {
+			final int zoom = range.getZoomLevel();
+			if (zoom < 0 || zoom > MAXIMUM_ZOOMLEVEL) {
+				continue;
+			}
+			final int index = mRanges.size();
+			mRanges.add(range);
+			mRangeArchives.add(pArchive);
+
+			if (mCells[zoom] == null) {
+				mCells[zoom] = new int[1 << (2 * getGridShift(zoom))][];
+			}
+			final int shift = getCellShift(zoom);
+			final int gridShift = getGridShift(zoom);
+			final int max = (1 << gridShift) - 1;
+			final int left = clamp(range.getLeft() >> shift, max);
+			final int right = clamp(range.getRight() >> shift, max);
+			final int top = clamp(range.getTop() >> shift, max);
+			final int bottom = clamp(range.getBottom() >> shift, max);
+			for (int y = top; y <= bottom; y++) {
+				for (int x = left; x <= right; x++) {
+					addToCell(mCells[zoom], (y << gridShift) + x, index);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the archives that may contain a tile.
+	 *
+	 * @return the archives, most likely first, or an empty list
+	 */
+	public List<IArchiveFile> find(final MapTile pTile) {
+		final int zoom = pTile.getZoomLevel();
+		final List<IArchiveFile> result = new ArrayList<IArchiveFile>(1);
+		if (zoom < 0 || zoom > MAXIMUM_ZOOMLEVEL || mCells[zoom] == null) {
+			return result;
+		}
+		final int shift = getCellShift(zoom);
+		final int gridShift = getGridShift(zoom);
+		final int max = (1 << gridShift) - 1;
+		final int x = clamp(pTile.getX() >> shift, max);
+		final int y = clamp(pTile.getY() >> shift, max);
+		final int[] cell = mCells[zoom][(y << gridShift) + x];
+		if (cell != null) {
+			for (final int index : cell) {
+				final IArchiveFile archive = mRangeArchives.get(index);
+				if (mRanges.get(index).contains(pTile)
+						&& !result.contains(archive)) {
+					result.add(archive);
+				}
+			}
+		}
+		return result;
+	}
+
+	public void clear() {
+		mArchives.clear();
+		mRanges.clear();
+		mRangeArchives.clear();
+		for (int i = 0; i < mCells.length; i++) {
+			mCells[i] = null;
+		}
+	}
+
+	private static void addToCell(final int[][] pCells, final int pCell,
+			final int pRange) {
+		final int[] cell = pCells[pCell];
+		if (cell == null) {
+			pCells[pCell] = new int[] { pRange };
+		} else {
+			final int[] newCell = new int[cell.length + 1];
+			System.arraycopy(cell, 0, newCell, 0, cell.length);
+			newCell[cell.length] = pRange;
+			pCells[pCell] = newCell;
+		}
+	}
+
+	private static int getGridShift(final int pZoomLevel) {
+		return Math.min(pZoomLevel, GRID_SIZE_SHIFT);
+	}
+
+	/** the number of bits of a tile coordinate that are within a cell */
+	private static int getCellShift(final int pZoomLevel) {
+		return pZoomLevel - getGridShift(pZoomLevel);
+	}
+
+	private static int clamp(final int pValue, final int pMax) {
+		return pValue < 0 ? 0 : pValue > pMax ? pMax : pValue;
+	}
+}
@@ -1,12 +1,11 @@
 // Created by plusminus on 17:58:57 - 25.09.2008
 package com.google.android.maps;
 
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
 import android.graphics.drawable.Drawable;
 
 /**
+ * The tiles in memory. It's safe to use from any thread, and reading a tile
+ * doesn't lock, so drawing isn't held up by the loader threads adding tiles.
  * 
  * @author Nicolas Gramlich
  * 
@@ -22,8 +21,6 @@ public final class MapTileCache implements OpenStreetMapTileProviderConstants {
 
 	protected LRUMapTileCache mCachedTiles;
 
-	private final ReadWriteLock mReadWriteLock = new ReentrantReadWriteLock();
-
 	// ===========================================================
 	// Constructors
 	// ===========================================================
@@ -34,41 +31,66 @@ public final class MapTileCache implements OpenStreetMapTileProviderConstants {
 
 	/**
 	 * @param aMaximumCacheSize
-	 *            Maximum amount of MapTiles to be hold within.
+	 *            Amount of MapTiles to be hold within whatever their size.
 	 */
 	public MapTileCache(final int aMaximumCacheSize) {
 		mCachedTiles = new LRUMapTileCache(aMaximumCacheSize);
 	}
 
+	/**
+	 * @param aMaximumCacheSize
+	 *            Amount of MapTiles to be hold within whatever their size.
+	 * @param aMaximumCacheBytes
+	 *            Size in bytes the bitmaps of the MapTiles beyond those may
+	 *            take up.
+	 */
+	public MapTileCache(final int aMaximumCacheSize,
+			final long aMaximumCacheBytes) {
+		mCachedTiles = new LRUMapTileCache(aMaximumCacheSize,
+				aMaximumCacheBytes);
+	}
+
 	// ===========================================================
 	// Getter & Setter
 	// ===========================================================
 
 	public void clear() {
-		mReadWriteLock.writeLock().lock();
-		try {
-			mCachedTiles.clear();
-		} finally {
-			mReadWriteLock.writeLock().unlock();
-		}
+		mCachedTiles.clear();
 	}
 
 	public boolean containsTile(final MapTile aTile) {
-		mReadWriteLock.readLock().lock();
-		try {
-			return mCachedTiles.containsKey(aTile);
-		} finally {
-			mReadWriteLock.readLock().unlock();
-		}
+		return mCachedTiles.containsKey(aTile);
+	}
+
+	/**
+	 * @return the size in bytes of the bitmaps in the cache
+	 */
+	public long getSize() {
+		return mCachedTiles.getSize();
+	}
+
+	/**
+	 * @return the largest size in bytes the bitmaps in the cache have had
+	 */
+	public long getPeakSize() {
+		return mCachedTiles.getPeakSize();
+	}
+
+	public long getMaximumSize() {
+		return mCachedTiles.getMaximumSize();
+	}
+
+	/**
+	 * Set the size in bytes the bitmaps of the cached tiles may take up beyond
+	 * the tiles needed to fill the screen. It defaults to
+	 * 1/{@link #CACHE_MAPTILE_HEAP_FRACTION} of the maximum heap size.
+	 */
+	public void setMaximumSize(final long aMaximumCacheBytes) {
+		mCachedTiles.setMaximumSize(aMaximumCacheBytes);
 	}
 
 	public void ensureCapacity(final int aCapacity) {
-		mReadWriteLock.readLock().lock();
-		try {
-			mCachedTiles.ensureCapacity(aCapacity);
-		} finally {
-			mReadWriteLock.readLock().unlock();
-		}
+		mCachedTiles.ensureCapacity(aCapacity);
 	}
 
 	// ===========================================================
@@ -80,25 +102,56 @@ public final class MapTileCache implements OpenStreetMapTileProviderConstants {
 	// ===========================================================
 
 	public Drawable getMapTile(final MapTile aTile) {
-		mReadWriteLock.readLock().lock();
-		try {
-			return mCachedTiles.get(aTile);
-		} finally {
-			mReadWriteLock.readLock().unlock();
-		}
+		return mCachedTiles.get(aTile.getKey());
+	}
+
+	/**
+	 * Get a tile by its {@link MapTile#getKey() key}, without allocating
+	 * anything.
+	 */
+	public Drawable getMapTile(final long aKey) {
+		return mCachedTiles.get(aKey);
 	}
 
 	public void putTile(final MapTile aTile, final Drawable aDrawable) {
+		putTile(aTile.getKey(), aDrawable);
+	}
+
+	/**
+	 * Put a tile by its {@link MapTile#getKey() key}.
+	 */
+	public void putTile(final long aKey, final Drawable aDrawable) {
 		if (aDrawable != null) {
-			mReadWriteLock.writeLock().lock();
-			try {
-				mCachedTiles.put(aTile, aDrawable);
-			} finally {
-				mReadWriteLock.writeLock().unlock();
-			}
+			mCachedTiles.put(aKey, aDrawable);
 		}
 	}
 
+	/**
+	 * Put a tile by its {@link MapTile#getKey() key} unless there's one
+	 * already.
+	 * 
+	 * @return whether the tile was put
+	 */
+	public boolean putTileIfAbsent(final long aKey, final Drawable aDrawable) {
+		return aDrawable != null && mCachedTiles.putIfAbsent(aKey, aDrawable);
+	}
+
+	/**
+	 * Make an expired tile fresh again, if it's still the one in the cache.
+	 * 
+	 * @return false if it has been evicted, replaced or recycled since
+	 */
+	public boolean revalidateTile(final MapTile aTile, final Drawable aDrawable) {
+		return mCachedTiles.revalidate(aTile.getKey(), aDrawable);
+	}
+
+	/**
+	 * Remove a tile by its {@link MapTile#getKey() key} and recycle it.
+	 */
+	public void removeTile(final long aKey) {
+		mCachedTiles.remove(aKey);
+	}
+
 	// ===========================================================
 	// Inner and Anonymous Classes
 	// ===========================================================
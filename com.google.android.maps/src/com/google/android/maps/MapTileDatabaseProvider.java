@@ -0,0 +1,159 @@
+package com.google.android.maps;
+
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+import com.google.android.maps.BitmapTileSourceBase.LowMemoryException;
+
+/**
+ * Provides the tiles that are stored in an {@link MBTilesCache}. This is the
+ * counterpart of {@link MapTileFilesystemProvider} for a database cache. The
+ * tiles are read while the cache writes new ones.
+ */
+public class MapTileDatabaseProvider extends MapTileFileStorageProviderBase {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private class TileLoader extends MapTileModuleProviderBase.TileLoader {
+
+		@Override
+		public Drawable loadTile(final MapTileRequestState pState)
+				throws CantContinueException {
+
+			if (mTileSource == null) {
+				return null;
+			}
+
+			final MapTile tile = pState.getMapTile();
+
+			// if there's no sdcard then don't do anything
+			if (!getSdCardAvailable()) {
+				if (DEBUGMODE) {
+					Log.d("MapsAPI", "No sdcard - do nothing for tile: " + tile);
+				}
+				return null;
+			}
+
+			final MBTilesCache.Record record = mCache.read(mTileSource,
+					tile);
+			if (record == null) {
+				return null;
+			}
+
+			try {
+				final Drawable drawable = mTileSource.getDrawable(record.mData);
+				if (drawable == null) {
+					return null;
+				}
+
+				// Check to see if the tile has expired
+				if (getExpires(record) < System.currentTimeMillis()) {
+					if (DEBUGMODE) {
+						Log.d("MapsAPI", "MapTileDatabaseProvider: Tile expired: "
+								+ tile);
+					}
+					drawable.setState(new int[] { ExpirableBitmapDrawable.EXPIRED });
+				}
+
+				return drawable;
+			} catch (final LowMemoryException e) {
+				// low memory so empty the queue
+				Log.w("MapsAPI", "MapTileDatabaseProvider: LowMemoryException loading MapTile: "
+						+ tile + " : " + e);
+				throw new CantContinueException(e);
+			}
+		}
+	}
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final MBTilesCache mCache;
+
+	private final long mMaximumCachedFileAge;
+
+	private ITileSource mTileSource;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public MapTileDatabaseProvider(final IRegisterReceiver pRegisterReceiver,
+			final ITileSource pTileSource, final MBTilesCache pCache) {
+		this(pRegisterReceiver, pTileSource, pCache,
+				DEFAULT_MAXIMUM_CACHED_FILE_AGE);
+	}
+
+	public MapTileDatabaseProvider(final IRegisterReceiver pRegisterReceiver,
+			final ITileSource pTileSource, final MBTilesCache pCache,
+			final long pMaximumCachedFileAge) {
+		super(pRegisterReceiver, NUMBER_OF_TILE_FILESYSTEM_THREADS,
+				TILE_FILESYSTEM_MAXIMUM_QUEUE_SIZE);
+		mTileSource = pTileSource;
+		mCache = pCache;
+		mMaximumCachedFileAge = pMaximumCachedFileAge;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Get the time when a cached tile becomes stale, by the same rules as
+	 * {@link MapTileFilesystemProvider}.
+	 */
+	private long getExpires(final MBTilesCache.Record pRecord) {
+		final long tileMaxAge = mTileSource.getTileMaxAge();
+		if (tileMaxAge >= 0) {
+			return pRecord.mSavedTime + tileMaxAge;
+		}
+		if (pRecord.mMetadata != null && pRecord.mMetadata.getExpires() > 0) {
+			return pRecord.mMetadata.getExpires();
+		}
+		return pRecord.mSavedTime + mMaximumCachedFileAge;
+	}
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public int getMaximumZoomLevel() {
+		return mTileSource != null ? mTileSource.getMaximumZoomLevel()
+				: MAXIMUM_ZOOMLEVEL;
+	}
+
+	@Override
+	public int getMinimumZoomLevel() {
+		return mTileSource != null ? mTileSource.getMinimumZoomLevel()
+				: MINIMUM_ZOOMLEVEL;
+	}
+
+	@Override
+	protected String getName() {
+		return "Database Cache Provider";
+	}
+
+	@Override
+	protected String getThreadGroupName() {
+		return "database";
+	}
+
+	@Override
+	protected Runnable getTileLoader() {
+		return new TileLoader();
+	}
+
+	@Override
+	public boolean getUsesDataConnection() {
+		return false;
+	}
+
+	@Override
+	public void setTileSource(final ITileSource pTileSource) {
+		mTileSource = pTileSource;
+	}
+}
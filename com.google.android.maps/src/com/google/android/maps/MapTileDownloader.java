@@ -8,24 +8,43 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.android.maps.BitmapTileSourceBase.LowMemoryException;
-import org.apache.http.params.CoreProtocolPNames;
 
 /**
  * The {@link MapTileDownloader} loads tiles from an HTTP server. It saves
- * downloaded tiles to an IFilesystemCache if available.
+ * downloaded tiles to an IFilesystemCache if available. Expired tiles are
+ * revalidated with a conditional request, so that a tile that hasn't changed
+ * is only refreshed in the cache instead of being downloaded again.
  * 
  * @author Marc Kurtz
  * @author Nicolas Gramlich
@@ -80,22 +99,65 @@ public class MapTileDownloader extends MapTileModuleProviderBase {
 						return null;
 					}
 
-					final HttpClient client = new DefaultHttpClient();
-					client.getParams().setParameter(CoreProtocolPNames.USER_AGENT, USER_AGENT);
+					// if we have an expired copy of the tile then ask the
+					// server whether it's still good
+					final Drawable expiredTile = aState.getExpiredTile();
+					MapTileMetadata cachedMetadata = null;
+					if (expiredTile != null && mFilesystemCache != null) {
+						cachedMetadata = mFilesystemCache.getMetadata(
+								mTileSource, tile);
+					}
+
 					final HttpUriRequest head = new HttpGet(tileURLString);
-					final HttpResponse response = client.execute(head);
+					if (cachedMetadata != null) {
+						if (cachedMetadata.getETag() != null) {
+							head.addHeader("If-None-Match",
+									cachedMetadata.getETag());
+						}
+						if (cachedMetadata.getLastModified() != null) {
+							head.addHeader("If-Modified-Since",
+									cachedMetadata.getLastModified());
+						}
+					}
+					mRequestsInProgress.put(aState, head);
+					if (aState.isCanceled()) {
+						return null;
+					}
+					final HttpResponse response = mHttpClient.execute(head);
+					final HttpEntity entity = response.getEntity();
 
 					// Check to see if we got success
 					final org.apache.http.StatusLine line = response
 							.getStatusLine();
-					if (line.getStatusCode() != 200) {
+					if (line.getStatusCode() == HttpStatus.SC_NOT_MODIFIED
+							&& cachedMetadata != null
+							&& cachedMetadata.hasValidator()) {
+						if (DEBUGMODE) {
+							Log.d("MapsAPI",
+									"MapTileDownloader: Tile not modified: "
+											+ tile);
+						}
+						if (entity != null) {
+							entity.consumeContent();
+						}
+						mFilesystemCache.refreshFile(mTileSource, tile,
+								cachedMetadata
+										.merge(getResponseMetadata(response)));
+						// the memory cache makes the expired tile fresh again
+						// if it still has it, see tileLoaded()
+						return expiredTile;
+					}
+					if (line.getStatusCode() != HttpStatus.SC_OK) {
 						Log.w("MapsAPI",
 								"MapTileDownloader: Problem downloading MapTile: "
 										+ tile + " HTTP response: " + line);
+						if (entity != null) {
+							// release the connection for the next tile
+							entity.consumeContent();
+						}
 						return null;
 					}
 
-					final HttpEntity entity = response.getEntity();
 					if (entity == null) {
 						Log.w("MapsAPI",
 								"MapTileDownloader: No content downloading MapTile: "
@@ -110,16 +172,13 @@ public class MapTileDownloader extends MapTileModuleProviderBase {
 					StreamUtils.copy(in, out);
 					out.flush();
 					final byte[] data = dataStream.toByteArray();
-					final ByteArrayInputStream byteStream = new ByteArrayInputStream(
-							data);
-
-					final Drawable result = mTileSource.getDrawable(byteStream);
+					final Drawable result = mTileSource.getDrawable(data);
 
 					// Save the data to the filesystem cache
 					if (mFilesystemCache != null && result != null) {
-						byteStream.reset();
-						mFilesystemCache
-								.saveFile(mTileSource, tile, byteStream);
+						mFilesystemCache.saveFile(mTileSource, tile,
+								new ByteArrayInputStream(data),
+								getResponseMetadata(response));
 					}
 
 					return result;
@@ -147,6 +206,7 @@ public class MapTileDownloader extends MapTileModuleProviderBase {
 							"MapTileDownloader: Error downloading MapTile: "
 									+ tile, e);
 				} finally {
+					mRequestsInProgress.remove(aState);
 					StreamUtils.closeStream(in);
 					StreamUtils.closeStream(out);
 				}
@@ -162,13 +222,16 @@ public class MapTileDownloader extends MapTileModuleProviderBase {
 		@Override
 		protected void tileLoaded(final MapTileRequestState pState,
 				final Drawable pDrawable) {
-			removeTileFromQueues(pState.getMapTile());
+			removeTileFromQueues(pState);
 			// don't return the tile because we'll wait for the fs provider to
 			// ask for it
 			// this prevent flickering when a load of delayed downloads complete
 			// for tiles
 			// that we might not even be interested in any more
-			pState.getCallback().mapTileRequestCompleted(pState, null);
+			// an expired tile that wasn't modified is returned, so that it's
+			// revalidated in the memory cache
+			pState.getCallback().mapTileRequestCompleted(pState,
+					pDrawable == pState.getExpiredTile() ? pDrawable : null);
 		}
 
 	}
@@ -181,6 +244,15 @@ public class MapTileDownloader extends MapTileModuleProviderBase {
 
 	private OnlineTileSourceBase mTileSource;
 
+	/**
+	 * Shared by all download threads. It keeps connections alive and has as
+	 * many connections per host as there are download threads.
+	 */
+	private final DefaultHttpClient mHttpClient;
+
+	/** the HTTP requests being executed, so they can be aborted */
+	private final ConcurrentHashMap<MapTileRequestState, HttpUriRequest> mRequestsInProgress = new ConcurrentHashMap<MapTileRequestState, HttpUriRequest>();
+
 	// ===========================================================
 	// Constructors
 	// ===========================================================
@@ -207,9 +279,91 @@ public class MapTileDownloader extends MapTileModuleProviderBase {
 
 		mFilesystemCache = pFilesystemCache;
 		mNetworkAvailablityCheck = pNetworkAvailablityCheck;
+		mHttpClient = createHttpClient();
 		setTileSource(pTileSource);
 	}
 
+	private static DefaultHttpClient createHttpClient() {
+		final HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setUserAgent(params, USER_AGENT);
+		HttpConnectionParams.setConnectionTimeout(params,
+				TILE_DOWNLOAD_CONNECT_TIMEOUT_MILLISECONDS);
+		HttpConnectionParams.setSoTimeout(params,
+				TILE_DOWNLOAD_READ_TIMEOUT_MILLISECONDS);
+		ConnManagerParams.setMaxTotalConnections(params,
+				NUMBER_OF_TILE_DOWNLOAD_THREADS * 2);
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(NUMBER_OF_TILE_DOWNLOAD_THREADS));
+
+		final SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory
+				.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", SSLSocketFactory
+				.getSocketFactory(), 443));
+
+		final ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(
+				params, schemeRegistry);
+		return new DefaultHttpClient(connectionManager, params);
+	}
+
+	/**
+	 * Get the cache validators and freshness of a tile from the response
+	 * headers. Cache-Control max-age wins over Expires, as in HTTP/1.1. The
+	 * Expires header is taken relative to the Date header so that the clock
+	 * of the device doesn't matter.
+	 */
+	private static MapTileMetadata getResponseMetadata(
+			final HttpResponse pResponse) {
+		final Header eTag = pResponse.getFirstHeader("ETag");
+		final Header lastModified = pResponse.getFirstHeader("Last-Modified");
+		final long now = System.currentTimeMillis();
+
+		long expires = 0;
+		boolean hasMaxAge = false;
+		final Header cacheControl = pResponse.getFirstHeader("Cache-Control");
+		if (cacheControl != null) {
+			for (final HeaderElement element : cacheControl.getElements()) {
+				final String name = element.getName();
+				if ("no-cache".equalsIgnoreCase(name)
+						|| "no-store".equalsIgnoreCase(name)) {
+					// still use the tile, but revalidate it next time
+					expires = now;
+					hasMaxAge = true;
+				} else if ("max-age".equalsIgnoreCase(name)
+						&& element.getValue() != null && !hasMaxAge) {
+					try {
+						expires = now + Long.parseLong(element.getValue())
+								* ONE_SECOND;
+						hasMaxAge = true;
+					} catch (final NumberFormatException ignore) {
+					}
+				}
+			}
+		}
+
+		if (!hasMaxAge) {
+			final Header expiresHeader = pResponse.getFirstHeader("Expires");
+			if (expiresHeader != null) {
+				try {
+					final long serverExpires = DateUtils.parseDate(
+							expiresHeader.getValue()).getTime();
+					final Header date = pResponse.getFirstHeader("Date");
+					final long serverNow = date != null ? DateUtils.parseDate(
+							date.getValue()).getTime() : now;
+					// a date in the past means it's already expired
+					expires = now + Math.max(0, serverExpires - serverNow);
+				} catch (final DateParseException e) {
+					// an invalid date means it's already expired
+					expires = now;
+				}
+			}
+		}
+
+		return new MapTileMetadata(eTag != null ? eTag.getValue() : null,
+				lastModified != null ? lastModified.getValue() : null, expires);
+	}
+
 	// ===========================================================
 	// Methods from SuperClass/Interfaces
 	// ===========================================================
@@ -250,6 +404,38 @@ public class MapTileDownloader extends MapTileModuleProviderBase {
 		return true;
 	}
 
+	@Override
+	public void detach() {
+		super.detach();
+		mHttpClient.getConnectionManager().shutdown();
+	}
+
+	/**
+	 * Set the timeouts for downloading tiles.
+	 * 
+	 * @param pConnectTimeout
+	 *            the timeout for establishing a connection in milliseconds
+	 * @param pReadTimeout
+	 *            the timeout for waiting for data in milliseconds
+	 */
+	public void setTimeouts(final int pConnectTimeout, final int pReadTimeout) {
+		final HttpParams params = mHttpClient.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, pConnectTimeout);
+		HttpConnectionParams.setSoTimeout(params, pReadTimeout);
+	}
+
+	@Override
+	protected void onTileRequestCanceled(final MapTileRequestState pState) {
+		final HttpUriRequest request = mRequestsInProgress.remove(pState);
+		if (request != null) {
+			if (DEBUGMODE) {
+				Log.d("MapsAPI", "MapTileDownloader: Aborting download of "
+						+ pState.getMapTile());
+			}
+			request.abort();
+		}
+	}
+
 	// ===========================================================
 	// Inner and Anonymous Classes
 	// ===========================================================
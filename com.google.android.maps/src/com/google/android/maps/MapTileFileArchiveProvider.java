@@ -0,0 +1,473 @@
+package com.google.android.maps;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+import com.google.android.maps.BitmapTileSourceBase.LowMemoryException;
+
+/**
+ * A tile provider that serves tiles from the GEMF and MBTiles archives in
+ * {@link OpenStreetMapTileProviderConstants#OPENMAPS_PATH}. The tile ranges of
+ * all the archives are kept in a {@link MapTileArchiveIndex}, so a tile is
+ * only looked up in the archives that have it. The tiles of the viewport are
+ * read from an MBTiles archive with one query when the first of them is
+ * requested. When the viewport moves, the tiles that were read for it are kept
+ * and only the new ones are read.
+ */
+public class MapTileFileArchiveProvider extends MapTileFileStorageProviderBase {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private class TileLoader extends MapTileModuleProviderBase.TileLoader {
+
+		@Override
+		public Drawable loadTile(final MapTileRequestState pState)
+				throws CantContinueException {
+
+			if (mTileSource == null) {
+				return null;
+			}
+
+			final MapTile tile = pState.getMapTile();
+
+			// if there's no sdcard then don't do anything
+			if (!getSdCardAvailable()) {
+				if (DEBUGMODE) {
+					Log.d("MapsAPI", "No sdcard - do nothing for tile: " + tile);
+				}
+				return null;
+			}
+
+			InputStream inputStream = null;
+			try {
+				inputStream = getInputStream(tile);
+				if (inputStream != null) {
+					if (DEBUGMODE) {
+						Log.d("MapsAPI",
+								"MapTileFileArchiveProvider: Use tile from archive: "
+										+ tile);
+					}
+					return mTileSource.getDrawable(inputStream);
+				}
+			} catch (final LowMemoryException e) {
+				// low memory so empty the queue
+				Log.w("MapsAPI", "MapTileFileArchiveProvider: LowMemoryException loading MapTile: "
+						+ tile + " : " + e);
+				throw new CantContinueException(e);
+			} catch (final Throwable e) {
+				Log.e("MapsAPI",
+						"MapTileFileArchiveProvider: Error loading tile", e);
+			} finally {
+				if (inputStream != null) {
+					StreamUtils.closeStream(inputStream);
+				}
+			}
+
+			return null;
+		}
+	}
+
+	/**
+	 * The tiles of a viewport that have been read, by archive.
+	 */
+	private static class Viewport {
+		private final MapTileRange mRange;
+		/** the viewport before, whose tiles are kept if they're still needed */
+		private volatile Viewport mPrevious;
+		private final Map<MBTilesFileArchive, ViewportQuery> mQueries = new HashMap<MBTilesFileArchive, ViewportQuery>();
+
+		private Viewport(final MapTileRange pRange) {
+			mRange = pRange;
+		}
+	}
+
+	/**
+	 * The query for the tiles of a viewport in an archive. It's run by the
+	 * first loader that wants one of them, and the others wait for it.
+	 */
+	private static class ViewportQuery {
+		private Map<MapTile, byte[]> mTiles;
+
+		private synchronized void setTiles(final Map<MapTile, byte[]> pTiles) {
+			mTiles = pTiles;
+			notifyAll();
+		}
+
+		/**
+		 * @return the tiles, or null if the query hasn't finished
+		 */
+		private synchronized Map<MapTile, byte[]> peekTiles() {
+			return mTiles;
+		}
+
+		private synchronized Map<MapTile, byte[]> waitForTiles()
+				throws InterruptedException {
+			while (mTiles == null) {
+				wait();
+			}
+			return mTiles;
+		}
+	}
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final MapTileArchiveIndex mIndex = new MapTileArchiveIndex();
+
+	/** whether the archives have been found since the media was mounted */
+	private boolean mArchivesFound;
+
+	/**
+	 * The zoom levels of the archives that have been found, so that tiles at
+	 * other zoom levels skip this provider. They're those of the tile source
+	 * until the archives are found.
+	 */
+	private volatile int mArchiveMinimumZoomLevel = Integer.MIN_VALUE;
+	private volatile int mArchiveMaximumZoomLevel = Integer.MAX_VALUE;
+
+	private ITileSource mTileSource;
+
+	/**
+	 * The tiles of the viewport, or null if there's no viewport. It's replaced
+	 * rather than changed, so the loaders read it without a lock.
+	 */
+	private volatile Viewport mViewport;
+	private final Object mViewportLock = new Object();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * The archives are found and indexed by the first tile loader, so that it
+	 * doesn't hold up the caller.
+	 */
+	public MapTileFileArchiveProvider(final IRegisterReceiver pRegisterReceiver,
+			final ITileSource pTileSource) {
+		super(pRegisterReceiver, NUMBER_OF_TILE_FILESYSTEM_THREADS,
+				TILE_FILESYSTEM_MAXIMUM_QUEUE_SIZE);
+		mTileSource = pTileSource;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	private InputStream getInputStream(final MapTile pTile) {
+		final List<IArchiveFile> archives;
+		synchronized (this) {
+			if (!mArchivesFound) {
+				findArchiveFiles();
+			}
+			archives = mIndex.find(pTile);
+		}
+		for (final IArchiveFile archive : archives) {
+			if (archive instanceof MBTilesFileArchive) {
+				final Map<MapTile, byte[]> tiles = getViewportTiles(
+						(MBTilesFileArchive) archive, pTile);
+				if (tiles != null) {
+					final byte[] data = tiles.get(pTile);
+					if (data != null) {
+						return new ByteArrayInputStream(data);
+					}
+					continue;
+				}
+			}
+
+			final InputStream inputStream = archive.getInputStream(
+					mTileSource, pTile);
+			if (inputStream != null) {
+				return inputStream;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the tiles of the viewport in an archive, reading them if this is the
+	 * first tile of the viewport requested from the archive.
+	 * 
+	 * @return the tiles, or null if the tile isn't in the viewport
+	 */
+	private Map<MapTile, byte[]> getViewportTiles(
+			final MBTilesFileArchive pArchive, final MapTile pTile) {
+		final Viewport viewport = mViewport;
+		if (viewport == null || !viewport.mRange.contains(pTile)) {
+			return null;
+		}
+
+		ViewportQuery query;
+		boolean first = false;
+		synchronized (viewport.mQueries) {
+			query = viewport.mQueries.get(pArchive);
+			if (query == null) {
+				query = new ViewportQuery();
+				viewport.mQueries.put(pArchive, query);
+				first = true;
+			}
+		}
+
+		if (!first) {
+			// the other loaders wait for the query rather than running
+			// their own ones
+			try {
+				return query.waitForTiles();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+
+		final Map<MapTile, byte[]> tiles = new HashMap<MapTile, byte[]>();
+		try {
+			readViewportTiles(pArchive, viewport, tiles);
+		} finally {
+			query.setTiles(tiles);
+		}
+		return tiles;
+	}
+
+	/**
+	 * Read the tiles of a viewport in an archive. The tiles that were read for
+	 * the viewport before are kept, and only the rest of the viewport is read.
+	 */
+	private static void readViewportTiles(final MBTilesFileArchive pArchive,
+			final Viewport pViewport, final Map<MapTile, byte[]> pTiles) {
+		final MapTileRange range = pViewport.mRange;
+		final Viewport previous = pViewport.mPrevious;
+		Map<MapTile, byte[]> previousTiles = null;
+		if (previous != null
+				&& previous.mRange.getZoomLevel() == range.getZoomLevel()) {
+			final ViewportQuery query;
+			synchronized (previous.mQueries) {
+				query = previous.mQueries.get(pArchive);
+			}
+			if (query != null) {
+				previousTiles = query.peekTiles();
+			}
+		}
+
+		// the part of the viewport that was read before
+		final int left = previousTiles == null ? 0 : Math.max(
+				range.getLeft(), previous.mRange.getLeft());
+		final int top = previousTiles == null ? 0 : Math.max(range.getTop(),
+				previous.mRange.getTop());
+		final int right = previousTiles == null ? -1 : Math.min(
+				range.getRight(), previous.mRange.getRight());
+		final int bottom = previousTiles == null ? -1 : Math.min(
+				range.getBottom(), previous.mRange.getBottom());
+		if (left > right || top > bottom) {
+			pTiles.putAll(pArchive.getTiles(range));
+			return;
+		}
+
+		for (final Map.Entry<MapTile, byte[]> entry : previousTiles.entrySet()) {
+			if (range.contains(entry.getKey())) {
+				pTiles.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		// the rest of the viewport is up to four strips around that part
+		final int zoom = range.getZoomLevel();
+		if (range.getTop() < top) {
+			pTiles.putAll(pArchive.getTiles(new MapTileRange(zoom, range
+					.getLeft(), range.getTop(), range.getRight(), top - 1)));
+		}
+		if (bottom < range.getBottom()) {
+			pTiles.putAll(pArchive.getTiles(new MapTileRange(zoom, range
+					.getLeft(), bottom + 1, range.getRight(), range
+					.getBottom())));
+		}
+		if (range.getLeft() < left) {
+			pTiles.putAll(pArchive.getTiles(new MapTileRange(zoom, range
+					.getLeft(), top, left - 1, bottom)));
+		}
+		if (right < range.getRight()) {
+			pTiles.putAll(pArchive.getTiles(new MapTileRange(zoom, right + 1,
+					top, range.getRight(), bottom)));
+		}
+	}
+
+	private void findArchiveFiles() {
+		mArchivesFound = true;
+		closeArchiveFiles();
+
+		// path should be optionally configurable
+		final File[] files = OPENMAPS_PATH.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (final File file : files) {
+			final IArchiveFile archive = getArchiveFile(file);
+			if (archive != null) {
+				mIndex.add(archive);
+			}
+		}
+
+		mArchiveMinimumZoomLevel = mIndex.getMinimumZoomLevel();
+		mArchiveMaximumZoomLevel = mIndex.getMaximumZoomLevel();
+
+		if (DEBUGMODE) {
+			Log.d("MapsAPI", "MapTileFileArchiveProvider: Found "
+					+ mIndex.getArchives().size() + " archives");
+		}
+	}
+
+	private synchronized void closeArchiveFiles() {
+		for (final IArchiveFile archive : mIndex.getArchives()) {
+			archive.close();
+		}
+		mIndex.clear();
+		mArchiveMinimumZoomLevel = Integer.MIN_VALUE;
+		mArchiveMaximumZoomLevel = Integer.MAX_VALUE;
+		synchronized (mViewportLock) {
+			// the tiles that were read came from the archives that were closed
+			final Viewport viewport = mViewport;
+			if (viewport != null) {
+				mViewport = new Viewport(viewport.mRange);
+			}
+		}
+	}
+
+	/**
+	 * Open an archive by the extension of its file.
+	 * 
+	 * @return the archive, or null if the file isn't an archive we know
+	 */
+	private static IArchiveFile getArchiveFile(final File pFile) {
+		final String name = pFile.getName().toLowerCase();
+		try {
+			if (name.endsWith(".gemf")) {
+				return GEMFFileArchive.getGEMFFileArchive(pFile);
+			}
+			if (name.endsWith(".mbtiles")) {
+				return MBTilesFileArchive.getDatabaseFileArchive(pFile);
+			}
+		} catch (final Exception e) {
+			Log.e("MapsAPI", "MapTileFileArchiveProvider: Error opening archive "
+					+ pFile, e);
+		}
+		return null;
+	}
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void detach() {
+		closeArchiveFiles();
+		super.detach();
+	}
+
+	@Override
+	public void setViewport(final int pZoomLevel, final int pTileSizePx,
+			final Rect pViewPort) {
+		super.setViewport(pZoomLevel, pTileSizePx, pViewPort);
+
+		MapTileRange range = null;
+		if (pViewPort != null) {
+			final int maxTile = (1 << pZoomLevel) - 1;
+			int left = Math.max(0, pViewPort.left / pTileSizePx);
+			int right = Math.min(maxTile, (pViewPort.right - 1) / pTileSizePx);
+			if (pViewPort.left < 0 || pViewPort.right > maxTile * pTileSizePx
+					+ pTileSizePx) {
+				// the viewport wraps around the world
+				left = 0;
+				right = maxTile;
+			}
+			range = new MapTileRange(pZoomLevel, left, Math.max(0,
+					pViewPort.top / pTileSizePx), right, Math.min(maxTile,
+					(pViewPort.bottom - 1) / pTileSizePx));
+		}
+
+		// the queries run outside the lock, so this doesn't wait for them
+		synchronized (mViewportLock) {
+			final Viewport viewport = mViewport;
+			final MapTileRange old = viewport != null ? viewport.mRange : null;
+			if (range == null) {
+				mViewport = null;
+			} else if (old == null || range.getZoomLevel() != old.getZoomLevel()
+					|| range.getLeft() != old.getLeft()
+					|| range.getTop() != old.getTop()
+					|| range.getRight() != old.getRight()
+					|| range.getBottom() != old.getBottom()) {
+				final Viewport newViewport = new Viewport(range);
+				newViewport.mPrevious = viewport;
+				if (viewport != null) {
+					// only keep one viewport before
+					viewport.mPrevious = null;
+				}
+				mViewport = newViewport;
+			}
+		}
+	}
+
+	@Override
+	protected void onMediaMounted() {
+		synchronized (this) {
+			mArchivesFound = false;
+			// until the new archives are found
+			mArchiveMinimumZoomLevel = Integer.MIN_VALUE;
+			mArchiveMaximumZoomLevel = Integer.MAX_VALUE;
+		}
+	}
+
+	@Override
+	protected void onMediaUnmounted() {
+		synchronized (this) {
+			mArchivesFound = false;
+			closeArchiveFiles();
+		}
+	}
+
+	@Override
+	public int getMaximumZoomLevel() {
+		return Math.min(mArchiveMaximumZoomLevel,
+				mTileSource != null ? mTileSource.getMaximumZoomLevel()
+						: MAXIMUM_ZOOMLEVEL);
+	}
+
+	@Override
+	public int getMinimumZoomLevel() {
+		return Math.max(mArchiveMinimumZoomLevel,
+				mTileSource != null ? mTileSource.getMinimumZoomLevel()
+						: MINIMUM_ZOOMLEVEL);
+	}
+
+	@Override
+	protected String getName() {
+		return "File Archive Provider";
+	}
+
+	@Override
+	protected String getThreadGroupName() {
+		return "filearchive";
+	}
+
+	@Override
+	protected Runnable getTileLoader() {
+		return new TileLoader();
+	}
+
+	@Override
+	public boolean getUsesDataConnection() {
+		return false;
+	}
+
+	@Override
+	public void setTileSource(final ITileSource pTileSource) {
+		mTileSource = pTileSource;
+	}
+}
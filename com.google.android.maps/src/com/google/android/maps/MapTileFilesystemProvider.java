@@ -54,10 +54,8 @@ public class MapTileFilesystemProvider extends MapTileFileStorageProviderBase {
 							.getPath());
 
 					// Check to see if file has expired
-					final long now = System.currentTimeMillis();
-					final long lastModified = file.lastModified();
-					final boolean fileExpired = lastModified < now
-							- mMaximumCachedFileAge;
+					final boolean fileExpired = getExpires(file) < System
+							.currentTimeMillis();
 
 					if (fileExpired) {
 						if (DEBUGMODE) {
@@ -124,6 +122,24 @@ public class MapTileFilesystemProvider extends MapTileFileStorageProviderBase {
 		mMaximumCachedFileAge = pMaximumCachedFileAge;
 	}
 
+	/**
+	 * Get the time when a cached tile becomes stale. The max age of the tile
+	 * source wins, then the freshness that the server sent with the tile, and
+	 * if there's neither then the file is fresh for the maximum cached file
+	 * age. This doesn't open any file in the common case.
+	 */
+	private long getExpires(final File pFile) {
+		final long tileMaxAge = mTileSource.getTileMaxAge();
+		if (tileMaxAge >= 0) {
+			return pFile.lastModified() + tileMaxAge;
+		}
+		final long expires = TileWriter.readExpires(pFile);
+		if (expires > 0) {
+			return expires;
+		}
+		return pFile.lastModified() + mMaximumCachedFileAge;
+	}
+
 	@Override
 	public int getMaximumZoomLevel() {
 		return mTileSource != null ? mTileSource.getMaximumZoomLevel()
@@ -0,0 +1,133 @@
+package com.google.android.maps;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The HTTP cache validators and freshness of a tile, as sent by the tile
+ * server. They are stored alongside the tile in the file system cache so that
+ * an expired tile can be revalidated with a conditional request instead of
+ * being downloaded again.
+ */
+public class MapTileMetadata {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final int VERSION = 1;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final String mETag;
+	private final String mLastModified;
+	private final long mExpires;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pETag
+	 *            the value of the ETag header, or null
+	 * @param pLastModified
+	 *            the value of the Last-Modified header, or null
+	 * @param pExpires
+	 *            the time in milliseconds since the epoch when the tile
+	 *            becomes stale, or 0 if the server didn't say
+	 */
+	public MapTileMetadata(final String pETag, final String pLastModified,
+			final long pExpires) {
+		mETag = pETag;
+		mLastModified = pLastModified;
+		mExpires = pExpires;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public String getETag() {
+		return mETag;
+	}
+
+	public String getLastModified() {
+		return mLastModified;
+	}
+
+	public long getExpires() {
+		return mExpires;
+	}
+
+	/**
+	 * @return true if there is a validator that can be sent in a conditional
+	 *         request
+	 */
+	public boolean hasValidator() {
+		return mETag != null || mLastModified != null;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Combine the headers of a revalidation response with these. A 304 response
+	 * doesn't have to repeat the validators, so the ones we have are kept
+	 * unless the server sent new ones.
+	 */
+	public MapTileMetadata merge(final MapTileMetadata pNewer) {
+		return new MapTileMetadata(pNewer.mETag != null ? pNewer.mETag : mETag,
+				pNewer.mLastModified != null ? pNewer.mLastModified
+						: mLastModified, pNewer.mExpires);
+	}
+
+	public void write(final OutputStream pOut) throws IOException {
+		final DataOutputStream out = new DataOutputStream(pOut);
+		out.writeByte(VERSION);
+		writeString(out, mETag);
+		writeString(out, mLastModified);
+		out.writeLong(mExpires);
+		out.flush();
+	}
+
+	/**
+	 * @return the metadata, or null if the stream doesn't contain metadata in
+	 *         a format we know
+	 */
+	public static MapTileMetadata read(final InputStream pIn)
+			throws IOException {
+		final DataInputStream in = new DataInputStream(pIn);
+		if (in.readByte() != VERSION) {
+			return null;
+		}
+		final String eTag = readString(in);
+		final String lastModified = readString(in);
+		final long expires = in.readLong();
+		return new MapTileMetadata(eTag, lastModified, expires);
+	}
+
+	private static void writeString(final DataOutputStream pOut,
+			final String pString) throws IOException {
+		pOut.writeBoolean(pString != null);
+		if (pString != null) {
+			pOut.writeUTF(pString);
+		}
+	}
+
+	private static String readString(final DataInputStream pIn)
+			throws IOException {
+		return pIn.readBoolean() ? pIn.readUTF() : null;
+	}
+
+	@Override
+	public String toString() {
+		return "MapTileMetadata: ETag=" + mETag + " Last-Modified="
+				+ mLastModified + " expires=" + mExpires;
+	}
+}
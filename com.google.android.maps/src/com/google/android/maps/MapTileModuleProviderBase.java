@@ -1,14 +1,10 @@
 package com.google.android.maps;
 
-import java.util.ConcurrentModificationException;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 
@@ -58,44 +54,9 @@ public abstract class MapTileModuleProviderBase implements
 				throws CantContinueException;
 
 		private MapTileRequestState nextTile() {
-
-			synchronized (mPending) {
-				MapTile result = null;
-
-				// get the most recently accessed tile
-				// - the last item in the iterator that's not already being
-				// processed
-				Iterator<MapTile> iterator = mPending.keySet().iterator();
-
-				// TODO this iterates the whole list, make this faster...
-				while (iterator.hasNext()) {
-					try {
-						final MapTile tile = iterator.next();
-						if (!mWorking.containsKey(tile)) {
-							result = tile;
-						}
-					} catch (final ConcurrentModificationException e) {
-						if (DEBUGMODE) {
-							Log.w("MapaAPI",
-									"MapTileModuleProviderBase: ConcurrentModificationException break: "
-											+ (result != null));
-						}
-
-						// if we've got a result return it, otherwise try again
-						if (result != null) {
-							break;
-						} else {
-							iterator = mPending.keySet().iterator();
-						}
-					}
-				}
-
-				if (result != null) {
-					mWorking.put(result, mPending.get(result));
-				}
-
-				return (result != null ? mPending.get(result) : null);
-			}
+			// get the most recently requested tile that's not already being
+			// processed
+			return mQueue.poll();
 		}
 
 		/**
@@ -112,6 +73,10 @@ public abstract class MapTileModuleProviderBase implements
 					Log.d("MapaAPI", "MapTileModuleProviderBase: Next tile: "
 							+ state.getMapTile());
 				}
+				if (state.isCanceled()) {
+					removeTileFromQueues(state);
+					continue;
+				}
 				try {
 					result = null;
 					result = loadTile(state);
@@ -126,7 +91,10 @@ public abstract class MapTileModuleProviderBase implements
 									+ state.getMapTile(), e);
 				}
 
-				if (result == null) {
+				if (state.isCanceled()) {
+					// nobody is interested in the result any more
+					removeTileFromQueues(state);
+				} else if (result == null) {
 					tileLoadedFailed(state);
 				} else if (ExpirableBitmapDrawable.isDrawableExpired(result)) {
 					tileLoadedExpired(state, result);
@@ -145,7 +113,7 @@ public abstract class MapTileModuleProviderBase implements
 		 */
 		protected void tileLoaded(final MapTileRequestState pState,
 				final Drawable pDrawable) {
-			removeTileFromQueues(pState.getMapTile());
+			removeTileFromQueues(pState);
 			pState.getCallback().mapTileRequestCompleted(pState, pDrawable);
 		}
 
@@ -155,21 +123,20 @@ public abstract class MapTileModuleProviderBase implements
 		 */
 		protected void tileLoadedExpired(final MapTileRequestState pState,
 				final Drawable pDrawable) {
-			pState.getCallback().mapTileRequestCompleted(pState, pDrawable);
-			pState.getCallback().mapTileRequestFailed(pState);
+			removeTileFromQueues(pState);
+			pState.setExpiredTile(pDrawable);
+			pState.getCallback().mapTileRequestExpiredTile(pState, pDrawable);
 		}
 
 		protected void tileLoadedFailed(final MapTileRequestState pState) {
-			removeTileFromQueues(pState.getMapTile());
+			removeTileFromQueues(pState);
 			pState.getCallback().mapTileRequestFailed(pState);
 		}
 	}
 
 	private final ExecutorService mExecutor;
 
-	private final ConcurrentHashMap<MapTile, MapTileRequestState> mWorking;
-
-	final LinkedHashMap<MapTile, MapTileRequestState> mPending;
+	final MapTileRequestQueue mQueue;
 
 	public MapTileModuleProviderBase(final int pThreadPoolSize,
 			final int pPendingQueueSize) {
@@ -177,30 +144,60 @@ public abstract class MapTileModuleProviderBase implements
 				new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY,
 						getThreadGroupName()));
 
-		mWorking = new ConcurrentHashMap<MapTile, MapTileRequestState>();
-		mPending = new LinkedHashMap<MapTile, MapTileRequestState>(
-				pPendingQueueSize + 2, 0.1f, true) {
+		mQueue = new MapTileRequestQueue(pPendingQueueSize);
+	}
 
-			private static final long serialVersionUID = 6455337315681858866L;
+	private void clearQueue() {
+		mQueue.clear();
+	}
 
-			@Override
-			protected boolean removeEldestEntry(
-					final Map.Entry<MapTile, MapTileRequestState> pEldest) {
-				if (size() > pPendingQueueSize) {
-					removeTileFromQueues(pEldest.getKey());
-					pEldest.getValue().getCallback()
-							.mapTileRequestFailed(pEldest.getValue());
-				}
-				return false;
-			}
-		};
+	/**
+	 * Cancel a tile request. A pending request is removed from the queue. If
+	 * the tile is being loaded, {@link #onTileRequestCanceled} is called and
+	 * the result will be dropped.
+	 * 
+	 * @param pState
+	 *            the request to cancel
+	 */
+	public void cancelTileRequest(final MapTileRequestState pState) {
+		pState.cancel();
+		if (!mQueue.removePending(pState)) {
+			onTileRequestCanceled(pState);
+		}
 	}
 
-	private void clearQueue() {
-		synchronized (mPending) {
-			mPending.clear();
+	/**
+	 * Cancel the requests for all tiles outside the given zoom level range and
+	 * viewport. Tiles at other zoom levels than the viewport are scaled to it.
+	 * 
+	 * @param pZoomLevel
+	 *            the zoom level of the viewport
+	 * @param pTileSizePx
+	 *            the tile size in pixels
+	 * @param pViewPort
+	 *            the viewport in Mercator pixels at the zoom level
+	 * @param pMinZoomLevel
+	 *            the lowest zoom level to keep tiles for
+	 * @param pMaxZoomLevel
+	 *            the highest zoom level to keep tiles for
+	 */
+	public void cancelTileRequests(final int pZoomLevel,
+			final int pTileSizePx, final Rect pViewPort,
+			final int pMinZoomLevel, final int pMaxZoomLevel) {
+		for (final MapTileRequestState state : mQueue.cancel(pZoomLevel,
+				pTileSizePx, pViewPort, pMinZoomLevel, pMaxZoomLevel)) {
+			onTileRequestCanceled(state);
 		}
-		mWorking.clear();
+	}
+
+	/**
+	 * Called when a request is canceled while its tile is being loaded.
+	 * Providers can override this to abort the work. Does nothing by default.
+	 * 
+	 * @param pState
+	 *            the canceled request
+	 */
+	protected void onTileRequestCanceled(final MapTileRequestState pState) {
 	}
 
 	/**
@@ -258,10 +255,11 @@ public abstract class MapTileModuleProviderBase implements
 	public abstract boolean getUsesDataConnection();
 
 	public void loadMapTileAsync(final MapTileRequestState pState) {
-		synchronized (mPending) {
-			// this will put the tile in the queue, or move it to the front of
-			// the queue if it's already present
-			mPending.put(pState.getMapTile(), pState);
+		// this will put the tile in the queue, or move it to the front of the
+		// queue if it's already present
+		final MapTileRequestState evicted = mQueue.put(pState);
+		if (evicted != null) {
+			evicted.getCallback().mapTileRequestFailed(evicted);
 		}
 		try {
 			mExecutor.execute(getTileLoader());
@@ -270,11 +268,25 @@ public abstract class MapTileModuleProviderBase implements
 		}
 	}
 
-	void removeTileFromQueues(final MapTile mapTile) {
-		synchronized (mPending) {
-			mPending.remove(mapTile);
-		}
-		mWorking.remove(mapTile);
+	void removeTileFromQueues(final MapTileRequestState pState) {
+		mQueue.remove(pState);
+	}
+
+	/**
+	 * Sets the viewport pending tiles are prioritized by. Tiles closest to the
+	 * center of the viewport at its zoom level are loaded first.
+	 * 
+	 * @param pZoomLevel
+	 *            the zoom level of the viewport
+	 * @param pTileSizePx
+	 *            the tile size in pixels
+	 * @param pViewPort
+	 *            the viewport in Mercator pixels, or null to load the most
+	 *            recently requested tiles first
+	 */
+	public void setViewport(final int pZoomLevel, final int pTileSizePx,
+			final Rect pViewPort) {
+		mQueue.setViewport(pZoomLevel, pTileSizePx, pViewPort);
 	}
 
 	/**
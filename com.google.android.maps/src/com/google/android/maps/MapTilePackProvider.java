@@ -0,0 +1,158 @@
+package com.google.android.maps;
+
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+import com.google.android.maps.BitmapTileSourceBase.LowMemoryException;
+
+/**
+ * Provides the tiles that are stored in a {@link TilePackCache}. This is the
+ * counterpart of {@link MapTileFilesystemProvider} for a pack cache.
+ */
+public class MapTilePackProvider extends MapTileFileStorageProviderBase {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private class TileLoader extends MapTileModuleProviderBase.TileLoader {
+
+		@Override
+		public Drawable loadTile(final MapTileRequestState pState)
+				throws CantContinueException {
+
+			if (mTileSource == null) {
+				return null;
+			}
+
+			final MapTile tile = pState.getMapTile();
+
+			// if there's no sdcard then don't do anything
+			if (!getSdCardAvailable()) {
+				if (DEBUGMODE) {
+					Log.d("MapsAPI", "No sdcard - do nothing for tile: " + tile);
+				}
+				return null;
+			}
+
+			final TilePackStore.Record record = mPackCache.read(mTileSource,
+					tile);
+			if (record == null) {
+				return null;
+			}
+
+			try {
+				final Drawable drawable = mTileSource.getDrawable(record.mData);
+				if (drawable == null) {
+					return null;
+				}
+
+				// Check to see if the tile has expired
+				if (getExpires(record) < System.currentTimeMillis()) {
+					if (DEBUGMODE) {
+						Log.d("MapsAPI", "MapTilePackProvider: Tile expired: "
+								+ tile);
+					}
+					drawable.setState(new int[] { ExpirableBitmapDrawable.EXPIRED });
+				}
+
+				return drawable;
+			} catch (final LowMemoryException e) {
+				// low memory so empty the queue
+				Log.w("MapsAPI", "MapTilePackProvider: LowMemoryException loading MapTile: "
+						+ tile + " : " + e);
+				throw new CantContinueException(e);
+			}
+		}
+	}
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final TilePackCache mPackCache;
+
+	private final long mMaximumCachedFileAge;
+
+	private ITileSource mTileSource;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public MapTilePackProvider(final IRegisterReceiver pRegisterReceiver,
+			final ITileSource pTileSource, final TilePackCache pPackCache) {
+		this(pRegisterReceiver, pTileSource, pPackCache,
+				DEFAULT_MAXIMUM_CACHED_FILE_AGE);
+	}
+
+	public MapTilePackProvider(final IRegisterReceiver pRegisterReceiver,
+			final ITileSource pTileSource, final TilePackCache pPackCache,
+			final long pMaximumCachedFileAge) {
+		super(pRegisterReceiver, NUMBER_OF_TILE_FILESYSTEM_THREADS,
+				TILE_FILESYSTEM_MAXIMUM_QUEUE_SIZE);
+		mTileSource = pTileSource;
+		mPackCache = pPackCache;
+		mMaximumCachedFileAge = pMaximumCachedFileAge;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Get the time when a cached tile becomes stale, by the same rules as
+	 * {@link MapTileFilesystemProvider}.
+	 */
+	private long getExpires(final TilePackStore.Record pRecord) {
+		final long tileMaxAge = mTileSource.getTileMaxAge();
+		if (tileMaxAge >= 0) {
+			return pRecord.mSavedTime + tileMaxAge;
+		}
+		if (pRecord.mMetadata != null && pRecord.mMetadata.getExpires() > 0) {
+			return pRecord.mMetadata.getExpires();
+		}
+		return pRecord.mSavedTime + mMaximumCachedFileAge;
+	}
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public int getMaximumZoomLevel() {
+		return mTileSource != null ? mTileSource.getMaximumZoomLevel()
+				: MAXIMUM_ZOOMLEVEL;
+	}
+
+	@Override
+	public int getMinimumZoomLevel() {
+		return mTileSource != null ? mTileSource.getMinimumZoomLevel()
+				: MINIMUM_ZOOMLEVEL;
+	}
+
+	@Override
+	protected String getName() {
+		return "Pack Cache Provider";
+	}
+
+	@Override
+	protected String getThreadGroupName() {
+		return "pack";
+	}
+
+	@Override
+	protected Runnable getTileLoader() {
+		return new TileLoader();
+	}
+
+	@Override
+	public boolean getUsesDataConnection() {
+		return false;
+	}
+
+	@Override
+	public void setTileSource(final ITileSource pTileSource) {
+		mTileSource = pTileSource;
+	}
+}
@@ -0,0 +1,333 @@
+package com.google.android.maps;
+
+import java.util.ArrayList;
+
+import microsoft.mappoint.TileSystem;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Loads the tiles around the viewport of a {@link MapView} before they're
+ * needed, so panning into a neighbouring area or zooming by one level shows
+ * the map at once. The tiles in a ring around the viewport are loaded first,
+ * then the tiles of the next zoom level out and in. They're requested from the
+ * tile provider like any other tile, so tiles in the file system cache are
+ * decoded into the memory cache and missing ones are downloaded.
+ *
+ * The prefetcher is careful not to compete with the tiles on screen: it only
+ * runs while the map is idle, keeps only a few requests in the provider at a
+ * time, stops when the memory cache is mostly full, and loads a limited number
+ * of tiles per viewport. It runs on the UI thread and only does work between
+ * frames.
+ */
+public class MapTilePrefetcher implements Runnable,
+		OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	/** the number of tiles around the viewport loaded by default */
+	public static final int DEFAULT_RING_SIZE = 1;
+
+	/** the number of prefetch requests in the provider at a time by default */
+	public static final int DEFAULT_MAXIMUM_PENDING_REQUESTS = 4;
+
+	/** the number of tiles loaded for a viewport by default */
+	public static final int DEFAULT_MAXIMUM_TILES = 64;
+
+	/** how long the map has to be left alone before prefetching starts */
+	private static final long IDLE_DELAY_MILLISECONDS = 500;
+
+	/** how often to check again while the provider is busy */
+	private static final long RETRY_DELAY_MILLISECONDS = 250;
+
+	/** prefetching stops at this percentage of the memory cache size */
+	private static final int MAXIMUM_CACHE_PERCENT = 75;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final MapView mMapView;
+	private final MapTileProviderBase mTileProvider;
+	private final Handler mHandler = new Handler();
+
+	private boolean mAutomatic = false;
+	private int mRingSize = DEFAULT_RING_SIZE;
+	private int mMaximumPendingRequests = DEFAULT_MAXIMUM_PENDING_REQUESTS;
+	private int mMaximumTiles = DEFAULT_MAXIMUM_TILES;
+
+	private long mLastInteractionMs;
+	private boolean mScheduled;
+
+	/** the viewport the tiles are for */
+	private final Rect mViewPort = new Rect();
+	private int mZoomLevel = -1;
+	private ITileSource mTileSource;
+
+	/** the tiles to load in order, and the next one */
+	private final ArrayList<MapTile> mTiles = new ArrayList<MapTile>();
+	private final LongHashMap<MapTile> mTileKeys = new LongHashMap<MapTile>();
+	private int mNextTile;
+	private int mRequestedTiles;
+
+	private final Rect mScreenRect = new Rect();
+	private final Point mUpperLeft = new Point();
+	private final Point mLowerRight = new Point();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * Must be created on the UI thread.
+	 */
+	public MapTilePrefetcher(final MapView pMapView,
+			final MapTileProviderBase pTileProvider) {
+		mMapView = pMapView;
+		mTileProvider = pTileProvider;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public boolean isAutomatic() {
+		return mAutomatic;
+	}
+
+	/**
+	 * Set whether to prefetch whenever the viewport has changed, instead of
+	 * only when {@link #preLoad()} is called.
+	 */
+	public void setAutomatic(final boolean pAutomatic) {
+		mAutomatic = pAutomatic;
+		if (pAutomatic) {
+			schedule(IDLE_DELAY_MILLISECONDS);
+		} else {
+			stop();
+		}
+	}
+
+	public int getRingSize() {
+		return mRingSize;
+	}
+
+	/**
+	 * Set the number of tiles around the viewport to load at its zoom level.
+	 * The next zoom level out gets the same area, the next zoom level in only
+	 * the viewport.
+	 */
+	public void setRingSize(final int pRingSize) {
+		mRingSize = Math.max(0, pRingSize);
+		mZoomLevel = -1;
+	}
+
+	public int getMaximumPendingRequests() {
+		return mMaximumPendingRequests;
+	}
+
+	/**
+	 * Set the number of requests the provider may have in progress for the
+	 * prefetcher to add one. This limits the bandwidth taken from the tiles on
+	 * screen.
+	 */
+	public void setMaximumPendingRequests(final int pMaximumPendingRequests) {
+		mMaximumPendingRequests = Math.max(1, pMaximumPendingRequests);
+	}
+
+	public int getMaximumTiles() {
+		return mMaximumTiles;
+	}
+
+	/**
+	 * Set the number of tiles to request at most for a viewport.
+	 */
+	public void setMaximumTiles(final int pMaximumTiles) {
+		mMaximumTiles = Math.max(0, pMaximumTiles);
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Load the tiles around the current viewport, once the map is idle.
+	 */
+	public void preLoad() {
+		// start over, even if the viewport hasn't changed
+		mZoomLevel = -1;
+		schedule(0);
+	}
+
+	/**
+	 * Tell the prefetcher the user is touching the map, so it waits.
+	 */
+	public void onInteraction() {
+		mLastInteractionMs = System.currentTimeMillis();
+	}
+
+	/**
+	 * Tell the prefetcher the map has moved or zoomed.
+	 */
+	public void onViewportChanged() {
+		if (mAutomatic) {
+			schedule(IDLE_DELAY_MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stop prefetching until the next call to {@link #preLoad()} or
+	 * {@link #onViewportChanged()}.
+	 */
+	public void stop() {
+		mHandler.removeCallbacks(this);
+		mScheduled = false;
+	}
+
+	private void schedule(final long pDelayMs) {
+		if (mScheduled) {
+			if (pDelayMs > 0) {
+				return;
+			}
+			mHandler.removeCallbacks(this);
+		}
+		mScheduled = true;
+		mHandler.postDelayed(this, pDelayMs);
+	}
+
+	@Override
+	public void run() {
+		mScheduled = false;
+
+		// wait until the map is left alone
+		final long idleMs = System.currentTimeMillis() - mLastInteractionMs;
+		if (idleMs < IDLE_DELAY_MILLISECONDS || mMapView.isAnimating()
+				|| !mMapView.getScroller().isFinished()) {
+			schedule(Math.max(RETRY_DELAY_MILLISECONDS,
+					IDLE_DELAY_MILLISECONDS - idleMs));
+			return;
+		}
+
+		final int zoomLevel = mMapView.getZoomLevel(false);
+		final int worldSize_2 = TileSystem.MapSize(zoomLevel) >> 1;
+		mMapView.getScreenRect(mScreenRect);
+		mScreenRect.offset(worldSize_2, worldSize_2);
+		if (zoomLevel != mZoomLevel || !mScreenRect.equals(mViewPort)
+				|| mTileProvider.getTileSource() != mTileSource) {
+			mZoomLevel = zoomLevel;
+			mViewPort.set(mScreenRect);
+			mTileSource = mTileProvider.getTileSource();
+			collectTiles();
+		}
+
+		final MapTileCache cache = mTileProvider.getTileCache();
+		while (mNextTile < mTiles.size() && mRequestedTiles < mMaximumTiles) {
+			if (cache.getSize() * 100 >= cache.getMaximumSize()
+					* MAXIMUM_CACHE_PERCENT) {
+				if (DEBUGMODE) {
+					Log.d("MapsAPI", "MapTilePrefetcher: tile cache is full");
+				}
+				return;
+			}
+			if (mTileProvider.getPendingRequestCount() >= mMaximumPendingRequests) {
+				schedule(RETRY_DELAY_MILLISECONDS);
+				return;
+			}
+			final MapTile tile = mTiles.get(mNextTile++);
+			final Drawable drawable = cache.getMapTile(tile.getKey());
+			if (drawable == null
+					|| ExpirableBitmapDrawable.isDrawableExpired(drawable)) {
+				// this starts loading the tile
+				mTileProvider.getMapTile(tile);
+				mRequestedTiles++;
+			}
+		}
+
+		if (DEBUGMODE) {
+			Log.d("MapsAPI", "MapTilePrefetcher: requested " + mRequestedTiles
+					+ " tiles around " + mViewPort + " at zoom level "
+					+ mZoomLevel);
+		}
+	}
+
+	/**
+	 * Make the list of tiles to load for the viewport: the rings around it
+	 * from the inside out, then the next zoom level out, then the viewport at
+	 * the next zoom level in.
+	 */
+	private void collectTiles() {
+		mTiles.clear();
+		mTileKeys.clear();
+		mNextTile = 0;
+		mRequestedTiles = 0;
+
+		TileSystem.PixelXYToTileXY(mViewPort.left, mViewPort.top, mUpperLeft);
+		TileSystem.PixelXYToTileXY(mViewPort.right, mViewPort.bottom,
+				mLowerRight);
+		final int left = mUpperLeft.x;
+		final int top = mUpperLeft.y;
+		final int right = mLowerRight.x;
+		final int bottom = mLowerRight.y;
+
+		// the tiles on screen are requested by the overlay
+		for (int y = top; y <= bottom; y++) {
+			for (int x = left; x <= right; x++) {
+				addTile(mZoomLevel, x, y, false);
+			}
+		}
+		for (int ring = 1; ring <= mRingSize; ring++) {
+			for (int y = top - ring; y <= bottom + ring; y++) {
+				for (int x = left - ring; x <= right + ring; x++) {
+					if (y == top - ring || y == bottom + ring
+							|| x == left - ring || x == right + ring) {
+						addTile(mZoomLevel, x, y, true);
+					}
+				}
+			}
+		}
+
+		if (mZoomLevel > mTileProvider.getMinimumZoomLevel()) {
+			for (int y = (top - mRingSize) >> 1; y <= (bottom + mRingSize) >> 1; y++) {
+				for (int x = (left - mRingSize) >> 1; x <= (right + mRingSize) >> 1; x++) {
+					addTile(mZoomLevel - 1, x, y, true);
+				}
+			}
+		}
+
+		if (mZoomLevel < mTileProvider.getMaximumZoomLevel()) {
+			for (int y = top << 1; y <= (bottom << 1) + 1; y++) {
+				for (int x = left << 1; x <= (right << 1) + 1; x++) {
+					addTile(mZoomLevel + 1, x, y, true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add a tile to load, wrapping around the world horizontally, unless it's
+	 * off the map or added already.
+	 */
+	private void addTile(final int pZoomLevel, final int pX, final int pY,
+			final boolean pLoad) {
+		final int mapTileUpperBound = 1 << pZoomLevel;
+		if (pY < 0 || pY >= mapTileUpperBound) {
+			return;
+		}
+		final int x = MyMath.mod(pX, mapTileUpperBound);
+		final long key = MapTile.getKey(pZoomLevel, x, pY);
+		if (mTileKeys.containsKey(key)) {
+			return;
+		}
+		final MapTile tile = new MapTile(pZoomLevel, x, pY);
+		mTileKeys.put(key, tile);
+		if (pLoad) {
+			mTiles.add(tile);
+		}
+	}
+}
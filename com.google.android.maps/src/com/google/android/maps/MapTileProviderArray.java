@@ -3,8 +3,8 @@ package com.google.android.maps;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 
@@ -28,7 +28,8 @@ import android.util.Log;
  */
 public class MapTileProviderArray extends MapTileProviderBase {
 
-	private final ConcurrentHashMap<MapTileRequestState, MapTile> mWorking;
+	/** the requests in the chain by tile key, at most one per tile */
+	private final LongHashMap<MapTileRequestState> mWorking;
 
 	protected final List<MapTileModuleProviderBase> mTileProviderList;
 
@@ -57,7 +58,7 @@ public class MapTileProviderArray extends MapTileProviderBase {
 			final MapTileModuleProviderBase[] pTileProviderArray) {
 		super(pTileSource);
 
-		mWorking = new ConcurrentHashMap<MapTileRequestState, MapTile>();
+		mWorking = new LongHashMap<MapTileRequestState>();
 
 		mTileProviderList = new ArrayList<MapTileModuleProviderBase>();
 		Collections.addAll(mTileProviderList, pTileProviderArray);
@@ -80,19 +81,25 @@ public class MapTileProviderArray extends MapTileProviderBase {
 	protected MapTileModuleProviderBase findNextAppropriateProvider(
 			final MapTileRequestState aState) {
 		MapTileModuleProviderBase provider = null;
+		final int zoomLevel = aState.getMapTile().getZoomLevel();
 		// The logic of the while statement is
-		// "Keep looping until you get null, or a provider that still exists and has a data connection if it needs one,"
+		// "Keep looping until you get null, or a provider that still exists, has a data connection if it needs one,"
+		// "and has the zoom level of the tile"
 		do {
 			provider = aState.getNextProvider();
 		} while ((provider != null)
-				&& (!getProviderExists(provider) || (!useDataConnection() && provider
-						.getUsesDataConnection())));
+				&& (!getProviderExists(provider)
+						|| (!useDataConnection() && provider
+								.getUsesDataConnection())
+						|| zoomLevel < provider.getMinimumZoomLevel() || zoomLevel > provider
+						.getMaximumZoomLevel()));
 		return provider;
 	}
 
 	@Override
 	public Drawable getMapTile(final MapTile pTile) {
-		final Drawable tile = mTileCache.getMapTile(pTile);
+		final long key = pTile.getKey();
+		final Drawable tile = mTileCache.getMapTile(key);
 		if (tile != null && !ExpirableBitmapDrawable.isDrawableExpired(tile)) {
 			if (DEBUGMODE) {
 				Log.d("MapaAPI",
@@ -101,44 +108,89 @@ public class MapTileProviderArray extends MapTileProviderBase {
 			}
 			return tile;
 		} else {
-			boolean alreadyInProgress = false;
+			final MapTileRequestState existing;
 			synchronized (mWorking) {
-				alreadyInProgress = mWorking.containsValue(pTile);
+				existing = mWorking.get(key);
+			}
+			if (existing != null && !existing.isCanceled()) {
+				// coalesce onto the request that's already in the chain
+				return tile;
 			}
 
-			if (!alreadyInProgress) {
-				if (DEBUGMODE) {
-					Log.d("MapaAPI",
-							"MapTileProviderArray: Cache failed, trying from async providers: "
-									+ pTile);
-				}
-
-				final MapTileRequestState state;
-				synchronized (mTileProviderList) {
-					final MapTileModuleProviderBase[] providerArray = new MapTileModuleProviderBase[mTileProviderList
-							.size()];
-					state = new MapTileRequestState(pTile,
-							mTileProviderList.toArray(providerArray), this);
-				}
+			if (DEBUGMODE) {
+				Log.d("MapaAPI",
+						"MapTileProviderArray: Cache failed, trying from async providers: "
+								+ pTile);
+			}
 
-				synchronized (mWorking) {
-					// Check again
-					alreadyInProgress = mWorking.containsValue(pTile);
-					if (alreadyInProgress) {
-						return null;
-					}
+			final MapTileRequestState state;
+			synchronized (mTileProviderList) {
+				final MapTileModuleProviderBase[] providerArray = new MapTileModuleProviderBase[mTileProviderList
+						.size()];
+				state = new MapTileRequestState(pTile,
+						mTileProviderList.toArray(providerArray), this);
+			}
 
-					mWorking.put(state, pTile);
+			// claim the tile, unless another thread got there first
+			synchronized (mWorking) {
+				if (mWorking.get(key) != existing) {
+					return tile;
 				}
+				mWorking.put(key, state);
+			}
 
-				final MapTileModuleProviderBase provider = findNextAppropriateProvider(state);
-				if (provider != null) {
-					provider.loadMapTileAsync(state);
+			final MapTileModuleProviderBase provider = findNextAppropriateProvider(state);
+			if (provider != null) {
+				provider.loadMapTileAsync(state);
+			} else {
+				mapTileRequestFailed(state);
+			}
+			return tile;
+		}
+	}
+
+	@Override
+	public void cancelTileRequests(final int pZoomLevel,
+			final int pTileSizePx, final Rect pViewPort,
+			final int pMinZoomLevel, final int pMaxZoomLevel) {
+		final List<MapTileRequestState> canceled = new ArrayList<MapTileRequestState>();
+		synchronized (mWorking) {
+			int slot = 0;
+			while (slot < mWorking.capacity()) {
+				final MapTileRequestState state = mWorking.getValueAt(slot);
+				if (state != null
+						&& !MapTileRequestQueue.isTileInArea(
+								state.getMapTile(), pZoomLevel, pTileSizePx,
+								pViewPort, pMinZoomLevel, pMaxZoomLevel)) {
+					canceled.add(state);
+					// another request may move into the slot
+					mWorking.removeAt(slot);
 				} else {
-					mapTileRequestFailed(state);
+					slot++;
 				}
 			}
-			return tile;
+		}
+
+		if (DEBUGMODE) {
+			Log.d("MapaAPI", "MapTileProviderArray: Canceling "
+					+ canceled.size() + " tile requests");
+		}
+
+		for (final MapTileRequestState state : canceled) {
+			final MapTileModuleProviderBase provider = state
+					.getCurrentProvider();
+			if (provider != null) {
+				provider.cancelTileRequest(state);
+			} else {
+				state.cancel();
+			}
+		}
+	}
+
+	@Override
+	public int getPendingRequestCount() {
+		synchronized (mWorking) {
+			return mWorking.size();
 		}
 	}
 
@@ -177,25 +229,48 @@ public class MapTileProviderArray extends MapTileProviderBase {
 	@Override
 	public void mapTileRequestCompleted(final MapTileRequestState aState,
 			final Drawable aDrawable) {
-		synchronized (mWorking) {
-			mWorking.remove(aState);
-		}
+		removeWorking(aState);
 		super.mapTileRequestCompleted(aState, aDrawable);
 	}
 
 	@Override
 	public void mapTileRequestFailed(final MapTileRequestState aState) {
+		if (aState.isCanceled()) {
+			removeWorking(aState);
+			return;
+		}
 		final MapTileModuleProviderBase nextProvider = findNextAppropriateProvider(aState);
 		if (nextProvider != null) {
 			nextProvider.loadMapTileAsync(aState);
 		} else {
-			synchronized (mWorking) {
-				mWorking.remove(aState);
-			}
+			removeWorking(aState);
 			super.mapTileRequestFailed(aState);
 		}
 	}
 
+	/**
+	 * Remove a request from the chain, unless the tile has been claimed by
+	 * another request since.
+	 */
+	private void removeWorking(final MapTileRequestState pState) {
+		final long key = pState.getMapTile().getKey();
+		synchronized (mWorking) {
+			if (mWorking.get(key) == pState) {
+				mWorking.remove(key);
+			}
+		}
+	}
+
+	@Override
+	protected void onViewportChanged(final int pZoomLevel,
+			final int pTileSizePx, final Rect pViewPort) {
+		synchronized (mTileProviderList) {
+			for (final MapTileModuleProviderBase tileProvider : mTileProviderList) {
+				tileProvider.setViewport(pZoomLevel, pTileSizePx, pViewPort);
+			}
+		}
+	}
+
 	@Override
 	public void setTileSource(final ITileSource aTileSource) {
 		super.setTileSource(aTileSource);
@@ -213,9 +288,7 @@ public class MapTileProviderArray extends MapTileProviderBase {
 		if (nextProvider != null) {
 			nextProvider.loadMapTileAsync(aState);
 		} else {
-			synchronized (mWorking) {
-				mWorking.remove(aState);
-			}
+			removeWorking(aState);
 		}
 		super.mapTileRequestExpiredTile(aState, aDrawable);
 	}
@@ -1,7 +1,14 @@
 // Created by plusminus on 21:46:22 - 25.09.2008
 package com.google.android.maps;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import microsoft.mappoint.TileSystem;
 
@@ -30,67 +37,133 @@ import android.util.Log;
 public abstract class MapTileProviderBase implements IMapTileProviderCallback,
 		OpenStreetMapTileProviderConstants {
 
-	private abstract class ScaleTileLooper extends TileLooper {
-
-		/**
-		 * new (scaled) tiles to add to cache NB first generate all and then put
-		 * all in cache, otherwise the ones we need will be pushed out
-		 */
-		protected final HashMap<MapTile, Bitmap> mNewTiles;
+	/**
+	 * Creates scaled placeholders from the tiles of the previous zoom level in
+	 * the cache, on the rescale thread. The tiles are done from the center of
+	 * the viewport outwards, and each placeholder is published as soon as it's
+	 * done, unless the real tile has arrived in the meantime. A newer rescale
+	 * cancels this one.
+	 */
+	private abstract class ScaleTileLooper extends TileLooper implements
+			Runnable {
 
 		protected final int mOldZoomLevel;
+		protected final int mNewZoomLevel;
+		protected final int mTileSizePx;
+		protected final Rect mViewPort;
+		protected final int mGeneration;
 		protected int mDiff;
 		protected int mTileSize_2;
 		protected Rect mSrcRect;
 		protected Rect mDestRect;
 		protected Paint mDebugPaint;
+		protected final Canvas mCanvas = new Canvas();
+
+		/** the tiles to scale, as tile keys and distances to the center */
+		private final ArrayList<long[]> mTiles = new ArrayList<long[]>();
 
-		public ScaleTileLooper(final int pOldZoomLevel) {
+		public ScaleTileLooper(final int pOldZoomLevel,
+				final int pNewZoomLevel, final int pTileSizePx,
+				final Rect pViewPort, final int pGeneration) {
 			mOldZoomLevel = pOldZoomLevel;
-			mNewTiles = new HashMap<MapTile, Bitmap>();
+			mNewZoomLevel = pNewZoomLevel;
+			mTileSizePx = pTileSizePx;
+			mViewPort = pViewPort;
+			mGeneration = pGeneration;
 			mSrcRect = new Rect();
 			mDestRect = new Rect();
 			mDebugPaint = new Paint();
 		}
 
 		@Override
-		public void finaliseLoop() {
-			// now add the new ones, pushing out the old ones
-			while (!mNewTiles.isEmpty()) {
-				final MapTile tile = mNewTiles.keySet().iterator().next();
-				final Bitmap bitmap = mNewTiles.remove(tile);
-				final ExpirableBitmapDrawable drawable = new ExpirableBitmapDrawable(
-						bitmap);
-				drawable.setState(new int[] { ExpirableBitmapDrawable.EXPIRED });
-                Drawable existingTile = mTileCache.getMapTile(tile);
-                if (existingTile == null || ExpirableBitmapDrawable.isDrawableExpired(existingTile))
-                        mTileCache.putTile(tile, drawable);
-
+		public void run() {
+			if (isCanceled()) {
+				return;
 			}
+			final long startMs = System.currentTimeMillis();
+			loop(null, mNewZoomLevel, mTileSizePx, mViewPort);
+			Log.i("MapaAPI", "MapTileProviderBase: Finished rescale in "
+					+ (System.currentTimeMillis() - startMs) + "ms");
 		}
 
-		@Override
-		public void handleTile(final Canvas pCanvas, final int pTileSizePx,
-				final MapTile pTile, final int pX, final int pY) {
+		protected boolean isCanceled() {
+			return mRescaleGeneration.get() != mGeneration;
+		}
 
-			// Get tile from cache.
-			// If it's found then no need to created scaled version.
-			// If not found (null) them we've initiated a new request for it,
-			// and now we'll create a scaled version until the request
-			// completes.
-			final Drawable requestedTile = getMapTile(pTile);
-			if (requestedTile == null) {
+		@Override
+		public void finaliseLoop() {
+			// scale the tiles closest to the center first
+			Collections.sort(mTiles, new Comparator<long[]>() {
+				@Override
+				public int compare(final long[] pLhs, final long[] pRhs) {
+					return pLhs[1] < pRhs[1] ? -1 : pLhs[1] == pRhs[1] ? 0 : 1;
+				}
+			});
+			for (final long[] tile : mTiles) {
+				if (isCanceled()) {
+					Log.i("MapaAPI", "MapTileProviderBase: rescale canceled");
+					return;
+				}
+				// skip the tiles that have arrived for real
+				if (mTileCache.getMapTile(tile[0]) != null) {
+					continue;
+				}
+				// the old tiles may be evicted while they're scaled, so keep
+				// their bitmaps out of the pool until then
+				final BitmapPool pool = BitmapPool.getInstance();
+				pool.holdDeferred();
 				try {
-					handleTile(pTileSizePx, pTile, pX, pY);
+					final Bitmap bitmap = handleTile(mTileSizePx, tile[0]);
+					if (bitmap != null) {
+						publish(tile[0], bitmap);
+					}
 				} catch (final OutOfMemoryError e) {
 					Log.e("MapaAPI",
 							"MapTileProviderBase: OutOfMemoryError rescaling cache");
+					return;
+				} catch (final RuntimeException e) {
+					// an old tile was recycled while it was being scaled
+					Log.w("MapaAPI", "MapTileProviderBase: Error rescaling "
+							+ "cache: " + e);
+				} finally {
+					pool.unholdDeferred();
 				}
 			}
 		}
 
-		protected abstract void handleTile(int pTileSizePx, MapTile pTile,
-				int pX, int pY);
+		private void publish(final long pKey, final Bitmap pBitmap) {
+			final ExpirableBitmapDrawable drawable = new ExpirableBitmapDrawable(
+					pBitmap);
+			drawable.setState(new int[] { ExpirableBitmapDrawable.EXPIRED });
+			if (mTileCache.putTileIfAbsent(pKey, drawable)) {
+				if (mTileRequestCompleteHandler != null) {
+					mTileRequestCompleteHandler
+							.sendEmptyMessage(MapTile.MAPTILE_SUCCESS_ID);
+				}
+			} else {
+				// the real tile has arrived
+				BitmapPool.getInstance().recycle(pBitmap);
+			}
+		}
+
+		@Override
+		public void handleTile(final Canvas pCanvas, final int pTileSizePx,
+				final MapTile pTile, final int pX, final int pY) {
+			// tiles that are in the cache need no scaled version
+			final long key = pTile.getKey();
+			if (mTileCache.getMapTile(key) == null) {
+				final long dx = 2L * pX * pTileSizePx + pTileSizePx
+						- (mViewPort.left + mViewPort.right);
+				final long dy = 2L * pY * pTileSizePx + pTileSizePx
+						- (mViewPort.top + mViewPort.bottom);
+				mTiles.add(new long[] { key, dx * dx + dy * dy });
+			}
+		}
+
+		/**
+		 * @return the scaled tile, or null if there's nothing to scale it from
+		 */
+		protected abstract Bitmap handleTile(int pTileSizePx, long pTileKey);
 
 		@Override
 		public void initialiseLoop(final int pZoomLevel, final int pTileSizePx) {
@@ -100,112 +173,131 @@ public abstract class MapTileProviderBase implements IMapTileProviderCallback,
 	}
 
 	private class ZoomInTileLooper extends ScaleTileLooper {
-		public ZoomInTileLooper(final int pOldZoomLevel) {
-			super(pOldZoomLevel);
+		public ZoomInTileLooper(final int pOldZoomLevel,
+				final int pNewZoomLevel, final int pTileSizePx,
+				final Rect pViewPort, final int pGeneration) {
+			super(pOldZoomLevel, pNewZoomLevel, pTileSizePx, pViewPort,
+					pGeneration);
 		}
 
 		@Override
-		public void handleTile(final int pTileSizePx, final MapTile pTile,
-				final int pX, final int pY) {
+		public Bitmap handleTile(final int pTileSizePx, final long pTileKey) {
 			// get the correct fraction of the tile from cache and scale up
-
-			final MapTile oldTile = new MapTile(mOldZoomLevel,
-					pTile.getX() >> mDiff, pTile.getY() >> mDiff);
-			final Drawable oldDrawable = mTileCache.getMapTile(oldTile);
+			final int tileX = MapTile.getX(pTileKey);
+			final int tileY = MapTile.getY(pTileKey);
+			final Drawable oldDrawable = mTileCache.getMapTile(MapTile.getKey(
+					mOldZoomLevel, tileX >> mDiff, tileY >> mDiff));
 
 			if (oldDrawable instanceof BitmapDrawable) {
 				final Bitmap oldBitmap = ((BitmapDrawable) oldDrawable)
 						.getBitmap();
-				final int xx = (pX % (1 << mDiff)) * mTileSize_2;
-				final int yy = (pY % (1 << mDiff)) * mTileSize_2;
+				if (oldBitmap == null || oldBitmap.isRecycled()) {
+					return null;
+				}
+				final int xx = (tileX % (1 << mDiff)) * mTileSize_2;
+				final int yy = (tileY % (1 << mDiff)) * mTileSize_2;
 				mSrcRect.set(xx, yy, xx + mTileSize_2, yy + mTileSize_2);
 				mDestRect.set(0, 0, pTileSizePx, pTileSizePx);
-				final Bitmap bitmap = Bitmap.createBitmap(pTileSizePx,
-						pTileSizePx, Bitmap.Config.RGB_565);
-				final Canvas canvas = new Canvas(bitmap);
-				canvas.drawBitmap(oldBitmap, mSrcRect, mDestRect, null);
+				final Bitmap bitmap = BitmapPool.getInstance().createBitmap(
+						pTileSizePx, pTileSizePx, Bitmap.Config.RGB_565);
+				mCanvas.setBitmap(bitmap);
+				mCanvas.drawBitmap(oldBitmap, mSrcRect, mDestRect, null);
 				if (DEBUGMODE) {
 					Log.d("MapaAPI",
-							"MapTileProviderBase: Created scaled tile: "
-									+ pTile);
+							"MapTileProviderBase: Created scaled tile: /"
+									+ mNewZoomLevel + "/" + tileX + "/" + tileY);
 					mDebugPaint.setTextSize(40);
-					canvas.drawText("scaled", 50, 50, mDebugPaint);
+					mCanvas.drawText("scaled", 50, 50, mDebugPaint);
 				}
-				mNewTiles.put(pTile, bitmap);
+				return bitmap;
 			}
+			return null;
 		}
 	}
 
 	private class ZoomOutTileLooper extends ScaleTileLooper {
 		private static final int MAX_ZOOM_OUT_DIFF = 4;
 
-		public ZoomOutTileLooper(final int pOldZoomLevel) {
-			super(pOldZoomLevel);
+		public ZoomOutTileLooper(final int pOldZoomLevel,
+				final int pNewZoomLevel, final int pTileSizePx,
+				final Rect pViewPort, final int pGeneration) {
+			super(pOldZoomLevel, pNewZoomLevel, pTileSizePx, pViewPort,
+					pGeneration);
 		}
 
 		@Override
-		protected void handleTile(final int pTileSizePx, final MapTile pTile,
-				final int pX, final int pY) {
+		protected Bitmap handleTile(final int pTileSizePx, final long pTileKey) {
 
 			if (mDiff >= MAX_ZOOM_OUT_DIFF) {
-				return;
+				return null;
 			}
 
 			// get many tiles from cache and make one tile from them
-			final int xx = pTile.getX() << mDiff;
-			final int yy = pTile.getY() << mDiff;
+			final int xx = MapTile.getX(pTileKey) << mDiff;
+			final int yy = MapTile.getY(pTileKey) << mDiff;
 			final int numTiles = 1 << mDiff;
 			Bitmap bitmap = null;
-			Canvas canvas = null;
 			for (int x = 0; x < numTiles; x++) {
 				for (int y = 0; y < numTiles; y++) {
-					final MapTile oldTile = new MapTile(mOldZoomLevel, xx + x,
+					final long oldKey = MapTile.getKey(mOldZoomLevel, xx + x,
 							yy + y);
-					final Drawable oldDrawable = mTileCache.getMapTile(oldTile);
+					final Drawable oldDrawable = mTileCache.getMapTile(oldKey);
 					if (oldDrawable instanceof BitmapDrawable) {
 						final Bitmap oldBitmap = ((BitmapDrawable) oldDrawable)
 								.getBitmap();
-						if (oldBitmap != null) {
+						if (oldBitmap != null && !oldBitmap.isRecycled()) {
 							if (bitmap == null) {
-								bitmap = Bitmap.createBitmap(pTileSizePx,
-										pTileSizePx, Bitmap.Config.RGB_565);
-								canvas = new Canvas(bitmap);
-								canvas.drawColor(Color.LTGRAY);
+								bitmap = BitmapPool.getInstance().createBitmap(
+										pTileSizePx, pTileSizePx,
+										Bitmap.Config.RGB_565);
+								mCanvas.setBitmap(bitmap);
+								mCanvas.drawColor(Color.LTGRAY);
 							}
 							mDestRect.set(x * mTileSize_2, y * mTileSize_2,
 									(x + 1) * mTileSize_2, (y + 1)
 											* mTileSize_2);
-							if (oldBitmap != null) {
-								canvas.drawBitmap(oldBitmap, null, mDestRect,
-										null);
-								mTileCache.mCachedTiles.remove(oldBitmap);
-							}
+							mCanvas.drawBitmap(oldBitmap, null, mDestRect,
+									null);
+							// it's in the scaled tile now, free it
+							mTileCache.removeTile(oldKey);
 						}
 					}
 				}
 			}
 
-			if (bitmap != null) {
-				mNewTiles.put(pTile, bitmap);
-				if (DEBUGMODE) {
-					Log.d("MapaAPI",
-							"MapTileProviderBase: Created scaled tile: "
-									+ pTile);
-					mDebugPaint.setTextSize(40);
-					canvas.drawText("scaled", 50, 50, mDebugPaint);
-				}
+			if (bitmap != null && DEBUGMODE) {
+				Log.d("MapaAPI", "MapTileProviderBase: Created scaled tile: /"
+						+ mNewZoomLevel + "/" + MapTile.getX(pTileKey) + "/"
+						+ MapTile.getY(pTileKey));
+				mDebugPaint.setTextSize(40);
+				mCanvas.drawText("scaled", 50, 50, mDebugPaint);
 			}
+			return bitmap;
 		}
 	}
 
+	private static final long RESCALE_THREAD_KEEP_ALIVE_SECONDS = 10;
+
 	protected final MapTileCache mTileCache;
 
 	protected Handler mTileRequestCompleteHandler;
 
 	protected boolean mUseDataConnection = true;
 
+	protected boolean mPrioritizeViewport = true;
+
 	private ITileSource mTileSource;
 
+	/** the last viewport passed to setViewport() */
+	private final Rect mViewPort = new Rect();
+	private int mViewPortZoomLevel = -1;
+	private final Rect mCancelArea = new Rect();
+
+	/** the thread that scales the cache, created on the first rescale */
+	private ExecutorService mRescaleExecutor;
+	/** incremented by every rescale, to cancel the one in progress */
+	private final AtomicInteger mRescaleGeneration = new AtomicInteger();
+
 	public MapTileProviderBase(final ITileSource pTileSource) {
 		this(pTileSource, null);
 	}
@@ -217,6 +309,27 @@ public abstract class MapTileProviderBase implements IMapTileProviderCallback,
 		mTileSource = pTileSource;
 	}
 
+	/**
+	 * Cancel the requests for all tiles outside the given zoom level range and
+	 * viewport, including tiles that are being loaded. Tiles at other zoom
+	 * levels than the viewport are scaled to it. Does nothing by default.
+	 * 
+	 * @param pZoomLevel
+	 *            the zoom level of the viewport
+	 * @param pTileSizePx
+	 *            the tile size in pixels
+	 * @param pViewPort
+	 *            the viewport in Mercator pixels at the zoom level
+	 * @param pMinZoomLevel
+	 *            the lowest zoom level to keep tiles for
+	 * @param pMaxZoomLevel
+	 *            the highest zoom level to keep tiles for
+	 */
+	public void cancelTileRequests(final int pZoomLevel,
+			final int pTileSizePx, final Rect pViewPort,
+			final int pMinZoomLevel, final int pMaxZoomLevel) {
+	}
+
 	public void clearTileCache() {
 		mTileCache.clear();
 	}
@@ -227,8 +340,23 @@ public abstract class MapTileProviderBase implements IMapTileProviderCallback,
 		mTileCache.ensureCapacity(pCapacity);
 	}
 
+	/**
+	 * @return the memory cache of the tiles, to check or set its size in
+	 *         bytes
+	 */
+	public MapTileCache getTileCache() {
+		return mTileCache;
+	}
+
 	public abstract Drawable getMapTile(MapTile pTile);
 
+	/**
+	 * @return the number of tile requests that are being loaded, 0 by default
+	 */
+	public int getPendingRequestCount() {
+		return 0;
+	}
+
 	/**
 	 * Gets the maximum zoom level this tile provider can provide
 	 * 
@@ -266,7 +394,12 @@ public abstract class MapTileProviderBase implements IMapTileProviderCallback,
 	public void mapTileRequestCompleted(final MapTileRequestState pState,
 			final Drawable pDrawable) {
 		final MapTile tile = pState.getMapTile();
-		if (pDrawable != null) {
+		if (pDrawable != null && pDrawable == pState.getExpiredTile()) {
+			// the server says the expired tile is still good. If it has been
+			// evicted since, the file system cache has the refreshed tile for
+			// the next time it's needed
+			mTileCache.revalidateTile(tile, pDrawable);
+		} else if (pDrawable != null) {
 			mTileCache.putTile(tile, pDrawable);
 		}
 
@@ -334,7 +467,15 @@ public abstract class MapTileProviderBase implements IMapTileProviderCallback,
 	}
 
 	/**
-	 * Recreate the cache using scaled versions of the tiles currently in it
+	 * Recreate the cache using scaled versions of the tiles currently in it.
+	 * The scaling is done on a background thread, from the center of the
+	 * viewport outwards, and every scaled tile is shown as soon as it's ready.
+	 * Scaled tiles are expired, so the real tiles are still loaded and replace
+	 * them. Calling this again cancels the rescale in progress.
+	 * <p>
+	 * {@link TilesOverlay} draws missing tiles from their cached ancestors and
+	 * children, so nothing is scaled when zooming in by up to
+	 * {@link #TILE_FALLBACK_MAXIMUM_ZOOM_DIFF} levels or out by one level.
 	 * 
 	 * @param pNewZoomLevel
 	 *            the zoom level that we need now
@@ -351,7 +492,12 @@ public abstract class MapTileProviderBase implements IMapTileProviderCallback,
 			return;
 		}
 
-		final long startMs = System.currentTimeMillis();
+		if (pNewZoomLevel > pOldZoomLevel ? pNewZoomLevel - pOldZoomLevel <= TILE_FALLBACK_MAXIMUM_ZOOM_DIFF
+				: pOldZoomLevel - pNewZoomLevel == 1) {
+			// cancel a rescale in progress, it's for another zoom level
+			mRescaleGeneration.incrementAndGet();
+			return;
+		}
 
 		Log.i("MapaAPI", "MapTileProviderBase: rescale tile cache from "
 				+ pOldZoomLevel + " to " + pNewZoomLevel);
@@ -361,13 +507,96 @@ public abstract class MapTileProviderBase implements IMapTileProviderCallback,
 		final Rect viewPort = new Rect(pViewPort);
 		viewPort.offset(worldSize_2, worldSize_2);
 
+		final int generation = mRescaleGeneration.incrementAndGet();
 		final ScaleTileLooper tileLooper = pNewZoomLevel > pOldZoomLevel ? new ZoomInTileLooper(
-				pOldZoomLevel) : new ZoomOutTileLooper(pOldZoomLevel);
-		tileLooper.loop(null, pNewZoomLevel, tileSize, viewPort);
+				pOldZoomLevel, pNewZoomLevel, tileSize, viewPort, generation)
+				: new ZoomOutTileLooper(pOldZoomLevel, pNewZoomLevel,
+						tileSize, viewPort, generation);
+		getRescaleExecutor().execute(tileLooper);
+	}
+
+	private synchronized ExecutorService getRescaleExecutor() {
+		if (mRescaleExecutor == null) {
+			// a single low priority thread, which stops when it's idle
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+					RESCALE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY,
+							"Rescale tile cache"));
+			executor.allowCoreThreadTimeOut(true);
+			mRescaleExecutor = executor;
+		}
+		return mRescaleExecutor;
+	}
+
+	/**
+	 * Tell the tile provider which part of the map is currently displayed. If
+	 * {@link #isPrioritizeViewport()} is set, pending tiles are then loaded
+	 * starting from the center of the viewport, and tiles at other zoom levels
+	 * or off the screen are loaded last. When the zoom level changes, requests
+	 * for tiles more than one zoom level away or outside the viewport are
+	 * canceled.
+	 * 
+	 * @param pZoomLevel
+	 *            the zoom level of the viewport
+	 * @param pTileSizePx
+	 *            the tile size in pixels
+	 * @param pViewPort
+	 *            the viewport in Mercator pixels at the zoom level
+	 */
+	public void setViewport(final int pZoomLevel, final int pTileSizePx,
+			final Rect pViewPort) {
+		if (pZoomLevel == mViewPortZoomLevel && pViewPort.equals(mViewPort)) {
+			return;
+		}
+		final int previousZoomLevel = mViewPortZoomLevel;
+		mViewPortZoomLevel = pZoomLevel;
+		mViewPort.set(pViewPort);
+		if (mPrioritizeViewport) {
+			if (previousZoomLevel != -1 && previousZoomLevel != pZoomLevel) {
+				// keep a margin of one tile around the viewport
+				mCancelArea.set(pViewPort);
+				mCancelArea.inset(-pTileSizePx, -pTileSizePx);
+				cancelTileRequests(pZoomLevel, pTileSizePx, mCancelArea,
+						pZoomLevel - 1, pZoomLevel + 1);
+			}
+			onViewportChanged(pZoomLevel, pTileSizePx, pViewPort);
+		}
+	}
+
+	/**
+	 * Called when the viewport changes while {@link #isPrioritizeViewport()}
+	 * is set, or with a null viewport when it's unset. Does nothing by default.
+	 * 
+	 * @param pViewPort
+	 *            the viewport in Mercator pixels, or null
+	 */
+	protected void onViewportChanged(final int pZoomLevel,
+			final int pTileSizePx, final Rect pViewPort) {
+	}
 
-		final long endMs = System.currentTimeMillis();
-		Log.i("MapaAPI", "MapTileProviderBase: Finished rescale in "
-				+ (endMs - startMs) + "ms");
+	/**
+	 * Set whether pending tiles are loaded by their distance to the viewport
+	 * passed to {@link #setViewport(int, int, Rect)}, or just the most recently
+	 * requested tiles first.
+	 */
+	public void setPrioritizeViewport(final boolean pPrioritizeViewport) {
+		if (mPrioritizeViewport != pPrioritizeViewport) {
+			mPrioritizeViewport = pPrioritizeViewport;
+			if (pPrioritizeViewport) {
+				// forget the viewport so the next one is passed on
+				mViewPortZoomLevel = -1;
+			} else {
+				onViewportChanged(mViewPortZoomLevel, 0, null);
+			}
+		}
+	}
+
+	/**
+	 * Whether pending tiles are loaded by their distance to the viewport.
+	 */
+	public boolean isPrioritizeViewport() {
+		return mPrioritizeViewport;
 	}
 
 	public void setTileRequestCompleteHandler(final Handler handler) {
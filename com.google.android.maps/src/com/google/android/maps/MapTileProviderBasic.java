@@ -47,6 +47,10 @@ public class MapTileProviderBasic extends MapTileProviderArray implements
 				pRegisterReceiver, pTileSource);
 		mTileProviderList.add(fileSystemProvider);
 
+		final MapTileFileArchiveProvider archiveProvider = new MapTileFileArchiveProvider(
+				pRegisterReceiver, pTileSource);
+		mTileProviderList.add(archiveProvider);
+
 		final MapTileDownloader downloaderProvider = new MapTileDownloader(
 				pTileSource, tileWriter, aNetworkAvailablityCheck);
 		mTileProviderList.add(downloaderProvider);
@@ -0,0 +1,61 @@
+package com.google.android.maps;
+
+import android.content.Context;
+
+/**
+ * This top-level tile provider implements the same tile request chain as
+ * {@link MapTileProviderBasic}, but it caches the tiles in an
+ * {@link MBTilesCache} with a {@link MapTileDatabaseProvider} instead of a file
+ * per tile. Its chain is the database provider, a
+ * {@link MapTileFileArchiveProvider} and a {@link MapTileDownloader}.
+ */
+public class MapTileProviderDatabase extends MapTileProviderArray implements
+		IMapTileProviderCallback {
+
+	private final MBTilesCache mCache;
+
+	/**
+	 * Creates a {@link MapTileProviderDatabase}.
+	 */
+	public MapTileProviderDatabase(final Context pContext) {
+		this(pContext, TileSourceFactory.DEFAULT_TILE_SOURCE);
+	}
+
+	/**
+	 * Creates a {@link MapTileProviderDatabase}.
+	 */
+	public MapTileProviderDatabase(final Context pContext,
+			final ITileSource pTileSource) {
+		this(new SimpleRegisterReceiver(pContext),
+				new NetworkAvailabliltyCheck(pContext), pTileSource);
+	}
+
+	/**
+	 * Creates a {@link MapTileProviderDatabase}.
+	 */
+	public MapTileProviderDatabase(final IRegisterReceiver pRegisterReceiver,
+			final INetworkAvailablityCheck aNetworkAvailablityCheck,
+			final ITileSource pTileSource) {
+		super(pTileSource, pRegisterReceiver);
+
+		mCache = new MBTilesCache();
+
+		final MapTileDatabaseProvider databaseProvider = new MapTileDatabaseProvider(
+				pRegisterReceiver, pTileSource, mCache);
+		mTileProviderList.add(databaseProvider);
+
+		final MapTileFileArchiveProvider archiveProvider = new MapTileFileArchiveProvider(
+				pRegisterReceiver, pTileSource);
+		mTileProviderList.add(archiveProvider);
+
+		final MapTileDownloader downloaderProvider = new MapTileDownloader(
+				pTileSource, mCache, aNetworkAvailablityCheck);
+		mTileProviderList.add(downloaderProvider);
+	}
+
+	@Override
+	public void detach() {
+		super.detach();
+		mCache.close();
+	}
+}
@@ -0,0 +1,61 @@
+package com.google.android.maps;
+
+import android.content.Context;
+
+/**
+ * This top-level tile provider implements the same tile request chain as
+ * {@link MapTileProviderBasic}, but it caches the tiles in a
+ * {@link TilePackCache} with a {@link MapTilePackProvider} instead of a file
+ * per tile. Its chain is the pack provider, a
+ * {@link MapTileFileArchiveProvider} and a {@link MapTileDownloader}.
+ */
+public class MapTileProviderPacked extends MapTileProviderArray implements
+		IMapTileProviderCallback {
+
+	private final TilePackCache mPackCache;
+
+	/**
+	 * Creates a {@link MapTileProviderPacked}.
+	 */
+	public MapTileProviderPacked(final Context pContext) {
+		this(pContext, TileSourceFactory.DEFAULT_TILE_SOURCE);
+	}
+
+	/**
+	 * Creates a {@link MapTileProviderPacked}.
+	 */
+	public MapTileProviderPacked(final Context pContext,
+			final ITileSource pTileSource) {
+		this(new SimpleRegisterReceiver(pContext),
+				new NetworkAvailabliltyCheck(pContext), pTileSource);
+	}
+
+	/**
+	 * Creates a {@link MapTileProviderPacked}.
+	 */
+	public MapTileProviderPacked(final IRegisterReceiver pRegisterReceiver,
+			final INetworkAvailablityCheck aNetworkAvailablityCheck,
+			final ITileSource pTileSource) {
+		super(pTileSource, pRegisterReceiver);
+
+		mPackCache = new TilePackCache();
+
+		final MapTilePackProvider packProvider = new MapTilePackProvider(
+				pRegisterReceiver, pTileSource, mPackCache);
+		mTileProviderList.add(packProvider);
+
+		final MapTileFileArchiveProvider archiveProvider = new MapTileFileArchiveProvider(
+				pRegisterReceiver, pTileSource);
+		mTileProviderList.add(archiveProvider);
+
+		final MapTileDownloader downloaderProvider = new MapTileDownloader(
+				pTileSource, mPackCache, aNetworkAvailablityCheck);
+		mTileProviderList.add(downloaderProvider);
+	}
+
+	@Override
+	public void detach() {
+		super.detach();
+		mPackCache.close();
+	}
+}
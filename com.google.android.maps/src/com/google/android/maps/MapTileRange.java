@@ -0,0 +1,54 @@
+package com.google.android.maps;
+
+/**
+ * A rectangle of tiles at one zoom level. The bounds are inclusive.
+ */
+public class MapTileRange {
+
+	private final int mZoomLevel;
+	private final int mLeft;
+	private final int mTop;
+	private final int mRight;
+	private final int mBottom;
+
+	public MapTileRange(final int pZoomLevel, final int pLeft, final int pTop,
+			final int pRight, final int pBottom) {
+		mZoomLevel = pZoomLevel;
+		mLeft = pLeft;
+		mTop = pTop;
+		mRight = pRight;
+		mBottom = pBottom;
+	}
+
+	public int getZoomLevel() {
+		return mZoomLevel;
+	}
+
+	public int getLeft() {
+		return mLeft;
+	}
+
+	public int getTop() {
+		return mTop;
+	}
+
+	public int getRight() {
+		return mRight;
+	}
+
+	public int getBottom() {
+		return mBottom;
+	}
+
+	public boolean contains(final MapTile pTile) {
+		return pTile.getZoomLevel() == mZoomLevel && pTile.getX() >= mLeft
+				&& pTile.getX() <= mRight && pTile.getY() >= mTop
+				&& pTile.getY() <= mBottom;
+	}
+
+	@Override
+	public String toString() {
+		return "MapTileRange: zoom=" + mZoomLevel + " x=" + mLeft + "-"
+				+ mRight + " y=" + mTop + "-" + mBottom;
+	}
+}
@@ -0,0 +1,465 @@
+package com.google.android.maps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Rect;
+
+/**
+ * The queue of tile requests waiting for a {@link MapTileModuleProviderBase}.
+ * Requests are handed out newest first. A request that has been handed out is
+ * moved off the pending list until it is removed, so taking the next request
+ * never has to skip over tiles that are already being worked on. If more than
+ * the given number of requests are pending, the eldest one is evicted.
+ *
+ * If a viewport is set with {@link #setViewport(int, int, Rect)}, requests are
+ * instead handed out by priority: tiles at the zoom level of the viewport
+ * before tiles at other zoom levels, visible tiles before tiles that are off
+ * screen, and then the tiles closest to the center of the viewport first.
+ *
+ * Without a viewport all operations are constant time. With a viewport,
+ * putting and taking requests is O(log n) and changing the viewport is O(n).
+ */
+public class MapTileRequestQueue {
+
+	private static final class Node {
+		final MapTile mTile;
+		MapTileRequestState mState;
+		boolean mWorking;
+
+		// following mOlder from the head walks the pending list from the
+		// newest to the eldest request
+		Node mNewer;
+		Node mOlder;
+
+		// only used when there's a viewport
+		long mSequence;
+		double mPriority;
+		int mHeapIndex;
+
+		Node(final MapTile pTile, final MapTileRequestState pState) {
+			mTile = pTile;
+			mState = pState;
+		}
+	}
+
+	/** added to the priority of a tile for each zoom level it is off */
+	private static final double PRIORITY_ZOOM_LEVEL = 1e12;
+
+	/** added to the priority of a tile that isn't in the viewport */
+	private static final double PRIORITY_OFF_SCREEN = 1e9;
+
+	/** the nodes by {@link MapTile#getKey() tile key} */
+	private final LongHashMap<Node> mNodes;
+
+	/** sentinel of the circular pending list */
+	private final Node mHead = new Node(null, null);
+
+	private final int mMaximumPendingSize;
+	private int mPendingSize;
+
+	private boolean mHasViewport;
+	private int mViewportZoomLevel;
+	private double mViewportCenterX;
+	private double mViewportCenterY;
+	private double mViewportHalfWidth;
+	private double mViewportHalfHeight;
+
+	/** min-heap of the pending nodes, only used when there's a viewport */
+	private final Node[] mHeap;
+	private int mHeapSize;
+	private long mSequence;
+
+	/**
+	 * @param pMaximumPendingSize
+	 *            the maximum number of pending (not yet handed out) requests
+	 */
+	public MapTileRequestQueue(final int pMaximumPendingSize) {
+		mMaximumPendingSize = pMaximumPendingSize;
+		mNodes = new LongHashMap<Node>(pMaximumPendingSize * 2);
+		mHeap = new Node[pMaximumPendingSize + 1];
+		mHead.mNewer = mHead;
+		mHead.mOlder = mHead;
+	}
+
+	/**
+	 * Put a request in the queue, or move it to the front of the queue if a
+	 * request for the same tile is already pending. Nothing happens if the tile
+	 * is currently being worked on, unless that request has been canceled.
+	 *
+	 * @return the request that was evicted to make room for this one, or null
+	 */
+	public synchronized MapTileRequestState put(
+			final MapTileRequestState pState) {
+		final MapTile tile = pState.getMapTile();
+		final long key = tile.getKey();
+		Node node = mNodes.get(key);
+		if (node == null || (node.mWorking && node.mState.isCanceled())) {
+			node = new Node(tile, pState);
+			mNodes.put(key, node);
+			linkNewest(node);
+			mPendingSize++;
+			if (mHasViewport) {
+				node.mSequence = mSequence++;
+				node.mPriority = getPriority(tile);
+				heapAdd(node);
+			}
+		} else if (node.mWorking) {
+			return null;
+		} else {
+			node.mState = pState;
+			unlink(node);
+			linkNewest(node);
+			if (mHasViewport) {
+				node.mSequence = mSequence++;
+				heapSiftUp(node.mHeapIndex);
+			}
+		}
+
+		if (mPendingSize > mMaximumPendingSize) {
+			final Node eldest = mHead.mNewer;
+			unlinkPending(eldest);
+			mNodes.remove(eldest.mTile.getKey());
+			return eldest.mState;
+		}
+		return null;
+	}
+
+	/**
+	 * Take the next request that is not already being worked on: the most
+	 * recently requested one, or the one with the highest priority if there's
+	 * a viewport. The request stays known to the queue until it is removed
+	 * with {@link #remove(MapTile)}.
+	 *
+	 * @return the request, or null if nothing is pending
+	 */
+	public synchronized MapTileRequestState poll() {
+		if (mPendingSize == 0) {
+			return null;
+		}
+		final Node next = mHasViewport ? mHeap[0] : mHead.mOlder;
+		unlinkPending(next);
+		next.mWorking = true;
+		return next.mState;
+	}
+
+	/**
+	 * Remove a request, whether it's pending or being worked on. Nothing
+	 * happens if the queue holds a different request for the same tile.
+	 *
+	 * @return true if the request was removed
+	 */
+	public synchronized boolean remove(final MapTileRequestState pState) {
+		final Node node = mNodes.get(pState.getMapTile().getKey());
+		if (node == null || node.mState != pState) {
+			return false;
+		}
+		mNodes.remove(node.mTile.getKey());
+		if (!node.mWorking) {
+			unlinkPending(node);
+		}
+		return true;
+	}
+
+	/**
+	 * Remove a request if it hasn't been handed out yet.
+	 *
+	 * @return true if the request was pending and has been removed
+	 */
+	public synchronized boolean removePending(final MapTileRequestState pState) {
+		final Node node = mNodes.get(pState.getMapTile().getKey());
+		if (node == null || node.mState != pState || node.mWorking) {
+			return false;
+		}
+		mNodes.remove(node.mTile.getKey());
+		unlinkPending(node);
+		return true;
+	}
+
+	/**
+	 * Cancel all requests for tiles outside the given area. Pending requests
+	 * are removed. Requests that are being worked on are only marked as
+	 * canceled and stay in the queue until they are removed.
+	 *
+	 * @return the canceled requests that are being worked on
+	 * @see #isTileInArea(MapTile, int, int, Rect, int, int)
+	 */
+	public synchronized List<MapTileRequestState> cancel(final int pZoomLevel,
+			final int pTileSizePx, final Rect pViewPort,
+			final int pMinZoomLevel, final int pMaxZoomLevel) {
+		final List<MapTileRequestState> working = new ArrayList<MapTileRequestState>();
+		int slot = 0;
+		while (slot < mNodes.capacity()) {
+			final Node node = mNodes.getValueAt(slot);
+			if (node == null
+					|| isTileInArea(node.mTile, pZoomLevel, pTileSizePx,
+							pViewPort, pMinZoomLevel, pMaxZoomLevel)) {
+				slot++;
+				continue;
+			}
+			if (node.mWorking) {
+				// a node that stays may move past the slot and be seen twice
+				if (!working.contains(node.mState)) {
+					node.mState.cancel();
+					working.add(node.mState);
+				}
+				slot++;
+			} else {
+				node.mState.cancel();
+				// another node may move into the slot
+				mNodes.removeAt(slot);
+				unlinkPending(node);
+			}
+		}
+		return working;
+	}
+
+	public synchronized void clear() {
+		mNodes.clear();
+		mHead.mNewer = mHead;
+		mHead.mOlder = mHead;
+		clearHeap();
+		mPendingSize = 0;
+	}
+
+	/**
+	 * @return the number of requests waiting to be handed out
+	 */
+	public synchronized int getPendingSize() {
+		return mPendingSize;
+	}
+
+	/**
+	 * @return the number of requests that have been handed out but not removed
+	 */
+	public synchronized int getWorkingSize() {
+		return mNodes.size() - mPendingSize;
+	}
+
+	/**
+	 * Set the viewport pending requests are prioritized by, or clear it to
+	 * hand out the most recently requested tiles first.
+	 *
+	 * @param pZoomLevel
+	 *            the zoom level of the viewport
+	 * @param pTileSizePx
+	 *            the tile size in pixels
+	 * @param pViewPort
+	 *            the viewport in Mercator pixels at the zoom level (as passed
+	 *            to {@link TileLooper#loop}), or null to clear it
+	 */
+	public synchronized void setViewport(final int pZoomLevel,
+			final int pTileSizePx, final Rect pViewPort) {
+		if (pViewPort == null) {
+			mHasViewport = false;
+			clearHeap();
+			return;
+		}
+
+		mViewportZoomLevel = pZoomLevel;
+		mViewportCenterX = pViewPort.exactCenterX() / pTileSizePx;
+		mViewportCenterY = pViewPort.exactCenterY() / pTileSizePx;
+		mViewportHalfWidth = pViewPort.width() / 2.0 / pTileSizePx;
+		mViewportHalfHeight = pViewPort.height() / 2.0 / pTileSizePx;
+
+		if (!mHasViewport) {
+			// number the pending requests from the eldest to the newest
+			mHasViewport = true;
+			for (Node node = mHead.mNewer; node != mHead; node = node.mNewer) {
+				node.mSequence = mSequence++;
+			}
+		}
+
+		// score all pending requests again and rebuild the heap
+		mHeapSize = 0;
+		for (Node node = mHead.mOlder; node != mHead; node = node.mOlder) {
+			node.mPriority = getPriority(node.mTile);
+			node.mHeapIndex = mHeapSize;
+			mHeap[mHeapSize++] = node;
+		}
+		for (int i = (mHeapSize >> 1) - 1; i >= 0; i--) {
+			heapSiftDown(i);
+		}
+	}
+
+	/**
+	 * Check whether a tile is within a zoom level range and overlaps a
+	 * viewport. The viewport is given at one zoom level and tiles at other zoom
+	 * levels are scaled to it.
+	 *
+	 * @param pZoomLevel
+	 *            the zoom level of the viewport
+	 * @param pTileSizePx
+	 *            the tile size in pixels
+	 * @param pViewPort
+	 *            the viewport in Mercator pixels at the zoom level
+	 * @param pMinZoomLevel
+	 *            the lowest zoom level of the area
+	 * @param pMaxZoomLevel
+	 *            the highest zoom level of the area
+	 * @return true if the tile is in the area
+	 */
+	public static boolean isTileInArea(final MapTile pTile,
+			final int pZoomLevel, final int pTileSizePx, final Rect pViewPort,
+			final int pMinZoomLevel, final int pMaxZoomLevel) {
+		final int tileZoomLevel = pTile.getZoomLevel();
+		if (tileZoomLevel < pMinZoomLevel || tileZoomLevel > pMaxZoomLevel) {
+			return false;
+		}
+
+		// the tile's bounds in pixels at the zoom level of the viewport
+		final int zoomDifference = pZoomLevel - tileZoomLevel;
+		long left = (long) pTile.getX() * pTileSizePx;
+		long top = (long) pTile.getY() * pTileSizePx;
+		long size = pTileSizePx;
+		if (zoomDifference >= 0) {
+			left <<= zoomDifference;
+			top <<= zoomDifference;
+			size <<= zoomDifference;
+		} else {
+			left >>= -zoomDifference;
+			top >>= -zoomDifference;
+			size = Math.max(1, size >> -zoomDifference);
+		}
+
+		if (top + size <= pViewPort.top || top >= pViewPort.bottom) {
+			return false;
+		}
+
+		// the map wraps around horizontally
+		final long worldSize = (long) pTileSizePx << pZoomLevel;
+		long dx = (left - pViewPort.left) % worldSize;
+		if (dx < 0) {
+			dx += worldSize;
+		}
+		return dx < pViewPort.width() || dx + size > worldSize;
+	}
+
+	/**
+	 * @return the priority of a tile for the current viewport, lower values are
+	 *         loaded first
+	 */
+	private double getPriority(final MapTile pTile) {
+		final int zoomDifference = mViewportZoomLevel - pTile.getZoomLevel();
+
+		// the tile's center and half-size in tiles at the viewport zoom level
+		final double scale = zoomDifference >= 0 ? 1 << zoomDifference
+				: 1.0 / (1 << -zoomDifference);
+		final double halfSize = scale / 2;
+		double dx = pTile.getX() * scale + halfSize - mViewportCenterX;
+		final double dy = pTile.getY() * scale + halfSize - mViewportCenterY;
+
+		// the map wraps around horizontally
+		final double worldSize = 1 << mViewportZoomLevel;
+		dx = dx % worldSize;
+		if (dx > worldSize / 2) {
+			dx -= worldSize;
+		} else if (dx < -worldSize / 2) {
+			dx += worldSize;
+		}
+
+		double priority = dx * dx + dy * dy;
+		if (Math.abs(dx) - halfSize > mViewportHalfWidth
+				|| Math.abs(dy) - halfSize > mViewportHalfHeight) {
+			priority += PRIORITY_OFF_SCREEN;
+		}
+		priority += Math.abs(zoomDifference) * PRIORITY_ZOOM_LEVEL;
+		return priority;
+	}
+
+	private void unlinkPending(final Node pNode) {
+		unlink(pNode);
+		if (mHasViewport) {
+			heapRemove(pNode.mHeapIndex);
+		}
+		mPendingSize--;
+	}
+
+	private void linkNewest(final Node pNode) {
+		pNode.mOlder = mHead.mOlder;
+		pNode.mNewer = mHead;
+		mHead.mOlder.mNewer = pNode;
+		mHead.mOlder = pNode;
+	}
+
+	private void unlink(final Node pNode) {
+		pNode.mOlder.mNewer = pNode.mNewer;
+		pNode.mNewer.mOlder = pNode.mOlder;
+		pNode.mNewer = null;
+		pNode.mOlder = null;
+	}
+
+	/**
+	 * @return true if a should be handed out before b
+	 */
+	private static boolean before(final Node a, final Node b) {
+		if (a.mPriority != b.mPriority) {
+			return a.mPriority < b.mPriority;
+		}
+		return a.mSequence > b.mSequence;
+	}
+
+	private void clearHeap() {
+		for (int i = 0; i < mHeapSize; i++) {
+			mHeap[i] = null;
+		}
+		mHeapSize = 0;
+	}
+
+	private void heapAdd(final Node pNode) {
+		// the heap may briefly hold one more than the maximum pending size
+		final int index = mHeapSize++;
+		pNode.mHeapIndex = index;
+		mHeap[index] = pNode;
+		heapSiftUp(index);
+	}
+
+	private void heapRemove(final int pIndex) {
+		final int last = --mHeapSize;
+		final Node moved = mHeap[last];
+		mHeap[last] = null;
+		if (pIndex != last) {
+			mHeap[pIndex] = moved;
+			moved.mHeapIndex = pIndex;
+			heapSiftDown(pIndex);
+			heapSiftUp(moved.mHeapIndex);
+		}
+	}
+
+	private void heapSiftUp(int pIndex) {
+		final Node node = mHeap[pIndex];
+		while (pIndex > 0) {
+			final int parent = (pIndex - 1) >> 1;
+			if (!before(node, mHeap[parent])) {
+				break;
+			}
+			mHeap[pIndex] = mHeap[parent];
+			mHeap[pIndex].mHeapIndex = pIndex;
+			pIndex = parent;
+		}
+		mHeap[pIndex] = node;
+		node.mHeapIndex = pIndex;
+	}
+
+	private void heapSiftDown(int pIndex) {
+		final Node node = mHeap[pIndex];
+		final int size = mHeapSize;
+		for (;;) {
+			int child = (pIndex << 1) + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && before(mHeap[child + 1], mHeap[child])) {
+				child++;
+			}
+			if (!before(mHeap[child], node)) {
+				break;
+			}
+			mHeap[pIndex] = mHeap[child];
+			mHeap[pIndex].mHeapIndex = pIndex;
+			pIndex = child;
+		}
+		mHeap[pIndex] = node;
+		node.mHeapIndex = pIndex;
+	}
+}
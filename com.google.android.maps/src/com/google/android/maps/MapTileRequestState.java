@@ -4,12 +4,16 @@ import java.util.Collections;
 import java.util.LinkedList;
 import java.util.Queue;
 
+import android.graphics.drawable.Drawable;
+
 public class MapTileRequestState {
 
 	private final Queue<MapTileModuleProviderBase> mProviderQueue;
 	private final MapTile mMapTile;
 	private final IMapTileProviderCallback mCallback;
 	private MapTileModuleProviderBase mCurrentProvider;
+	private volatile boolean mCanceled;
+	private volatile Drawable mExpiredTile;
 
 	public MapTileRequestState(final MapTile mapTile,
 			final MapTileModuleProviderBase[] providers,
@@ -20,10 +24,30 @@ public class MapTileRequestState {
 		mCallback = callback;
 	}
 
+	/**
+	 * Mark this request as canceled. Providers drop canceled requests and don't
+	 * report their results.
+	 */
+	public void cancel() {
+		mCanceled = true;
+	}
+
 	public IMapTileProviderCallback getCallback() {
 		return mCallback;
 	}
 
+	/**
+	 * @return the expired tile that a provider found for this request and that
+	 *         the next providers are trying to replace, or null
+	 */
+	public Drawable getExpiredTile() {
+		return mExpiredTile;
+	}
+
+	public void setExpiredTile(final Drawable pExpiredTile) {
+		mExpiredTile = pExpiredTile;
+	}
+
 	public MapTileModuleProviderBase getCurrentProvider() {
 		return mCurrentProvider;
 	}
@@ -37,6 +61,10 @@ public class MapTileRequestState {
 		return mCurrentProvider;
 	}
 
+	public boolean isCanceled() {
+		return mCanceled;
+	}
+
 	public boolean isEmpty() {
 		return mProviderQueue.isEmpty();
 	}
@@ -696,6 +696,7 @@ public class MapView extends ViewGroup implements IMapView, MapViewConstants,
 	private final MapTileProviderBase mTileProvider;
 
 	private final Handler mTileRequestCompleteHandler;
+	private final MapTilePrefetcher mTilePrefetcher;
 	/* a point that will be reused to design added views */
 	private final Point mPoint = new Point();
 
@@ -759,6 +760,8 @@ public class MapView extends ViewGroup implements IMapView, MapViewConstants,
 		mTileProvider
 				.setTileRequestCompleteHandler(mTileRequestCompleteHandler);
 
+		mTilePrefetcher = new MapTilePrefetcher(this, mTileProvider);
+
 		mMapOverlay = new TilesOverlay(mTileProvider, mResourceProxy);
 		mOverlayManager = new OverlayManager(mMapOverlay);
 
@@ -890,6 +893,8 @@ public class MapView extends ViewGroup implements IMapView, MapViewConstants,
 	@Override
 	public boolean dispatchTouchEvent(final MotionEvent event) {
 
+		mTilePrefetcher.onInteraction();
+
 		if (DEBUGMODE) {
 			Log.d("MapaAPI", "MapView: dispatchTouchEvent(" + event + ")");
 		}
@@ -1107,6 +1112,14 @@ public class MapView extends ViewGroup implements IMapView, MapViewConstants,
 		return mTileProvider;
 	}
 
+	/**
+	 * @return the prefetcher, to configure how many tiles around the viewport
+	 *         it loads
+	 */
+	public MapTilePrefetcher getTilePrefetcher() {
+		return mTilePrefetcher;
+	}
+
 	public Handler getTileRequestCompleteHandler() {
 		return mTileRequestCompleteHandler;
 	}
@@ -1251,6 +1264,7 @@ public class MapView extends ViewGroup implements IMapView, MapViewConstants,
 	}
 
 	public void onDetach() {
+		mTilePrefetcher.stop();
 		getOverlayManager().onDetach(this);
 	}
 
@@ -1501,8 +1515,27 @@ public class MapView extends ViewGroup implements IMapView, MapViewConstants,
 		return super.onTrackballEvent(event);
 	}
 
+	/**
+	 * Load the tiles around the viewport and at the next zoom levels, so they
+	 * show at once when the map is panned or zoomed. This starts once the map
+	 * is idle and is stopped by {@link #onDetach()}.
+	 * 
+	 * @see #setAutoPreLoad(boolean)
+	 * @see #getTilePrefetcher()
+	 */
 	public void preLoad() {
-		// NOT SUPPORTED
+		mTilePrefetcher.preLoad();
+	}
+
+	public boolean isAutoPreLoad() {
+		return mTilePrefetcher.isAutomatic();
+	}
+
+	/**
+	 * Set whether to {@link #preLoad()} whenever the map has moved or zoomed.
+	 */
+	public void setAutoPreLoad(final boolean pAutoPreLoad) {
+		mTilePrefetcher.setAutomatic(pAutoPreLoad);
 	}
 
 	@Override
@@ -1523,6 +1556,8 @@ public class MapView extends ViewGroup implements IMapView, MapViewConstants,
 			}
 			super.scrollTo(x, y);
 
+			mTilePrefetcher.onViewportChanged();
+
 			// do callback on listener
 			if (mListener != null) {
 				final ScrollEvent event = new ScrollEvent(this, x, y);
@@ -1710,6 +1745,7 @@ public class MapView extends ViewGroup implements IMapView, MapViewConstants,
 
 		mTileProvider.rescaleCache(newZoomLevel, curZoomLevel,
 				getScreenRect(null));
+		mTilePrefetcher.onViewportChanged();
 
 		// do callback on listener
 		if (newZoomLevel != curZoomLevel && mListener != null) {
@@ -35,6 +35,23 @@ public interface OpenStreetMapTileProviderConstants {
 	/** add an extension to files on sdcard so that gallery doesn't index them */
 	public static final String TILE_PATH_EXTENSION = ".tile";
 
+	/** extension of the file that holds the HTTP metadata of a tile */
+	public static final String TILE_METADATA_PATH_EXTENSION = ".meta";
+
+	/** Base path for tile pack files. */
+	public static final File TILE_PACK_PATH_BASE = new File(OPENMAPS_PATH,
+			"packs");
+
+	/** a new tile pack file is started when the current one is this big */
+	public static final long TILE_PACK_FILE_SIZE_BYTES = 16L * 1024 * 1024;
+
+	/**
+	 * Base path for tile cache databases. It isn't {@link #OPENMAPS_PATH}
+	 * itself, so they aren't taken for archives.
+	 */
+	public static final File TILE_DATABASE_PATH_BASE = new File(OPENMAPS_PATH,
+			"databases");
+
 	/**
 	 * Initial tile cache size. The size will be increased as required by
 	 * calling {@link LRUMapTileCache.ensureCapacity(int)} The tile cache will
@@ -42,6 +59,24 @@ public interface OpenStreetMapTileProviderConstants {
 	 */
 	public static final int CACHE_MAPTILECOUNT_DEFAULT = 9;
 
+	/**
+	 * The bitmaps in the tile cache take up to this fraction of the maximum
+	 * heap size by default, beyond the tiles needed to fill the screen.
+	 */
+	public static final int CACHE_MAPTILE_HEAP_FRACTION = 8;
+
+	/**
+	 * The bitmaps kept for reuse in the {@link BitmapPool} take up to this
+	 * fraction of the maximum heap size.
+	 */
+	public static final int BITMAP_POOL_HEAP_FRACTION = 32;
+
+	/**
+	 * A tile that isn't loaded yet is drawn from its ancestors in the cache up
+	 * to this many zoom levels out.
+	 */
+	public static final int TILE_FALLBACK_MAXIMUM_ZOOM_DIFF = 4;
+
 	/**
 	 * number of tile download threads, conforming to OSM policy:
 	 * http://wiki.openstreetmap.org/wiki/Tile_usage_policy
@@ -50,6 +85,12 @@ public interface OpenStreetMapTileProviderConstants {
 
 	public static final int NUMBER_OF_TILE_FILESYSTEM_THREADS = 8;
 
+	/** timeout for connecting to a tile server */
+	public static final int TILE_DOWNLOAD_CONNECT_TIMEOUT_MILLISECONDS = 10 * 1000;
+
+	/** timeout for waiting for data from a tile server */
+	public static final int TILE_DOWNLOAD_READ_TIMEOUT_MILLISECONDS = 20 * 1000;
+
 	public static final long ONE_SECOND = 1000;
 	public static final long ONE_MINUTE = ONE_SECOND * 60;
 	public static final long ONE_HOUR = ONE_MINUTE * 60;
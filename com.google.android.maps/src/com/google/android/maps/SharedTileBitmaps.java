@@ -0,0 +1,179 @@
+package com.google.android.maps;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Decoded bitmaps shared between tiles with identical image data. Large parts
+ * of most maps are blank sea, land or transparent overlay, and all these tiles
+ * are the same few bytes, so they're decoded once and every tile just takes a
+ * reference to the bitmap. Only small tiles are shared, since those are the
+ * ones that repeat, and they're matched on their exact bytes. A shared bitmap
+ * is recycled when the last tile drawing it is
+ * {@link ExpirableBitmapDrawable#recycle() recycled}.
+ */
+class SharedTileBitmaps implements OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	/** tiles larger than this are never shared */
+	static final int MAXIMUM_SHARED_TILE_SIZE = 4 * 1024;
+
+	private static final int MINIMUM_PURGE_SIZE = 64;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private static final HashMap<TileData, WeakReference<Entry>> sEntries = new HashMap<TileData, WeakReference<Entry>>();
+
+	private static int sPurgeSize = MINIMUM_PURGE_SIZE;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	private SharedTileBitmaps() {
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @return whether tiles with this data may share a bitmap
+	 */
+	static boolean isShareable(final byte[] pData) {
+		return pData != null && pData.length <= MAXIMUM_SHARED_TILE_SIZE;
+	}
+
+	/**
+	 * Get a drawable for the bitmap already decoded from this data.
+	 *
+	 * @return the drawable, or null if no tile with this data is in use
+	 */
+	static ExpirableBitmapDrawable getDrawable(final byte[] pData) {
+		synchronized (sEntries) {
+			final WeakReference<Entry> reference = sEntries.get(new TileData(pData));
+			final Entry entry = reference == null ? null : reference.get();
+			if (entry == null) {
+				return null;
+			}
+			entry.mReferences++;
+			return new ExpirableBitmapDrawable(entry.mBitmap, entry);
+		}
+	}
+
+	/**
+	 * Share a bitmap just decoded from this data. If another thread has shared
+	 * a bitmap for the same data in the meantime, that one is used and this one
+	 * recycled.
+	 *
+	 * @return a drawable for the shared bitmap
+	 */
+	static ExpirableBitmapDrawable putDrawable(final byte[] pData,
+			final Bitmap pBitmap) {
+		final TileData key = new TileData(pData.clone());
+		synchronized (sEntries) {
+			final WeakReference<Entry> reference = sEntries.get(key);
+			Entry entry = reference == null ? null : reference.get();
+			if (entry != null) {
+				BitmapPool.getInstance().recycle(pBitmap);
+			} else {
+				entry = new Entry(key, pBitmap);
+				sEntries.put(key, new WeakReference<Entry>(entry));
+				if (sEntries.size() > sPurgeSize) {
+					purge();
+				}
+			}
+			entry.mReferences++;
+			return new ExpirableBitmapDrawable(entry.mBitmap, entry);
+		}
+	}
+
+	/**
+	 * Drop the entries whose drawables were garbage collected without being
+	 * recycled.
+	 */
+	private static void purge() {
+		final Iterator<WeakReference<Entry>> iterator = sEntries.values()
+				.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().get() == null) {
+				iterator.remove();
+			}
+		}
+		sPurgeSize = Math.max(MINIMUM_PURGE_SIZE, sEntries.size() * 2);
+		if (DEBUGMODE) {
+			Log.d("MapsAPI", "SharedTileBitmaps: Shared bitmaps in use: "
+					+ sEntries.size());
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * A shared bitmap and the number of tiles drawing it.
+	 */
+	static class Entry {
+		private final TileData mKey;
+		private final Bitmap mBitmap;
+		private int mReferences;
+
+		private Entry(final TileData pKey, final Bitmap pBitmap) {
+			mKey = pKey;
+			mBitmap = pBitmap;
+		}
+
+		/**
+		 * Release a reference to the bitmap, and recycle it if it was the last
+		 * one.
+		 */
+		void release() {
+			synchronized (sEntries) {
+				if (--mReferences > 0) {
+					return;
+				}
+				final WeakReference<Entry> reference = sEntries.get(mKey);
+				if (reference != null && reference.get() == this) {
+					sEntries.remove(mKey);
+				}
+			}
+			BitmapPool.getInstance().recycleDeferred(mBitmap);
+		}
+	}
+
+	/**
+	 * The image data of a tile, compared by content.
+	 */
+	private static class TileData {
+		private final byte[] mData;
+		private final int mHashCode;
+
+		private TileData(final byte[] pData) {
+			mData = pData;
+			mHashCode = Arrays.hashCode(pData);
+		}
+
+		@Override
+		public boolean equals(final Object pOther) {
+			return pOther instanceof TileData
+					&& mHashCode == ((TileData) pOther).mHashCode
+					&& Arrays.equals(mData, ((TileData) pOther).mData);
+		}
+
+		@Override
+		public int hashCode() {
+			return mHashCode;
+		}
+	}
+}
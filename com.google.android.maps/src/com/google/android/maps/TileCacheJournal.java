@@ -0,0 +1,524 @@
+package com.google.android.maps;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * A journal of the tiles written to the file system cache by
+ * {@link TileWriter}. Every save appends a line with the time, the change in
+ * used space and the path of the tile, so the journal is ordered from the
+ * least to the most recently written tiles. A checkpoint of the used space is
+ * written now and then, so opening the journal only has to replay the lines
+ * after the checkpoint instead of walking the cache directory.
+ * <p>
+ * Trimming reads the journal from the start and deletes the tiles whose line
+ * is their latest one, and then rewrites the journal without the lines it has
+ * dealt with.
+ */
+class TileCacheJournal implements OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final String JOURNAL_FILENAME = ".journal";
+	private static final String CHECKPOINT_FILENAME = ".journal.checkpoint";
+
+	private static final int CHECKPOINT_MAGIC = 0x544A4350;
+
+	/** write a checkpoint after this many lines */
+	private static final int CHECKPOINT_INTERVAL = 100;
+
+	/** rewrite the journal when it gets this big even if the cache isn't full */
+	private static final long JOURNAL_MAX_BYTES = 4L * 1024 * 1024;
+
+	/**
+	 * slack for file systems that store modification times in whole seconds,
+	 * or in two seconds on FAT
+	 */
+	private static final long MODIFIED_TIME_SLACK = 2 * ONE_SECOND;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final File mDirectory;
+	private final File mJournalFile;
+	private final File mCheckpointFile;
+
+	private final AtomicLong mUsedSpace = new AtomicLong();
+
+	/** guards the writer and the journal file */
+	private final Object mLock = new Object();
+	private Writer mWriter;
+	private long mJournalLength;
+	private int mLinesSinceCheckpoint;
+
+	/** whether the journal has to be rebuilt by walking the directory */
+	private boolean mRebuildNeeded;
+	/** the lines written while the journal is being rebuilt */
+	private List<String> mLinesDuringRebuild;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * Open the journal of a cache directory. This takes as long as replaying
+	 * the lines after the last checkpoint. If there's no usable journal then
+	 * {@link #isRebuildNeeded()} is true.
+	 */
+	public TileCacheJournal(final File pDirectory) {
+		mDirectory = pDirectory;
+		mJournalFile = new File(pDirectory, JOURNAL_FILENAME);
+		mCheckpointFile = new File(pDirectory, CHECKPOINT_FILENAME);
+
+		synchronized (mLock) {
+			mRebuildNeeded = !replay();
+			if (mRebuildNeeded) {
+				mLinesDuringRebuild = new ArrayList<String>();
+			}
+		}
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public long getUsedSpace() {
+		return mUsedSpace.get();
+	}
+
+	public boolean isRebuildNeeded() {
+		synchronized (mLock) {
+			return mRebuildNeeded;
+		}
+	}
+
+	/**
+	 * @return whether the journal should be trimmed or rewritten
+	 */
+	public boolean isMaintenanceNeeded() {
+		synchronized (mLock) {
+			return mRebuildNeeded
+					|| mUsedSpace.get() > TILE_MAX_CACHE_SIZE_BYTES
+					|| mJournalLength > JOURNAL_MAX_BYTES;
+		}
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Record that a tile was written.
+	 *
+	 * @param pRelativePath
+	 *            the path of the tile relative to the cache directory
+	 * @param pDelta
+	 *            the change in used space
+	 */
+	public void recordSave(final String pRelativePath, final long pDelta) {
+		mUsedSpace.addAndGet(pDelta);
+		final String line = System.currentTimeMillis() + " " + pDelta + " "
+				+ pRelativePath + "\n";
+
+		synchronized (mLock) {
+			if (mRebuildNeeded) {
+				mLinesDuringRebuild.add(line);
+				return;
+			}
+			try {
+				getWriter().write(line);
+				mWriter.flush();
+				mJournalLength += line.getBytes("UTF-8").length;
+			} catch (final IOException e) {
+				Log.w("MapsAPI", "TileCacheJournal: Error writing journal : "
+						+ e);
+				closeWriter();
+			}
+			if (++mLinesSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+				writeCheckpoint();
+			}
+		}
+	}
+
+	/**
+	 * Build the journal from the files in the cache directory, oldest first.
+	 * This walks the whole directory, so it should run in the background, and
+	 * only once for a cache that was written before there was a journal.
+	 */
+	public void rebuild() {
+		final List<File> files = new ArrayList<File>();
+		listFiles(mDirectory, files);
+		final File[] sorted = files.toArray(new File[files.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(final File f1, final File f2) {
+				return Long.valueOf(f1.lastModified()).compareTo(
+						f2.lastModified());
+			}
+		});
+
+		final File tempFile = new File(mDirectory, JOURNAL_FILENAME + ".tmp");
+		final int prefixLength = mDirectory.getPath().length() + 1;
+		long usedSpace = 0;
+		Writer writer = null;
+		try {
+			writer = openWriter(tempFile, false);
+			for (final File file : sorted) {
+				// count the metadata with its tile, like the tile writer does
+				final long length = file.length()
+						+ new File(file.getPath() + TILE_METADATA_PATH_EXTENSION)
+								.length();
+				usedSpace += length;
+				writer.write(file.lastModified() + " " + length + " "
+						+ file.getPath().substring(prefixLength) + "\n");
+			}
+
+			synchronized (mLock) {
+				long delta = 0;
+				for (final String line : mLinesDuringRebuild) {
+					writer.write(line);
+					delta += parseDelta(line);
+				}
+				writer.close();
+				writer = null;
+
+				closeWriter();
+				replaceJournal(tempFile);
+				mJournalLength = mJournalFile.length();
+				mUsedSpace.set(usedSpace + delta);
+				mLinesDuringRebuild = null;
+				mRebuildNeeded = false;
+				writeCheckpoint();
+			}
+		} catch (final IOException e) {
+			Log.w("MapsAPI", "TileCacheJournal: Error rebuilding journal : "
+					+ e);
+		} finally {
+			StreamUtils.closeStream(writer);
+		}
+
+		if (DEBUGMODE) {
+			Log.d("MapsAPI", "TileCacheJournal: Rebuilt journal with "
+					+ sorted.length + " files");
+		}
+	}
+
+	/**
+	 * Delete the least recently written tiles until the used space is down to
+	 * the target, and rewrite the journal without the lines that have been
+	 * dealt with. Tiles that are saved meanwhile are kept.
+	 */
+	public void trim(final long pTargetSize) {
+		final long end;
+		synchronized (mLock) {
+			if (mRebuildNeeded) {
+				return;
+			}
+			end = mJournalLength;
+		}
+
+		final File tempFile = new File(mDirectory, JOURNAL_FILENAME + ".tmp");
+		BufferedReader reader = null;
+		Writer writer = null;
+		long freed = 0;
+		int deleted = 0;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(mJournalFile), "UTF-8"),
+					StreamUtils.IO_BUFFER_SIZE);
+			writer = openWriter(tempFile, false);
+			long offset = 0;
+			String line;
+			while (offset < end && (line = reader.readLine()) != null) {
+				offset += line.getBytes("UTF-8").length + 1;
+				final int space1 = line.indexOf(' ');
+				final int space2 = line.indexOf(' ', space1 + 1);
+				if (space1 < 0 || space2 < 0) {
+					continue;
+				}
+				final long time;
+				try {
+					time = Long.parseLong(line.substring(0, space1));
+				} catch (final NumberFormatException e) {
+					continue;
+				}
+				final File file = new File(mDirectory,
+						line.substring(space2 + 1));
+				// a later line has the tile if it was written again since
+				if (!file.exists()
+						|| file.lastModified() > time + MODIFIED_TIME_SLACK) {
+					continue;
+				}
+				if (mUsedSpace.get() - freed > pTargetSize) {
+					freed += delete(file);
+					deleted++;
+				} else {
+					writer.write(line);
+					writer.write('\n');
+				}
+			}
+			StreamUtils.closeStream(reader);
+			reader = null;
+
+			synchronized (mLock) {
+				// keep the lines that were written while we were trimming
+				copyJournal(end, writer);
+				writer.close();
+				writer = null;
+
+				closeWriter();
+				replaceJournal(tempFile);
+				mJournalLength = mJournalFile.length();
+				mUsedSpace.addAndGet(-freed);
+				writeCheckpoint();
+			}
+		} catch (final IOException e) {
+			Log.w("MapsAPI", "TileCacheJournal: Error trimming : " + e);
+			mUsedSpace.addAndGet(-freed);
+		} finally {
+			StreamUtils.closeStream(reader);
+			StreamUtils.closeStream(writer);
+		}
+
+		if (deleted > 0) {
+			Log.i("MapsAPI", "TileCacheJournal: Deleted " + deleted
+					+ " tiles with " + freed + " bytes");
+		}
+	}
+
+	/**
+	 * Replace the journal with a rewritten one. The checkpoint is deleted
+	 * first, because its offset doesn't fit the new journal, so if we crash
+	 * before the next checkpoint is written the journal gets rebuilt.
+	 */
+	private void replaceJournal(final File pTempFile) throws IOException {
+		if (mCheckpointFile.exists() && !mCheckpointFile.delete()) {
+			throw new IOException("Can't delete " + mCheckpointFile);
+		}
+		if (!pTempFile.renameTo(mJournalFile)) {
+			throw new IOException("Can't rename " + pTempFile);
+		}
+	}
+
+	private long delete(final File pFile) {
+		long freed = 0;
+		final long length = pFile.length();
+		if (pFile.delete()) {
+			freed += length;
+		}
+		final File metadataFile = new File(pFile.getPath()
+				+ TILE_METADATA_PATH_EXTENSION);
+		final long metadataLength = metadataFile.length();
+		if (metadataFile.delete()) {
+			freed += metadataLength;
+		}
+		return freed;
+	}
+
+	/**
+	 * Read the checkpoint and replay the journal lines after it.
+	 *
+	 * @return false if there's no usable journal
+	 */
+	private boolean replay() {
+		if (!mJournalFile.exists() || !mCheckpointFile.exists()) {
+			return false;
+		}
+
+		long offset;
+		long usedSpace;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(mCheckpointFile));
+			if (in.readInt() != CHECKPOINT_MAGIC) {
+				return false;
+			}
+			offset = in.readLong();
+			usedSpace = in.readLong();
+		} catch (final IOException e) {
+			return false;
+		} finally {
+			StreamUtils.closeStream(in);
+		}
+
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(mJournalFile, "rw");
+			if (file.length() < offset) {
+				return false;
+			}
+			final byte[] tail = new byte[(int) (file.length() - offset)];
+			file.seek(offset);
+			file.readFully(tail);
+
+			int start = 0;
+			for (int i = 0; i < tail.length; i++) {
+				if (tail[i] == '\n') {
+					usedSpace += parseDelta(new String(tail, start, i - start,
+							"UTF-8"));
+					start = i + 1;
+				}
+			}
+			// cut off a line that was torn by a crash
+			offset += start;
+			if (offset < file.length()) {
+				file.setLength(offset);
+			}
+		} catch (final IOException e) {
+			return false;
+		} finally {
+			StreamUtils.closeStream(file);
+		}
+
+		mJournalLength = offset;
+		mUsedSpace.set(usedSpace);
+		return true;
+	}
+
+	/**
+	 * Copy the journal from an offset to the end to a writer.
+	 */
+	private void copyJournal(final long pOffset, final Writer pWriter)
+			throws IOException {
+		if (mWriter != null) {
+			mWriter.flush();
+		}
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(mJournalFile, "r");
+			final byte[] tail = new byte[(int) (file.length() - pOffset)];
+			file.seek(pOffset);
+			file.readFully(tail);
+			pWriter.write(new String(tail, "UTF-8"));
+		} finally {
+			StreamUtils.closeStream(file);
+		}
+	}
+
+	private void writeCheckpoint() {
+		mLinesSinceCheckpoint = 0;
+		final File tempFile = new File(mDirectory, CHECKPOINT_FILENAME
+				+ ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new FileOutputStream(tempFile));
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeLong(mJournalLength);
+			out.writeLong(mUsedSpace.get());
+			out.close();
+			out = null;
+			if (!tempFile.renameTo(mCheckpointFile)) {
+				Log.w("MapsAPI", "TileCacheJournal: Can't rename " + tempFile);
+			}
+		} catch (final IOException e) {
+			Log.w("MapsAPI", "TileCacheJournal: Error writing checkpoint : "
+					+ e);
+		} finally {
+			StreamUtils.closeStream(out);
+		}
+	}
+
+	private Writer getWriter() throws IOException {
+		if (mWriter == null) {
+			mWriter = openWriter(mJournalFile, true);
+		}
+		return mWriter;
+	}
+
+	private void closeWriter() {
+		StreamUtils.closeStream(mWriter);
+		mWriter = null;
+	}
+
+	private static Writer openWriter(final File pFile, final boolean pAppend)
+			throws IOException {
+		if (!pFile.getParentFile().exists()) {
+			pFile.getParentFile().mkdirs();
+		}
+		final OutputStream out = new BufferedOutputStream(
+				new FileOutputStream(pFile, pAppend),
+				StreamUtils.IO_BUFFER_SIZE);
+		return new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+	}
+
+	private static long parseDelta(final String pLine) {
+		final int space1 = pLine.indexOf(' ');
+		final int space2 = pLine.indexOf(' ', space1 + 1);
+		if (space1 < 0 || space2 < 0) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(pLine.substring(space1 + 1, space2));
+		} catch (final NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private void listFiles(final File pDirectory, final List<File> pFiles) {
+		final File[] z = pDirectory.listFiles();
+		if (z != null) {
+			for (final File file : z) {
+				if (file.isFile()) {
+					// the metadata is counted with its tile
+					if (!file.getName().startsWith(JOURNAL_FILENAME)
+							&& !file.getName().endsWith(
+									TILE_METADATA_PATH_EXTENSION)) {
+						pFiles.add(file);
+					}
+				} else if (file.isDirectory()
+						&& !isSymbolicDirectoryLink(pDirectory, file)) {
+					listFiles(file, pFiles); // *** recurse ***
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks to see if it appears that a directory is a symbolic link. It does
+	 * this by comparing the canonical path of the parent directory and the
+	 * parent directory of the directory's canonical path. If they are equal,
+	 * then they come from the same true parent. If not, then pDirectory is a
+	 * symbolic link. If we get an exception, we err on the side of caution and
+	 * return "true" expecting the walk to now skip further processing since
+	 * something went goofy.
+	 */
+	private boolean isSymbolicDirectoryLink(final File pParentDirectory,
+			final File pDirectory) {
+		try {
+			final String canonicalParentPath1 = pParentDirectory
+					.getCanonicalPath();
+			final String canonicalParentPath2 = pDirectory.getCanonicalFile()
+					.getParent();
+			return !canonicalParentPath1.equals(canonicalParentPath2);
+		} catch (final IOException e) {
+			return true;
+		} catch (final NoSuchElementException e) {
+			// See: http://code.google.com/p/android/issues/detail?id=4961
+			// See: http://code.google.com/p/android/issues/detail?id=5807
+			return true;
+		}
+	}
+}
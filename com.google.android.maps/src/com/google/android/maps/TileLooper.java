@@ -6,13 +6,19 @@ import android.graphics.Point;
 import android.graphics.Rect;
 
 /**
- * A class that will loop around all the map tiles in the given viewport.
+ * A class that will loop around all the map tiles in the given viewport. The
+ * tiles of the last loop are handed out again, so a tile that stays on screen
+ * isn't allocated again on every frame.
  */
 public abstract class TileLooper {
 
 	protected final Point mUpperLeft = new Point();
 	protected final Point mLowerRight = new Point();
 
+	// the tiles of this loop and the last one by their key
+	private LongHashMap<MapTile> mTiles = new LongHashMap<MapTile>();
+	private LongHashMap<MapTile> mLastTiles = new LongHashMap<MapTile>();
+
 	public abstract void finaliseLoop();
 
 	public abstract void handleTile(Canvas pCanvas, int pTileSizePx,
@@ -31,15 +37,25 @@ public abstract class TileLooper {
 
 		final int mapTileUpperBound = 1 << pZoomLevel;
 
+		final LongHashMap<MapTile> lastTiles = mTiles;
+		mTiles = mLastTiles;
+		mLastTiles = lastTiles;
+		mTiles.clear();
+
 		initialiseLoop(pZoomLevel, pTileSizePx);
 
 		/* Draw all the MapTiles (from the upper left to the lower right). */
 		for (int y = mUpperLeft.y; y <= mLowerRight.y; y++) {
 			for (int x = mUpperLeft.x; x <= mLowerRight.x; x++) {
-				// Construct a MapTile to request from the tile provider.
+				// Get a MapTile to request from the tile provider.
 				final int tileY = MyMath.mod(y, mapTileUpperBound);
 				final int tileX = MyMath.mod(x, mapTileUpperBound);
-				final MapTile tile = new MapTile(pZoomLevel, tileX, tileY);
+				final long key = MapTile.getKey(pZoomLevel, tileX, tileY);
+				MapTile tile = mLastTiles.get(key);
+				if (tile == null) {
+					tile = new MapTile(pZoomLevel, tileX, tileY);
+				}
+				mTiles.put(key, tile);
 				handleTile(pCanvas, pTileSizePx, tile, x, y);
 			}
 		}
@@ -0,0 +1,272 @@
+package com.google.android.maps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * An implementation of {@link IFilesystemCache} that stores tiles in a few
+ * append-only pack files per tile source instead of a file per tile. This
+ * saves the block and inode overhead of many small files and the cost of
+ * creating and walking directories. Use it with a {@link MapTilePackProvider}.
+ * If the cache exceeds 600 Mb then the oldest packs are removed until it's
+ * down to 500 Mb. The packs of a tile source are shared by all caches in the
+ * process with the same base directory.
+ */
+public class TilePackCache implements IFilesystemCache,
+		OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	/** the packs are compacted and trimmed after this many writes */
+	private static final int MAINTENANCE_WRITE_INTERVAL = 100;
+
+	private static final long MAINTENANCE_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	/** a single low priority thread for all caches, which stops when idle */
+	private static ExecutorService sMaintenanceExecutor;
+
+	private final File mBaseDirectory;
+
+	private final HashMap<String, TilePackStore> mStores = new HashMap<String, TilePackStore>();
+
+	private final AtomicInteger mWritesSinceMaintenance = new AtomicInteger();
+	private final AtomicBoolean mMaintenancePending = new AtomicBoolean();
+
+	private final Runnable mMaintenance = new Runnable() {
+		@Override
+		public void run() {
+			mMaintenancePending.set(false);
+			for (final TilePackStore store : getStores()) {
+				store.compact();
+			}
+			cutCurrentCache();
+		}
+	};
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public TilePackCache() {
+		this(TILE_PACK_PATH_BASE);
+	}
+
+	public TilePackCache(final File pBaseDirectory) {
+		mBaseDirectory = pBaseDirectory;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * Get the amount of disk space used by the packs that have been opened.
+	 * 
+	 * @return size in bytes
+	 */
+	public long getUsedCacheSpace() {
+		long length = 0;
+		for (final TilePackStore store : getStores()) {
+			length += store.getLength();
+		}
+		return length;
+	}
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public boolean saveFile(final ITileSource pTileSource, final MapTile pTile,
+			final InputStream pStream) {
+		return saveFile(pTileSource, pTile, pStream, null);
+	}
+
+	@Override
+	public boolean saveFile(final ITileSource pTileSource, final MapTile pTile,
+			final InputStream pStream, final MapTileMetadata pMetadata) {
+		final TilePackStore store = getStore(pTileSource);
+		if (store == null) {
+			return false;
+		}
+
+		try {
+			final ByteArrayOutputStream data = new ByteArrayOutputStream(
+					StreamUtils.IO_BUFFER_SIZE);
+			StreamUtils.copy(pStream, data);
+			store.write(TilePackIndex.getKey(pTile), data.toByteArray(),
+					pMetadata, System.currentTimeMillis());
+		} catch (final IOException e) {
+			Log.w("MapsAPI", "TilePackCache: Error saving " + pTile + " : "
+					+ e);
+			return false;
+		}
+
+		countWrite();
+		return true;
+	}
+
+	@Override
+	public MapTileMetadata getMetadata(final ITileSource pTileSource,
+			final MapTile pTile) {
+		final TilePackStore.Record record = read(pTileSource, pTile);
+		return record != null ? record.mMetadata : null;
+	}
+
+	@Override
+	public boolean refreshFile(final ITileSource pTileSource,
+			final MapTile pTile, final MapTileMetadata pMetadata) {
+		final TilePackStore store = getStore(pTileSource);
+		if (store == null) {
+			return false;
+		}
+		try {
+			// only the metadata is written again, not the tile
+			if (!store.refresh(TilePackIndex.getKey(pTile), pMetadata,
+					System.currentTimeMillis())) {
+				return false;
+			}
+		} catch (final IOException e) {
+			Log.w("MapsAPI", "TilePackCache: Error refreshing " + pTile
+					+ " : " + e);
+			return false;
+		}
+		countWrite();
+		return true;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Read a tile.
+	 * 
+	 * @return the tile, or null if it isn't in the cache
+	 */
+	TilePackStore.Record read(final ITileSource pTileSource,
+			final MapTile pTile) {
+		final TilePackStore store = getStore(pTileSource);
+		return store != null ? store.read(TilePackIndex.getKey(pTile)) : null;
+	}
+
+	/**
+	 * Release the packs, which are closed when no other cache uses them. The
+	 * cache can't be used afterwards.
+	 */
+	public void close() {
+		synchronized (mStores) {
+			for (final TilePackStore store : mStores.values()) {
+				store.release();
+			}
+			mStores.clear();
+		}
+	}
+
+	private TilePackStore getStore(final ITileSource pTileSource) {
+		synchronized (mStores) {
+			TilePackStore store = mStores.get(pTileSource.name());
+			if (store == null) {
+				try {
+					store = TilePackStore.open(new File(mBaseDirectory,
+							pTileSource.name()));
+				} catch (final IOException e) {
+					Log.w("MapsAPI", "TilePackCache: Can't open packs of "
+							+ pTileSource.name() + " : " + e);
+					return null;
+				}
+				mStores.put(pTileSource.name(), store);
+				// a pack left over from last time may need compacting
+				scheduleMaintenance();
+			}
+			return store;
+		}
+	}
+
+	private List<TilePackStore> getStores() {
+		synchronized (mStores) {
+			return new ArrayList<TilePackStore>(mStores.values());
+		}
+	}
+
+	private void countWrite() {
+		if (mWritesSinceMaintenance.incrementAndGet() >= MAINTENANCE_WRITE_INTERVAL) {
+			mWritesSinceMaintenance.set(0);
+			scheduleMaintenance();
+		}
+	}
+
+	/**
+	 * Compact and trim the packs in the background, unless that's pending
+	 * already.
+	 */
+	private void scheduleMaintenance() {
+		if (mMaintenancePending.compareAndSet(false, true)) {
+			getMaintenanceExecutor().execute(mMaintenance);
+		}
+	}
+
+	private static synchronized ExecutorService getMaintenanceExecutor() {
+		if (sMaintenanceExecutor == null) {
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+					MAINTENANCE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY,
+							"Tile pack maintenance"));
+			executor.allowCoreThreadTimeOut(true);
+			sMaintenanceExecutor = executor;
+		}
+		return sMaintenanceExecutor;
+	}
+
+	/**
+	 * If the cache size is greater than the max then remove the oldest packs
+	 * until it's down to the trim level.
+	 */
+	private void cutCurrentCache() {
+		long usedCacheSpace = getUsedCacheSpace();
+		if (usedCacheSpace <= TILE_MAX_CACHE_SIZE_BYTES) {
+			return;
+		}
+
+		Log.i("MapsAPI", "TilePackCache: Trimming tile cache from "
+				+ usedCacheSpace + " to " + TILE_TRIM_CACHE_SIZE_BYTES);
+
+		while (usedCacheSpace > TILE_TRIM_CACHE_SIZE_BYTES) {
+			TilePackStore oldest = null;
+			long oldestTime = Long.MAX_VALUE;
+			for (final TilePackStore store : getStores()) {
+				final long time = store.getOldestPackTime();
+				if (time < oldestTime) {
+					oldest = store;
+					oldestTime = time;
+				}
+			}
+			if (oldest == null) {
+				break;
+			}
+			usedCacheSpace -= oldest.removeOldestPack();
+		}
+
+		Log.i("MapsAPI", "TilePackCache: Finished trimming tile cache");
+	}
+}
@@ -0,0 +1,169 @@
+package com.google.android.maps;
+
+import java.util.Arrays;
+
+/**
+ * A compact index from tile keys to the place of the tile in a pack file. It
+ * uses open addressing over primitive arrays, so an entry costs 20 bytes
+ * instead of the boxed keys and entry objects of a HashMap. It isn't
+ * synchronized.
+ */
+class TilePackIndex {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final long EMPTY = -1;
+
+	private static final int MINIMUM_CAPACITY = 64;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private long[] mKeys;
+	private long[] mPositions;
+	private int[] mLengths;
+	private int mSize;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public TilePackIndex() {
+		allocate(MINIMUM_CAPACITY);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return the number of slots, to iterate with {@link #getKeyAt(int)}
+	 */
+	public int capacity() {
+		return mKeys.length;
+	}
+
+	/**
+	 * @return the key in the slot, or -1 if the slot is empty
+	 */
+	public long getKeyAt(final int pSlot) {
+		return mKeys[pSlot];
+	}
+
+	public long getPositionAt(final int pSlot) {
+		return mPositions[pSlot];
+	}
+
+	public int getLengthAt(final int pSlot) {
+		return mLengths[pSlot];
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Get the key of a tile. It has room for zoom levels up to 29.
+	 */
+	public static long getKey(final MapTile pTile) {
+		return pTile.getKey();
+	}
+
+	/**
+	 * @return the slot of the key, or -1 if it isn't in the index
+	 */
+	public int find(final long pKey) {
+		final int mask = mKeys.length - 1;
+		int slot = LongHashMap.hash(pKey) & mask;
+		while (mKeys[slot] != EMPTY) {
+			if (mKeys[slot] == pKey) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Add or replace an entry.
+	 */
+	public void put(final long pKey, final long pPosition, final int pLength) {
+		if ((mSize + 1) * 4 > mKeys.length * 3) {
+			resize(mKeys.length * 2);
+		}
+		final int mask = mKeys.length - 1;
+		int slot = LongHashMap.hash(pKey) & mask;
+		while (mKeys[slot] != EMPTY && mKeys[slot] != pKey) {
+			slot = (slot + 1) & mask;
+		}
+		if (mKeys[slot] == EMPTY) {
+			mSize++;
+		}
+		mKeys[slot] = pKey;
+		mPositions[slot] = pPosition;
+		mLengths[slot] = pLength;
+	}
+
+	public void remove(final long pKey) {
+		final int slot = find(pKey);
+		if (slot >= 0) {
+			removeAt(slot);
+		}
+	}
+
+	/**
+	 * Remove the entry in a slot. Entries after it move back to close the gap,
+	 * so when iterating over the slots the current slot has to be checked
+	 * again.
+	 */
+	public void removeAt(final int pSlot) {
+		final int mask = mKeys.length - 1;
+		int gap = pSlot;
+		int slot = (pSlot + 1) & mask;
+		while (mKeys[slot] != EMPTY) {
+			final int home = LongHashMap.hash(mKeys[slot]) & mask;
+			// move the entry into the gap unless its home is between the gap
+			// and the entry
+			if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+				mKeys[gap] = mKeys[slot];
+				mPositions[gap] = mPositions[slot];
+				mLengths[gap] = mLengths[slot];
+				gap = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		mKeys[gap] = EMPTY;
+		mSize--;
+	}
+
+	public void clear() {
+		allocate(MINIMUM_CAPACITY);
+	}
+
+	private void allocate(final int pCapacity) {
+		mKeys = new long[pCapacity];
+		mPositions = new long[pCapacity];
+		mLengths = new int[pCapacity];
+		Arrays.fill(mKeys, EMPTY);
+		mSize = 0;
+	}
+
+	private void resize(final int pCapacity) {
+		final long[] keys = mKeys;
+		final long[] positions = mPositions;
+		final int[] lengths = mLengths;
+		allocate(pCapacity);
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				put(keys[i], positions[i], lengths[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,924 @@
+package com.google.android.maps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import android.util.Log;
+
+/**
+ * The tiles of one tile source, stored in a few append-only pack files with an
+ * index in memory. A tile is read with a single positional read of its
+ * record.
+ * <p>
+ * Every record has a checksum. A snapshot of the index is written now and
+ * then. When the store is opened the snapshot is loaded and only the records
+ * appended after it are scanned, and a record that was torn by a crash is cut
+ * off. Records that were replaced stay in their pack until it's compacted,
+ * which copies the live records of a mostly dead pack to the current pack.
+ * <p>
+ * When the server confirms that a tile hasn't changed, only its new metadata
+ * is appended, in a refresh record without data that is indexed separately
+ * and overrides the metadata and saved time of the tile record.
+ * <p>
+ * A store keeps its own offsets and index for its packs, so there's only one
+ * store per directory in the process. Stores are {@link #open(File) opened}
+ * and {@link #release() released}, and closed with the last release.
+ */
+class TilePackStore implements OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final int RECORD_MAGIC = 0x544C5052;
+	private static final int REFRESH_MAGIC = 0x544C504D;
+	private static final int INDEX_MAGIC = 0x544C5032;
+
+	/** magic, key, saved time, metadata length, data length */
+	private static final int RECORD_HEADER_SIZE = 4 + 8 + 8 + 4 + 4;
+	/** the checksum at the end of a record */
+	private static final int RECORD_TRAILER_SIZE = 4;
+
+	private static final String PACK_PREFIX = "pack-";
+	private static final String PACK_EXTENSION = ".pack";
+	private static final String INDEX_FILENAME = "index";
+
+	/** write a snapshot of the index after this many records */
+	private static final int SNAPSHOT_INTERVAL = 1000;
+
+	/** compact a pack when less than this part of it is live */
+	private static final float COMPACT_LIVE_RATIO = 0.5f;
+
+	private static final int OFFSET_BITS = 40;
+	private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	/** the open stores of the process by canonical directory */
+	private static final HashMap<String, TilePackStore> sStores = new HashMap<String, TilePackStore>();
+
+	private final File mDirectory;
+	private final String mPath;
+	/** the number of opens that haven't been released, guarded by sStores */
+	private int mReferences;
+
+	/** the packs by number; the last one is the one that's appended to */
+	private final TreeMap<Integer, Pack> mPacks = new TreeMap<Integer, Pack>();
+
+	private final TilePackIndex mIndex = new TilePackIndex();
+	/** the refresh records of the tiles that have been refreshed */
+	private final TilePackIndex mRefreshIndex = new TilePackIndex();
+
+	private int mRecordsSinceSnapshot;
+
+	private boolean mClosed;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * Open the store in a directory, recovering the index from the snapshot
+	 * and the packs.
+	 */
+	private TilePackStore(final File pDirectory, final String pPath)
+			throws IOException {
+		mDirectory = pDirectory;
+		mPath = pPath;
+		if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+			throw new IOException("Can't create " + mDirectory);
+		}
+
+		final File[] files = mDirectory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(final File pDir, final String pName) {
+				return pName.startsWith(PACK_PREFIX)
+						&& pName.endsWith(PACK_EXTENSION);
+			}
+		});
+		if (files != null) {
+			for (final File file : files) {
+				final String name = file.getName();
+				try {
+					final int number = Integer.parseInt(name.substring(
+							PACK_PREFIX.length(),
+							name.length() - PACK_EXTENSION.length()));
+					mPacks.put(number, new Pack(number, file));
+				} catch (final NumberFormatException e) {
+					Log.w("MapsAPI", "TilePackStore: Ignoring " + file);
+				}
+			}
+		}
+
+		recover();
+	}
+
+	/**
+	 * Get the store of a directory, opening it unless another cache in the
+	 * process has it open already. Every open has to be released.
+	 */
+	public static TilePackStore open(final File pDirectory) throws IOException {
+		final String path = pDirectory.getCanonicalPath();
+		synchronized (sStores) {
+			TilePackStore store = sStores.get(path);
+			if (store == null) {
+				store = new TilePackStore(pDirectory, path);
+				sStores.put(path, store);
+			}
+			store.mReferences++;
+			return store;
+		}
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the number of bytes in the packs
+	 */
+	public synchronized long getLength() {
+		long length = 0;
+		for (final Pack pack : mPacks.values()) {
+			length += pack.mLength;
+		}
+		return length;
+	}
+
+	/**
+	 * @return the time the oldest pack was last written, or Long.MAX_VALUE if
+	 *         there's nothing that can be removed
+	 */
+	public synchronized long getOldestPackTime() {
+		if (mPacks.size() < 2) {
+			return Long.MAX_VALUE;
+		}
+		return mPacks.firstEntry().getValue().mFile.lastModified();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Append a tile. It replaces the tile with the same key.
+	 */
+	public synchronized void write(final long pKey, final byte[] pData,
+			final MapTileMetadata pMetadata, final long pSavedTime)
+			throws IOException {
+		if (mClosed) {
+			throw new IOException("TilePackStore is closed");
+		}
+		final ByteBuffer record = createRecord(RECORD_MAGIC, pKey, pData,
+				pMetadata, pSavedTime);
+		putRecord(pKey, append(record), record.limit());
+	}
+
+	/**
+	 * Append new metadata for a tile that hasn't changed, without its data.
+	 * 
+	 * @return false if the tile isn't in the store
+	 */
+	public synchronized boolean refresh(final long pKey,
+			final MapTileMetadata pMetadata, final long pSavedTime)
+			throws IOException {
+		if (mClosed) {
+			throw new IOException("TilePackStore is closed");
+		}
+		if (mIndex.find(pKey) < 0) {
+			return false;
+		}
+		final ByteBuffer record = createRecord(REFRESH_MAGIC, pKey,
+				new byte[0], pMetadata, pSavedTime);
+		putRefresh(pKey, append(record), record.limit());
+		return true;
+	}
+
+	private static ByteBuffer createRecord(final int pMagic, final long pKey,
+			final byte[] pData, final MapTileMetadata pMetadata,
+			final long pSavedTime) throws IOException {
+		byte[] metadata = new byte[0];
+		if (pMetadata != null) {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+			pMetadata.write(out);
+			metadata = out.toByteArray();
+		}
+
+		final int length = RECORD_HEADER_SIZE + metadata.length + pData.length
+				+ RECORD_TRAILER_SIZE;
+		final ByteBuffer record = ByteBuffer.allocate(length);
+		record.putInt(pMagic);
+		record.putLong(pKey);
+		record.putLong(pSavedTime);
+		record.putInt(metadata.length);
+		record.putInt(pData.length);
+		record.put(metadata);
+		record.put(pData);
+		final CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, length - RECORD_TRAILER_SIZE);
+		record.putInt((int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Read a tile.
+	 *
+	 * @return the tile, or null if it isn't in the store
+	 */
+	public Record read(final long pKey) {
+		final Record record = read(mIndex, pKey);
+		if (record == null) {
+			return null;
+		}
+		final Record refresh = read(mRefreshIndex, pKey);
+		if (refresh == null) {
+			return record;
+		}
+		return new Record(pKey, refresh.mSavedTime, refresh.mMetadata,
+				record.mData);
+	}
+
+	private Record read(final TilePackIndex pIndex, final long pKey) {
+		final long position;
+		final int length;
+		final Pack pack;
+		synchronized (this) {
+			final int slot = pIndex.find(pKey);
+			if (slot < 0) {
+				return null;
+			}
+			position = pIndex.getPositionAt(slot);
+			length = pIndex.getLengthAt(slot);
+			pack = mPacks.get(getPackNumber(position));
+		}
+		if (pack == null) {
+			return null;
+		}
+
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocate(length);
+			pack.read(buffer, getOffset(position));
+			final Record record = Record.parse(buffer.array(), length);
+			if (record != null && record.mKey == pKey) {
+				return record;
+			}
+			Log.w("MapsAPI", "TilePackStore: Corrupt record in " + pack.mFile
+					+ " at " + getOffset(position));
+		} catch (final IOException e) {
+			if (DEBUGMODE) {
+				Log.d("MapsAPI", "TilePackStore: Can't read from "
+						+ pack.mFile + " : " + e);
+			}
+			// the pack may have been compacted in the meantime
+			synchronized (this) {
+				final int slot = pIndex.find(pKey);
+				if (slot < 0 || pIndex.getPositionAt(slot) == position) {
+					return null;
+				}
+			}
+			return read(pIndex, pKey);
+		}
+
+		synchronized (this) {
+			final int slot = pIndex.find(pKey);
+			if (slot >= 0 && pIndex.getPositionAt(slot) == position) {
+				pIndex.removeAt(slot);
+				pack.mLiveBytes -= length;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Copy the live records out of packs that are mostly dead and delete them.
+	 */
+	public void compact() {
+		while (true) {
+			final Pack pack;
+			final List<Long> keys = new ArrayList<Long>();
+			final List<Long> refreshKeys = new ArrayList<Long>();
+			synchronized (this) {
+				pack = findPackToCompact();
+				if (pack == null) {
+					return;
+				}
+				addKeysInPack(mIndex, pack, keys);
+				addKeysInPack(mRefreshIndex, pack, refreshKeys);
+			}
+
+			if (DEBUGMODE) {
+				Log.d("MapsAPI", "TilePackStore: Compacting " + pack.mFile
+						+ " with " + keys.size() + " live records");
+			}
+
+			try {
+				for (final Long key : keys) {
+					copyRecord(mIndex, key, pack);
+					// keep the refresh record after the tile record, which
+					// is the order the records are scanned in
+					copyRecord(mRefreshIndex, key, null);
+				}
+				for (final Long key : refreshKeys) {
+					copyRecord(mRefreshIndex, key, pack);
+				}
+			} catch (final IOException e) {
+				Log.w("MapsAPI", "TilePackStore: Error compacting "
+						+ pack.mFile + " : " + e);
+				return;
+			}
+
+			synchronized (this) {
+				removePack(pack);
+			}
+		}
+	}
+
+	/**
+	 * Remove the oldest pack and the tiles in it.
+	 *
+	 * @return the number of bytes freed
+	 */
+	public synchronized long removeOldestPack() {
+		if (mPacks.size() < 2) {
+			return 0;
+		}
+		return removePack(mPacks.firstEntry().getValue());
+	}
+
+	/**
+	 * Release an {@link #open(File) open} of the store, and close it if it was
+	 * the last one.
+	 */
+	public void release() {
+		synchronized (sStores) {
+			if (--mReferences > 0) {
+				return;
+			}
+			sStores.remove(mPath);
+			// before the directory can be opened again
+			close();
+		}
+	}
+
+	/**
+	 * Write a snapshot of the index and close the packs.
+	 */
+	private synchronized void close() {
+		if (mClosed) {
+			return;
+		}
+		writeSnapshot();
+		for (final Pack pack : mPacks.values()) {
+			pack.close();
+		}
+		mClosed = true;
+	}
+
+	private void addKeysInPack(final TilePackIndex pIndex, final Pack pPack,
+			final List<Long> pKeys) {
+		for (int slot = 0; slot < pIndex.capacity(); slot++) {
+			final long key = pIndex.getKeyAt(slot);
+			if (key != -1
+					&& getPackNumber(pIndex.getPositionAt(slot)) == pPack.mNumber) {
+				pKeys.add(key);
+			}
+		}
+	}
+
+	/**
+	 * Append a record to the current pack.
+	 * 
+	 * @return its position
+	 */
+	private long append(final ByteBuffer pRecord) throws IOException {
+		final int length = pRecord.remaining();
+		Pack pack = mPacks.isEmpty() ? null : mPacks.lastEntry().getValue();
+		if (pack == null || pack.mLength > 0
+				&& pack.mLength + length > TILE_PACK_FILE_SIZE_BYTES) {
+			final int number = pack == null ? 0 : pack.mNumber + 1;
+			pack = new Pack(number, new File(mDirectory, PACK_PREFIX + number
+					+ PACK_EXTENSION));
+			mPacks.put(number, pack);
+		}
+
+		final long offset = pack.mLength;
+		pack.write(pRecord, offset);
+		pack.mLength += length;
+		pack.mLiveBytes += length;
+		return getPosition(pack.mNumber, offset);
+	}
+
+	/**
+	 * Write a snapshot every so often, once the index points at the records
+	 * that were appended.
+	 */
+	private void countRecord() {
+		if (++mRecordsSinceSnapshot >= SNAPSHOT_INTERVAL) {
+			writeSnapshot();
+		}
+	}
+
+	/**
+	 * Index a new tile record, which also replaces the refresh record.
+	 */
+	private void putRecord(final long pKey, final long pPosition,
+			final int pLength) {
+		replace(mIndex, pKey, pPosition, pLength);
+		final int slot = mRefreshIndex.find(pKey);
+		if (slot >= 0) {
+			removeLive(mRefreshIndex, slot);
+			mRefreshIndex.removeAt(slot);
+		}
+		countRecord();
+	}
+
+	private void putRefresh(final long pKey, final long pPosition,
+			final int pLength) {
+		replace(mRefreshIndex, pKey, pPosition, pLength);
+		countRecord();
+	}
+
+	private void replace(final TilePackIndex pIndex, final long pKey,
+			final long pPosition, final int pLength) {
+		final int slot = pIndex.find(pKey);
+		if (slot >= 0) {
+			removeLive(pIndex, slot);
+		}
+		pIndex.put(pKey, pPosition, pLength);
+	}
+
+	private void removeLive(final TilePackIndex pIndex, final int pSlot) {
+		final Pack pack = mPacks.get(getPackNumber(pIndex.getPositionAt(pSlot)));
+		if (pack != null) {
+			pack.mLiveBytes -= pIndex.getLengthAt(pSlot);
+		}
+	}
+
+	/**
+	 * Copy a record to the current pack, if it's still the one in the index.
+	 * 
+	 * @param pFrom
+	 *            the pack to copy from, or null to copy from any pack
+	 */
+	private void copyRecord(final TilePackIndex pIndex, final long pKey,
+			final Pack pFrom) throws IOException {
+		final long position;
+		final int length;
+		final Pack from;
+		synchronized (this) {
+			final int slot = pIndex.find(pKey);
+			if (slot < 0
+					|| pFrom != null
+					&& getPackNumber(pIndex.getPositionAt(slot)) != pFrom.mNumber) {
+				// replaced or removed in the meantime
+				return;
+			}
+			position = pIndex.getPositionAt(slot);
+			length = pIndex.getLengthAt(slot);
+			from = mPacks.get(getPackNumber(position));
+		}
+		if (from == null) {
+			return;
+		}
+
+		// records don't depend on where they are, so copy them as they are
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		from.read(buffer, getOffset(position));
+		if (Record.parse(buffer.array(), length) == null) {
+			return;
+		}
+		buffer.flip();
+
+		synchronized (this) {
+			final int slot = pIndex.find(pKey);
+			if (slot >= 0 && pIndex.getPositionAt(slot) == position
+					&& !mClosed) {
+				// a copied tile record keeps its refresh record
+				replace(pIndex, pKey, append(buffer), length);
+				countRecord();
+			}
+		}
+	}
+
+	private Pack findPackToCompact() {
+		if (mClosed) {
+			return null;
+		}
+		final Pack current = mPacks.isEmpty() ? null : mPacks.lastEntry()
+				.getValue();
+		for (final Pack pack : mPacks.values()) {
+			if (pack != current
+					&& pack.mLiveBytes < pack.mLength * COMPACT_LIVE_RATIO) {
+				return pack;
+			}
+		}
+		return null;
+	}
+
+	private long removePack(final Pack pPack) {
+		mPacks.remove(pPack.mNumber);
+		removeMissing();
+		pPack.close();
+		final long length = pPack.mLength;
+		if (!pPack.mFile.delete()) {
+			Log.w("MapsAPI", "TilePackStore: Can't delete " + pPack.mFile);
+		}
+		// don't let a snapshot point into the deleted pack
+		writeSnapshot();
+		return length;
+	}
+
+	private void recover() {
+		final boolean snapshotLoaded = readSnapshot();
+
+		// scan what was appended after the snapshot
+		for (final Pack pack : mPacks.values()) {
+			final long fileLength = pack.mFile.length();
+			if (!snapshotLoaded) {
+				pack.mLength = 0;
+			}
+			if (pack.mLength < fileLength) {
+				scan(pack, fileLength);
+			}
+		}
+
+		for (final Pack pack : mPacks.values()) {
+			pack.mLiveBytes = 0;
+		}
+		addLive(mIndex);
+		addLive(mRefreshIndex);
+
+		if (DEBUGMODE) {
+			Log.d("MapsAPI", "TilePackStore: Opened " + mDirectory + " with "
+					+ mIndex.size() + " tiles in " + mPacks.size() + " packs");
+		}
+	}
+
+	private void addLive(final TilePackIndex pIndex) {
+		for (int slot = 0; slot < pIndex.capacity(); slot++) {
+			if (pIndex.getKeyAt(slot) != -1) {
+				final Pack pack = mPacks.get(getPackNumber(pIndex
+						.getPositionAt(slot)));
+				pack.mLiveBytes += pIndex.getLengthAt(slot);
+			}
+		}
+	}
+
+	/**
+	 * Drop the records of packs that have gone, and the refresh records of
+	 * tiles that have gone.
+	 */
+	private void removeMissing() {
+		for (int slot = 0; slot < mIndex.capacity(); slot++) {
+			// check the slot again after a removal because entries move back
+			while (mIndex.getKeyAt(slot) != -1
+					&& !mPacks.containsKey(getPackNumber(mIndex
+							.getPositionAt(slot)))) {
+				mIndex.removeAt(slot);
+			}
+		}
+		for (int slot = 0; slot < mRefreshIndex.capacity(); slot++) {
+			while (mRefreshIndex.getKeyAt(slot) != -1
+					&& (!mPacks.containsKey(getPackNumber(mRefreshIndex
+							.getPositionAt(slot))) || mIndex
+							.find(mRefreshIndex.getKeyAt(slot)) < 0)) {
+				removeLive(mRefreshIndex, slot);
+				mRefreshIndex.removeAt(slot);
+			}
+		}
+	}
+
+	private void scan(final Pack pPack, final long pFileLength) {
+		long offset = pPack.mLength;
+		final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		try {
+			while (offset + RECORD_HEADER_SIZE <= pFileLength) {
+				header.clear();
+				pPack.read(header, offset);
+				final int magic = header.getInt(0);
+				final long key = header.getLong(4);
+				final long length = (long) RECORD_HEADER_SIZE
+						+ header.getInt(20) + header.getInt(24)
+						+ RECORD_TRAILER_SIZE;
+				if (magic != RECORD_MAGIC && magic != REFRESH_MAGIC
+						|| header.getInt(20) < 0
+						|| header.getInt(24) < 0
+						|| offset + length > pFileLength) {
+					break;
+				}
+
+				final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+				pPack.read(buffer, offset);
+				if (Record.parse(buffer.array(), (int) length) == null) {
+					break;
+				}
+				final long position = getPosition(pPack.mNumber, offset);
+				if (magic == RECORD_MAGIC) {
+					mIndex.put(key, position, (int) length);
+					mRefreshIndex.remove(key);
+				} else if (mIndex.find(key) >= 0) {
+					mRefreshIndex.put(key, position, (int) length);
+				}
+				offset += length;
+			}
+		} catch (final IOException e) {
+			Log.w("MapsAPI", "TilePackStore: Error scanning " + pPack.mFile
+					+ " : " + e);
+		}
+
+		if (offset < pFileLength) {
+			Log.i("MapsAPI", "TilePackStore: Cutting off "
+					+ (pFileLength - offset) + " bytes of " + pPack.mFile);
+			try {
+				pPack.truncate(offset);
+			} catch (final IOException e) {
+				Log.w("MapsAPI", "TilePackStore: Can't truncate "
+						+ pPack.mFile + " : " + e);
+			}
+		}
+		pPack.mLength = offset;
+	}
+
+	private boolean readSnapshot() {
+		final File file = new File(mDirectory, INDEX_FILENAME);
+		if (!file.exists()) {
+			return false;
+		}
+
+		DataInputStream in = null;
+		try {
+			final CheckedInputStream checked = new CheckedInputStream(
+					new BufferedInputStream(new FileInputStream(file),
+							StreamUtils.IO_BUFFER_SIZE), new CRC32());
+			in = new DataInputStream(checked);
+			if (in.readInt() != INDEX_MAGIC) {
+				return false;
+			}
+
+			final Map<Integer, Long> lengths = new TreeMap<Integer, Long>();
+			final int packCount = in.readInt();
+			for (int i = 0; i < packCount; i++) {
+				lengths.put(in.readInt(), in.readLong());
+			}
+			final int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				mIndex.put(in.readLong(), in.readLong(), in.readInt());
+			}
+			final int refreshCount = in.readInt();
+			for (int i = 0; i < refreshCount; i++) {
+				mRefreshIndex.put(in.readLong(), in.readLong(), in.readInt());
+			}
+			final long checksum = checked.getChecksum().getValue();
+			if ((int) checksum != in.readInt()) {
+				throw new IOException("Bad checksum");
+			}
+
+			for (final Pack pack : mPacks.values()) {
+				final Long length = lengths.get(pack.mNumber);
+				if (length != null && length > pack.mFile.length()) {
+					throw new IOException(pack.mFile + " is shorter than "
+							+ length);
+				}
+				pack.mLength = length != null ? length : 0;
+			}
+			// drop the tiles of packs that have gone
+			removeMissing();
+			return true;
+		} catch (final IOException e) {
+			Log.w("MapsAPI", "TilePackStore: Ignoring index of " + mDirectory
+					+ " : " + e);
+			mIndex.clear();
+			mRefreshIndex.clear();
+			return false;
+		} finally {
+			StreamUtils.closeStream(in);
+		}
+	}
+
+	private void writeSnapshot() {
+		mRecordsSinceSnapshot = 0;
+		final File file = new File(mDirectory, INDEX_FILENAME);
+		final File tempFile = new File(mDirectory, INDEX_FILENAME + ".tmp");
+
+		DataOutputStream out = null;
+		try {
+			for (final Pack pack : mPacks.values()) {
+				pack.sync();
+			}
+
+			final CheckedOutputStream checked = new CheckedOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tempFile),
+							StreamUtils.IO_BUFFER_SIZE), new CRC32());
+			out = new DataOutputStream(checked);
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(mPacks.size());
+			for (final Pack pack : mPacks.values()) {
+				out.writeInt(pack.mNumber);
+				out.writeLong(pack.mLength);
+			}
+			writeIndex(out, mIndex);
+			writeIndex(out, mRefreshIndex);
+			out.writeInt((int) checked.getChecksum().getValue());
+			out.close();
+			out = null;
+
+			if (!tempFile.renameTo(file)) {
+				Log.w("MapsAPI", "TilePackStore: Can't rename " + tempFile);
+			}
+		} catch (final IOException e) {
+			Log.w("MapsAPI", "TilePackStore: Error writing index of "
+					+ mDirectory + " : " + e);
+		} finally {
+			StreamUtils.closeStream(out);
+		}
+	}
+
+	private static void writeIndex(final DataOutputStream pOut,
+			final TilePackIndex pIndex) throws IOException {
+		pOut.writeInt(pIndex.size());
+		for (int slot = 0; slot < pIndex.capacity(); slot++) {
+			if (pIndex.getKeyAt(slot) != -1) {
+				pOut.writeLong(pIndex.getKeyAt(slot));
+				pOut.writeLong(pIndex.getPositionAt(slot));
+				pOut.writeInt(pIndex.getLengthAt(slot));
+			}
+		}
+	}
+
+	private static long getPosition(final int pPackNumber, final long pOffset) {
+		return (long) pPackNumber << OFFSET_BITS | pOffset;
+	}
+
+	private static int getPackNumber(final long pPosition) {
+		return (int) (pPosition >>> OFFSET_BITS);
+	}
+
+	private static long getOffset(final long pPosition) {
+		return pPosition & OFFSET_MASK;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * A tile that was read from a pack.
+	 */
+	static class Record {
+		final long mKey;
+		final long mSavedTime;
+		final MapTileMetadata mMetadata;
+		final byte[] mData;
+
+		private Record(final long pKey, final long pSavedTime,
+				final MapTileMetadata pMetadata, final byte[] pData) {
+			mKey = pKey;
+			mSavedTime = pSavedTime;
+			mMetadata = pMetadata;
+			mData = pData;
+		}
+
+		/**
+		 * @return the record, or null if it's corrupt
+		 */
+		static Record parse(final byte[] pBytes, final int pLength) {
+			if (pLength < RECORD_HEADER_SIZE + RECORD_TRAILER_SIZE) {
+				return null;
+			}
+			final ByteBuffer buffer = ByteBuffer.wrap(pBytes, 0, pLength);
+			final int magic = buffer.getInt();
+			final long key = buffer.getLong();
+			final long savedTime = buffer.getLong();
+			final int metadataLength = buffer.getInt();
+			final int dataLength = buffer.getInt();
+			if (magic != RECORD_MAGIC && magic != REFRESH_MAGIC
+					|| metadataLength < 0
+					|| dataLength < 0
+					|| magic == REFRESH_MAGIC && dataLength != 0
+					|| RECORD_HEADER_SIZE + metadataLength + dataLength
+							+ RECORD_TRAILER_SIZE != pLength) {
+				return null;
+			}
+
+			final CRC32 crc = new CRC32();
+			crc.update(pBytes, 0, pLength - RECORD_TRAILER_SIZE);
+			if ((int) crc.getValue() != buffer.getInt(pLength
+					- RECORD_TRAILER_SIZE)) {
+				return null;
+			}
+
+			MapTileMetadata metadata = null;
+			if (metadataLength > 0) {
+				try {
+					metadata = MapTileMetadata.read(new ByteArrayInputStream(
+							pBytes, RECORD_HEADER_SIZE, metadataLength));
+				} catch (final IOException e) {
+					return null;
+				}
+			}
+			final byte[] data = new byte[dataLength];
+			System.arraycopy(pBytes, RECORD_HEADER_SIZE + metadataLength,
+					data, 0, dataLength);
+			return new Record(key, savedTime, metadata, data);
+		}
+	}
+
+	/**
+	 * One pack file.
+	 */
+	private static class Pack {
+		final int mNumber;
+		final File mFile;
+		/** the end of the last good record */
+		long mLength;
+		/** the bytes of the records that are in the index */
+		long mLiveBytes;
+
+		private RandomAccessFile mRandomAccessFile;
+		private FileChannel mChannel;
+		private boolean mClosed;
+
+		Pack(final int pNumber, final File pFile) {
+			mNumber = pNumber;
+			mFile = pFile;
+		}
+
+		private synchronized FileChannel getChannel() throws IOException {
+			if (mClosed) {
+				throw new IOException(mFile + " is closed");
+			}
+			if (mChannel == null) {
+				mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+				mChannel = mRandomAccessFile.getChannel();
+			}
+			return mChannel;
+		}
+
+		void read(final ByteBuffer pBuffer, final long pOffset)
+				throws IOException {
+			final FileChannel channel = getChannel();
+			long offset = pOffset;
+			while (pBuffer.hasRemaining()) {
+				final int read = channel.read(pBuffer, offset);
+				if (read < 0) {
+					throw new IOException("Unexpected end of " + mFile);
+				}
+				offset += read;
+			}
+		}
+
+		void write(final ByteBuffer pBuffer, final long pOffset)
+				throws IOException {
+			final FileChannel channel = getChannel();
+			long offset = pOffset;
+			while (pBuffer.hasRemaining()) {
+				offset += channel.write(pBuffer, offset);
+			}
+		}
+
+		void truncate(final long pLength) throws IOException {
+			getChannel().truncate(pLength);
+		}
+
+		synchronized void sync() throws IOException {
+			if (mChannel != null) {
+				mChannel.force(false);
+			}
+		}
+
+		synchronized void close() {
+			mClosed = true;
+			if (mRandomAccessFile != null) {
+				try {
+					mRandomAccessFile.close();
+				} catch (final IOException ignore) {
+				}
+				mRandomAccessFile = null;
+				mChannel = null;
+			}
+		}
+	}
+}
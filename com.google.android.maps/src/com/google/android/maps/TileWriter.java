@@ -1,21 +1,25 @@
 package com.google.android.maps;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.util.Log;
 
 /**
  * An implementation of {@link IFilesystemCache}. It writes tiles to the file
- * system cache. If the cache exceeds 600 Mb then it will be trimmed to 500 Mb.
+ * system cache. The metadata of a tile is written to a small file next to it,
+ * whose modification time is set to the expiry time of the tile, so that
+ * reading a tile only needs a stat of the metadata file to check its freshness.
+ * The tiles that are written are recorded in a {@link TileCacheJournal}. If the
+ * cache exceeds 600 Mb then the least recently written tiles will be trimmed
+ * in the background until it's down to 500 Mb.
  * 
  * @author Neil Boyd
  * 
@@ -27,25 +31,37 @@ public class TileWriter implements IFilesystemCache,
 	// Constants
 	// ===========================================================
 
+	/**
+	 * The modification time of a metadata file without an expiry time. It's
+	 * the earliest time that FAT file systems can store.
+	 */
+	private static final long NO_EXPIRES_TIME = 315532800000L;
+
+	/** the resolution of modification times on FAT file systems */
+	private static final long MODIFIED_TIME_SLACK = 2 * ONE_SECOND;
+
 	// ===========================================================
 	// Fields
 	// ===========================================================
 
-	/** amount of disk space used by tile cache **/
-	private static long mUsedCacheSpace;
+	/** the journal of the tile cache, shared by all the tile writers **/
+	private static TileCacheJournal mJournal;
+
+	private static final AtomicBoolean mMaintenanceRunning = new AtomicBoolean();
 
 	// ===========================================================
 	// Constructors
 	// ===========================================================
 
 	/**
-	 * Get the amount of disk space used by the tile cache. This will initially
-	 * be zero since the used space is calculated in the background.
+	 * Get the amount of disk space used by the tile cache. For a cache that
+	 * was written before there was a journal, this will initially be zero
+	 * since the used space is calculated in the background.
 	 * 
 	 * @return size in bytes
 	 */
 	public static long getUsedCacheSpace() {
-		return mUsedCacheSpace;
+		return getJournal().getUsedSpace();
 	}
 
 	// ===========================================================
@@ -53,46 +69,59 @@ public class TileWriter implements IFilesystemCache,
 	// ===========================================================
 
 	public TileWriter() {
+		if (getJournal().isMaintenanceNeeded()) {
+			scheduleMaintenance();
+		}
+	}
 
-		// do this in the background because it takes a long time
-		final Thread t = new Thread() {
-			@Override
-			public void run() {
-				mUsedCacheSpace = 0; // because it's static
-				calculateDirectorySize(TILE_PATH_BASE);
-				if (mUsedCacheSpace > TILE_MAX_CACHE_SIZE_BYTES) {
-					cutCurrentCache();
-				}
-				if (DEBUGMODE) {
-					Log.d("MapsAPI", "TileWriter: Finished init thread");
-				}
-			}
-		};
-		t.setPriority(Thread.MIN_PRIORITY);
-		t.start();
+	private static synchronized TileCacheJournal getJournal() {
+		if (mJournal == null) {
+			mJournal = new TileCacheJournal(TILE_PATH_BASE);
+		}
+		return mJournal;
 	}
 
 	// ===========================================================
 	// Methods from SuperClass/Interfaces
 	// ===========================================================
 
-	private void calculateDirectorySize(final File pDirectory) {
-		try {
-			final File[] z = pDirectory.listFiles();
-			if (z != null) {
-				for (final File file : z) {
-					if (file.isFile()) {
-						mUsedCacheSpace += file.length();
+	/**
+	 * Rebuild, trim or rewrite the journal in the background, because it can
+	 * take a long time. Only one thread does this at a time.
+	 */
+	private void scheduleMaintenance() {
+		if (!mMaintenanceRunning.compareAndSet(false, true)) {
+			return;
+		}
+
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					final TileCacheJournal journal = getJournal();
+					if (journal.isRebuildNeeded()) {
+						journal.rebuild();
 					}
-					if (file.isDirectory()
-							&& !isSymbolicDirectoryLink(pDirectory, file)) {
-						calculateDirectorySize(file); // *** recurse ***
+					if (journal.getUsedSpace() > TILE_MAX_CACHE_SIZE_BYTES) {
+						Log.i("MapsAPI", "TileWriter: Trimming tile cache from "
+								+ journal.getUsedSpace() + " to "
+								+ TILE_TRIM_CACHE_SIZE_BYTES);
+						journal.trim(TILE_TRIM_CACHE_SIZE_BYTES);
+						Log.i("MapsAPI", "TileWriter: Finished trimming tile cache");
+					} else if (journal.isMaintenanceNeeded()) {
+						// only drop the lines of tiles that were written again
+						journal.trim(Long.MAX_VALUE);
 					}
+				} finally {
+					mMaintenanceRunning.set(false);
+				}
+				if (DEBUGMODE) {
+					Log.d("MapsAPI", "TileWriter: Finished maintenance thread");
 				}
 			}
-		} catch (final Exception ex) {
-			Log.w("MapsTileWriter", "calculateDirectorySize", ex);
-		}
+		};
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
 	}
 
 	// ===========================================================
@@ -130,125 +159,169 @@ public class TileWriter implements IFilesystemCache,
 		}
 	}
 
-	/**
-	 * If the cache size is greater than the max then trim it down to the trim
-	 * level. This method is synchronized so that only one thread can run it at
-	 * a time.
-	 */
-	private void cutCurrentCache() {
-
-		synchronized (TILE_PATH_BASE) {
-
-			if (mUsedCacheSpace > TILE_TRIM_CACHE_SIZE_BYTES) {
-
-				Log.i("MapsAPI", "TileWriter: Trimming tile cache from "
-						+ mUsedCacheSpace + " to " + TILE_TRIM_CACHE_SIZE_BYTES);
-
-				final List<File> z = getDirectoryFileList(TILE_PATH_BASE);
-
-				// order list by files day created from old to new
-				final File[] files = z.toArray(new File[0]);
-				Arrays.sort(files, new Comparator<File>() {
-					@Override
-					public int compare(final File f1, final File f2) {
-						return Long.valueOf(f1.lastModified()).compareTo(
-								f2.lastModified());
-					}
-				});
+	private File getFile(final ITileSource pTileSource, final MapTile pTile) {
+		return new File(TILE_PATH_BASE,
+				pTileSource.getTileRelativeFilenameString(pTile)
+						+ TILE_PATH_EXTENSION);
+	}
 
-				for (final File file : files) {
-					if (mUsedCacheSpace <= TILE_TRIM_CACHE_SIZE_BYTES) {
-						break;
-					}
+	private static File getMetadataFile(final File pFile) {
+		return new File(pFile.getPath() + TILE_METADATA_PATH_EXTENSION);
+	}
 
-					final long length = file.length();
-					if (file.delete()) {
-						mUsedCacheSpace -= length;
-					}
-				}
+	private boolean saveMetadata(final File pFile,
+			final MapTileMetadata pMetadata) {
+		final File metadataFile = getMetadataFile(pFile);
+		if (pMetadata == null) {
+			// don't leave the validators of an older version of the tile
+			metadataFile.delete();
+			return true;
+		}
 
-				Log.i("MapsAPI", "TileWriter: Finished trimming tile cache");
+		BufferedOutputStream outputStream = null;
+		try {
+			outputStream = new BufferedOutputStream(new FileOutputStream(
+					metadataFile));
+			pMetadata.write(outputStream);
+		} catch (final IOException e) {
+			return false;
+		} finally {
+			if (outputStream != null) {
+				StreamUtils.closeStream(outputStream);
 			}
 		}
+		// if this fails, readExpires() reads the metadata file instead
+		metadataFile.setLastModified(pMetadata.getExpires() > 0 ? pMetadata
+				.getExpires() : NO_EXPIRES_TIME);
+		return true;
 	}
 
-	private List<File> getDirectoryFileList(final File aDirectory) {
-		final List<File> files = new ArrayList<File>();
-
-		final File[] z = aDirectory.listFiles();
-		if (z != null) {
-			for (final File file : z) {
-				if (file.isFile()) {
-					files.add(file);
-				}
-				if (file.isDirectory()) {
-					files.addAll(getDirectoryFileList(file));
-				}
-			}
+	/**
+	 * Record a tile in the journal, and trim the cache if it's too big.
+	 */
+	private void recordSave(final ITileSource pTileSource,
+			final MapTile pTile, final long pDelta) {
+		final TileCacheJournal journal = getJournal();
+		journal.recordSave(pTileSource.getTileRelativeFilenameString(pTile)
+				+ TILE_PATH_EXTENSION, pDelta);
+		if (journal.isMaintenanceNeeded()) {
+			scheduleMaintenance();
 		}
+	}
+
+	private static long getLength(final File pFile) {
+		return pFile.length() + getMetadataFile(pFile).length();
+	}
 
-		return files;
+	@Override
+	public MapTileMetadata getMetadata(final ITileSource pTileSource,
+			final MapTile pTile) {
+		final File file = getFile(pTileSource, pTile);
+		if (!file.exists()) {
+			return null;
+		}
+		return readMetadata(file);
 	}
 
 	/**
-	 * Checks to see if it appears that a directory is a symbolic link. It does
-	 * this by comparing the canonical path of the parent directory and the
-	 * parent directory of the directory's canonical path. If they are equal,
-	 * then they come from the same true parent. If not, then pDirectory is a
-	 * symbolic link. If we get an exception, we err on the side of caution and
-	 * return "true" expecting the calculateDirectorySize to now skip further
-	 * processing since something went goofy.
+	 * Read the metadata that was saved with a tile.
+	 * 
+	 * @param pFile
+	 *            the tile file
+	 * @return the metadata, or null if there is none
 	 */
-	private boolean isSymbolicDirectoryLink(final File pParentDirectory,
-			final File pDirectory) {
+	static MapTileMetadata readMetadata(final File pFile) {
+		BufferedInputStream inputStream = null;
 		try {
-			final String canonicalParentPath1 = pParentDirectory
-					.getCanonicalPath();
-			final String canonicalParentPath2 = pDirectory.getCanonicalFile()
-					.getParent();
-			return !canonicalParentPath1.equals(canonicalParentPath2);
+			inputStream = new BufferedInputStream(new FileInputStream(
+					getMetadataFile(pFile)));
+			return MapTileMetadata.read(inputStream);
+		} catch (final FileNotFoundException e) {
+			return null;
 		} catch (final IOException e) {
-			return true;
-		} catch (final NoSuchElementException e) {
-			// See: http://code.google.com/p/android/issues/detail?id=4961
-			// See: http://code.google.com/p/android/issues/detail?id=5807
-			return true;
+			Log.w("MapsAPI", "TileWriter: Error reading metadata of " + pFile
+					+ " : " + e);
+			return null;
+		} finally {
+			if (inputStream != null) {
+				StreamUtils.closeStream(inputStream);
+			}
+		}
+	}
+
+	/**
+	 * Get the expiry time the server sent with a tile from the modification
+	 * time of its metadata file, without opening it. The metadata file is only
+	 * read if its modification time couldn't be set, or if the tile expired
+	 * when it was written.
+	 * 
+	 * @param pFile
+	 *            the tile file
+	 * @return the expiry time, or 0 if there is none
+	 */
+	static long readExpires(final File pFile) {
+		final long time = getMetadataFile(pFile).lastModified();
+		if (time == 0 || time == NO_EXPIRES_TIME) {
+			return 0;
+		}
+		if (Math.abs(time - pFile.lastModified()) > MODIFIED_TIME_SLACK) {
+			return time;
 		}
+		final MapTileMetadata metadata = readMetadata(pFile);
+		return metadata != null ? metadata.getExpires() : 0;
+	}
 
+	@Override
+	public boolean refreshFile(final ITileSource pTileSource,
+			final MapTile pTile, final MapTileMetadata pMetadata) {
+		final File file = getFile(pTileSource, pTile);
+		final long oldLength = getLength(file);
+		if (!file.setLastModified(System.currentTimeMillis())) {
+			return false;
+		}
+		final boolean saved = saveMetadata(file, pMetadata);
+		recordSave(pTileSource, pTile, getLength(file) - oldLength);
+		return saved;
 	}
 
 	@Override
 	public boolean saveFile(final ITileSource pTileSource, final MapTile pTile,
 			final InputStream pStream) {
+		return saveFile(pTileSource, pTile, pStream, null);
+	}
 
-		final File file = new File(TILE_PATH_BASE,
-				pTileSource.getTileRelativeFilenameString(pTile)
-						+ TILE_PATH_EXTENSION);
+	@Override
+	public boolean saveFile(final ITileSource pTileSource, final MapTile pTile,
+			final InputStream pStream, final MapTileMetadata pMetadata) {
+
+		final File file = getFile(pTileSource, pTile);
 
 		final File parent = file.getParentFile();
 		if (!parent.exists() && !createFolderAndCheckIfExists(parent)) {
 			return false;
 		}
 
+		final long oldLength = getLength(file);
 		BufferedOutputStream outputStream = null;
+		boolean saved;
 		try {
 			outputStream = new BufferedOutputStream(new FileOutputStream(
 					file.getPath()), StreamUtils.IO_BUFFER_SIZE);
-			final long length = StreamUtils.copy(pStream, outputStream);
-
-			mUsedCacheSpace += length;
-			if (mUsedCacheSpace > TILE_MAX_CACHE_SIZE_BYTES) {
-				cutCurrentCache(); // TODO perhaps we should do this in the
-									// background
-			}
+			StreamUtils.copy(pStream, outputStream);
+			saved = true;
 		} catch (final IOException e) {
-			return false;
+			saved = false;
 		} finally {
 			if (outputStream != null) {
 				StreamUtils.closeStream(outputStream);
 			}
 		}
-		return true;
+		if (saved) {
+			saved = saveMetadata(file, pMetadata);
+		}
+		// a partly written tile takes up space too
+		recordSave(pTileSource, pTile, getLength(file) - oldLength);
+		return saved;
 	}
 
 }
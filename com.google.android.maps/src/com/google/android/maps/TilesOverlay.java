@@ -8,6 +8,7 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Point;
+import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
@@ -38,6 +39,9 @@ public class TilesOverlay extends Overlay implements IOverlayMenuProvider {
 	protected final Paint mDebugPaint = new Paint();
 	private final Rect mTileRect = new Rect();
 	private final Rect mViewPort = new Rect();
+	private final Rect mFallbackSrcRect = new Rect();
+	private final Rect mFallbackDestRect = new Rect();
+	private final Paint mFallbackPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
 	private boolean mOptionsMenuEnabled = true;
 
@@ -51,6 +55,28 @@ public class TilesOverlay extends Overlay implements IOverlayMenuProvider {
 	/** For overshooting the tile cache **/
 	private int mOvershootTileCache = 0;
 
+	private static final int KEY_POSITION_MASK = (1 << 29) - 1;
+
+	/**
+	 * The composite of the tiles in the viewport, kept between frames. It's a
+	 * ring buffer: a point in Mercator pixels is stored at its coordinates
+	 * modulo the size of the buffer, so when the map pans only the newly
+	 * exposed part has to be drawn and no pixels have to move.
+	 */
+	private boolean mCompositeEnabled = false;
+	private Bitmap mComposite;
+	private Canvas mCompositeCanvas;
+	/** the part of the viewport the composite holds, in Mercator pixels */
+	private final Rect mCompositeValid = new Rect();
+	private int mCompositeZoomLevel = -1;
+	private int mCompositeTileSizePx;
+	private ITileSource mCompositeTileSource;
+	/** the tiles drawn into the composite by their position */
+	private LongHashMap<Drawable> mCompositeTiles = new LongHashMap<Drawable>();
+	private LongHashMap<Drawable> mLastCompositeTiles = new LongHashMap<Drawable>();
+	private Rect mCompositeViewPort;
+	private final Rect mCompositeClip = new Rect();
+
 	private final TileLooper mTileLooper = new TileLooper() {
 		@Override
 		public void finaliseLoop() {
@@ -59,16 +85,14 @@ public class TilesOverlay extends Overlay implements IOverlayMenuProvider {
 		@Override
 		public void handleTile(final Canvas pCanvas, final int pTileSizePx,
 				final MapTile pTile, final int pX, final int pY) {
-			Drawable currentMapTile = mTileProvider.getMapTile(pTile);
-			if (currentMapTile == null) {
-				currentMapTile = getLoadingTile();
-			}
-
+			final Drawable currentMapTile = mTileProvider.getMapTile(pTile);
 			if (currentMapTile != null) {
 				mTileRect.set(pX * pTileSizePx, pY * pTileSizePx, pX
 						* pTileSizePx + pTileSizePx, pY * pTileSizePx
 						+ pTileSizePx);
 				onTileReadyToDraw(pCanvas, currentMapTile, mTileRect);
+			} else {
+				drawFallback(pCanvas, pTileSizePx, pTile, pX, pY);
 			}
 
 			if (DEBUGMODE) {
@@ -94,6 +118,58 @@ public class TilesOverlay extends Overlay implements IOverlayMenuProvider {
 		}
 	};
 
+	/**
+	 * Draws the tiles that are newly exposed or have changed into the
+	 * composite.
+	 */
+	private final TileLooper mCompositeLooper = new TileLooper() {
+		@Override
+		public void finaliseLoop() {
+			// forget the tiles that have left the viewport
+			final LongHashMap<Drawable> lastTiles = mLastCompositeTiles;
+			mLastCompositeTiles = mCompositeTiles;
+			mCompositeTiles = lastTiles;
+			mCompositeTiles.clear();
+		}
+
+		@Override
+		public void handleTile(final Canvas pCanvas, final int pTileSizePx,
+				final MapTile pTile, final int pX, final int pY) {
+			final Drawable currentMapTile = mTileProvider.getMapTile(pTile);
+
+			mTileRect.set(pX * pTileSizePx, pY * pTileSizePx, pX
+					* pTileSizePx + pTileSizePx, pY * pTileSizePx
+					+ pTileSizePx);
+			mCompositeClip.set(mTileRect);
+			if (!mCompositeClip.intersect(mCompositeViewPort)) {
+				return;
+			}
+
+			// the position in the loop, since a tile is drawn twice when the
+			// world is narrower than the viewport
+			final long position = MapTile.getKey(pTile.getZoomLevel(), pX
+					& KEY_POSITION_MASK, pY & KEY_POSITION_MASK);
+			// a missing tile is drawn from the cached tiles around it on every
+			// frame, since these may change until it arrives
+			if (currentMapTile == null
+					|| currentMapTile != mLastCompositeTiles.get(position)
+					|| !mCompositeValid.contains(mCompositeClip)) {
+				drawIntoComposite(currentMapTile, pTile, pX, pY, pTileSizePx);
+			}
+			if (currentMapTile != null) {
+				mCompositeTiles.put(position, currentMapTile);
+			}
+		}
+
+		@Override
+		public void initialiseLoop(final int pZoomLevel, final int pTileSizePx) {
+			// make sure the cache is big enough for all the tiles
+			final int numNeeded = (mLowerRight.y - mUpperLeft.y + 1)
+					* (mLowerRight.x - mUpperLeft.x + 1);
+			mTileProvider.ensureCapacity(numNeeded + mOvershootTileCache);
+		}
+	};
+
 	public TilesOverlay(final MapTileProviderBase aTileProvider,
 			final Context aContext) {
 		this(aTileProvider, new DefaultResourceProxyImpl(aContext));
@@ -117,6 +193,18 @@ public class TilesOverlay extends Overlay implements IOverlayMenuProvider {
 		}
 	}
 
+	private void clearComposite() {
+		final Bitmap composite = mComposite;
+		mComposite = null;
+		mCompositeCanvas = null;
+		mCompositeValid.setEmpty();
+		mCompositeTiles.clear();
+		mLastCompositeTiles.clear();
+		if (composite != null) {
+			composite.recycle();
+		}
+	}
+
 	@Override
 	protected void draw(final Canvas c, final MapView osmv, final boolean shadow) {
 
@@ -141,6 +229,9 @@ public class TilesOverlay extends Overlay implements IOverlayMenuProvider {
 
 		// Draw the tiles!
 		drawTiles(c, pj.getZoomLevel(), TileSystem.getTileSize(), mViewPort);
+
+		// the tiles evicted until now are no longer drawn
+		BitmapPool.getInstance().releaseDeferred();
 	}
 
 	/**
@@ -153,7 +244,13 @@ public class TilesOverlay extends Overlay implements IOverlayMenuProvider {
 	public void drawTiles(final Canvas c, final int zoomLevel,
 			final int tileSizePx, final Rect viewPort) {
 
-		mTileLooper.loop(c, zoomLevel, tileSizePx, viewPort);
+		// load the tiles nearest to the center of what we draw first
+		mTileProvider.setViewport(zoomLevel, tileSizePx, viewPort);
+
+		if (!mCompositeEnabled || !drawComposite(c, zoomLevel, tileSizePx,
+				viewPort)) {
+			mTileLooper.loop(c, zoomLevel, tileSizePx, viewPort);
+		}
 
 		// draw a cross at center in debug mode
 		if (DEBUGMODE) {
@@ -168,6 +265,218 @@ public class TilesOverlay extends Overlay implements IOverlayMenuProvider {
 
 	}
 
+	/**
+	 * Update the composite for the viewport and draw it.
+	 * 
+	 * @return false if there's no memory for the composite
+	 */
+	private boolean drawComposite(final Canvas c, final int zoomLevel,
+			final int tileSizePx, final Rect viewPort) {
+		final int width = viewPort.width();
+		final int height = viewPort.height();
+		if (width <= 0 || height <= 0) {
+			return true;
+		}
+		if (mComposite == null || mComposite.getWidth() != width
+				|| mComposite.getHeight() != height) {
+			clearComposite();
+			try {
+				mComposite = Bitmap.createBitmap(width, height,
+						Bitmap.Config.ARGB_8888);
+			} catch (final OutOfMemoryError e) {
+				Log.e("MapsAPI",
+						"TilesOverlay: OutOfMemoryError creating composite");
+				System.gc();
+				return false;
+			}
+			mCompositeCanvas = new Canvas(mComposite);
+		}
+
+		// start over when nothing in the composite can be reused
+		if (zoomLevel != mCompositeZoomLevel
+				|| tileSizePx != mCompositeTileSizePx
+				|| mTileProvider.getTileSource() != mCompositeTileSource) {
+			mCompositeValid.setEmpty();
+			mCompositeTiles.clear();
+			mLastCompositeTiles.clear();
+			mCompositeZoomLevel = zoomLevel;
+			mCompositeTileSizePx = tileSizePx;
+			mCompositeTileSource = mTileProvider.getTileSource();
+		}
+
+		mCompositeViewPort = viewPort;
+		mCompositeLooper.loop(mCompositeCanvas, zoomLevel, tileSizePx,
+				viewPort);
+		mCompositeViewPort = null;
+		mCompositeValid.set(viewPort);
+
+		// draw the composite in up to four parts where the ring wraps
+		for (int top = viewPort.top; top < viewPort.bottom;) {
+			final int ringY = floorDiv(top, height) * height;
+			final int bottom = Math.min(viewPort.bottom, ringY + height);
+			for (int left = viewPort.left; left < viewPort.right;) {
+				final int ringX = floorDiv(left, width) * width;
+				final int right = Math.min(viewPort.right, ringX + width);
+				mCompositeClip.set(left - ringX, top - ringY, right - ringX,
+						bottom - ringY);
+				mTileRect.set(left - mWorldSize_2, top - mWorldSize_2, right
+						- mWorldSize_2, bottom - mWorldSize_2);
+				c.drawBitmap(mComposite, mCompositeClip, mTileRect, null);
+				left = right;
+			}
+			top = bottom;
+		}
+		return true;
+	}
+
+	/**
+	 * Draw a tile into the composite, clearing the part of the viewport it
+	 * covers first. That part is in mCompositeClip. If the tile isn't loaded,
+	 * its fallback is drawn.
+	 */
+	private void drawIntoComposite(final Drawable pDrawable,
+			final MapTile pTile, final int pX, final int pY,
+			final int pTileSizePx) {
+		final int width = mComposite.getWidth();
+		final int height = mComposite.getHeight();
+		final Rect visible = mCompositeClip;
+		for (int top = visible.top; top < visible.bottom;) {
+			final int ringY = floorDiv(top, height) * height;
+			final int bottom = Math.min(visible.bottom, ringY + height);
+			for (int left = visible.left; left < visible.right;) {
+				final int ringX = floorDiv(left, width) * width;
+				final int right = Math.min(visible.right, ringX + width);
+				mCompositeCanvas.save();
+				// onTileReadyToDraw() moves the tile from Mercator pixels to
+				// the canvas, which puts it in the ring here
+				mCompositeCanvas.translate(mWorldSize_2 - ringX, mWorldSize_2
+						- ringY);
+				mCompositeCanvas.clipRect(left - mWorldSize_2, top
+						- mWorldSize_2, right - mWorldSize_2, bottom
+						- mWorldSize_2);
+				mCompositeCanvas.drawColor(Color.TRANSPARENT,
+						PorterDuff.Mode.CLEAR);
+				if (pDrawable != null) {
+					mTileRect.set(pX * pTileSizePx, pY * pTileSizePx, pX
+							* pTileSizePx + pTileSizePx, pY * pTileSizePx
+							+ pTileSizePx);
+					onTileReadyToDraw(mCompositeCanvas, pDrawable, mTileRect);
+				} else {
+					drawFallback(mCompositeCanvas, pTileSizePx, pTile, pX, pY);
+				}
+				mCompositeCanvas.restore();
+				left = right;
+			}
+			top = bottom;
+		}
+	}
+
+	/**
+	 * Draw a tile that isn't loaded yet from the tiles in the cache: its four
+	 * children at the next zoom level if they're all there, otherwise the
+	 * nearest ancestor scaled up, or the loading tile, with the children that
+	 * are there on top. Nothing is allocated and no tiles are requested.
+	 */
+	private void drawFallback(final Canvas pCanvas, final int pTileSizePx,
+			final MapTile pTile, final int pX, final int pY) {
+		final MapTileCache cache = mTileProvider.getTileCache();
+		final int zoomLevel = pTile.getZoomLevel();
+		final int left = pX * pTileSizePx - mWorldSize_2;
+		final int top = pY * pTileSizePx - mWorldSize_2;
+
+		int children = 0;
+		if (zoomLevel < MapTile.MAXIMUM_KEY_ZOOMLEVEL) {
+			for (int i = 0; i < 4; i++) {
+				if (getCachedBitmap(cache, MapTile.getKey(zoomLevel + 1,
+						(pTile.getX() << 1) + (i & 1), (pTile.getY() << 1)
+								+ (i >> 1))) != null) {
+					children++;
+				}
+			}
+		}
+
+		if (children < 4 && !drawAncestor(pCanvas, cache, pTile, left, top,
+				pTileSizePx)) {
+			final Drawable loadingTile = getLoadingTile();
+			if (loadingTile != null) {
+				mTileRect.set(left, top, left + pTileSizePx, top + pTileSizePx);
+				loadingTile.setBounds(mTileRect);
+				loadingTile.draw(pCanvas);
+			}
+		}
+
+		if (children > 0) {
+			final int childSizePx = pTileSizePx >> 1;
+			for (int i = 0; i < 4; i++) {
+				final Bitmap bitmap = getCachedBitmap(cache, MapTile.getKey(
+						zoomLevel + 1, (pTile.getX() << 1) + (i & 1),
+						(pTile.getY() << 1) + (i >> 1)));
+				if (bitmap != null) {
+					final int childLeft = left + (i & 1) * childSizePx;
+					final int childTop = top + (i >> 1) * childSizePx;
+					mFallbackDestRect.set(childLeft, childTop, childLeft
+							+ childSizePx, childTop + childSizePx);
+					pCanvas.drawBitmap(bitmap, null, mFallbackDestRect,
+							mFallbackPaint);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draw the part of the nearest ancestor in the cache that covers a tile.
+	 * 
+	 * @return false if no ancestor is in the cache
+	 */
+	private boolean drawAncestor(final Canvas pCanvas,
+			final MapTileCache pCache, final MapTile pTile, final int pLeft,
+			final int pTop, final int pTileSizePx) {
+		final int maxDiff = Math.min(pTile.getZoomLevel(),
+				OpenStreetMapTileProviderConstants.TILE_FALLBACK_MAXIMUM_ZOOM_DIFF);
+		for (int diff = 1; diff <= maxDiff; diff++) {
+			final Bitmap bitmap = getCachedBitmap(pCache, MapTile.getKey(
+					pTile.getZoomLevel() - diff, pTile.getX() >> diff,
+					pTile.getY() >> diff));
+			if (bitmap != null) {
+				final int sizePx = bitmap.getWidth() >> diff;
+				if (sizePx == 0) {
+					return false;
+				}
+				final int mask = (1 << diff) - 1;
+				final int srcLeft = (pTile.getX() & mask) * sizePx;
+				final int srcTop = (pTile.getY() & mask) * sizePx;
+				mFallbackSrcRect.set(srcLeft, srcTop, srcLeft + sizePx, srcTop
+						+ sizePx);
+				mFallbackDestRect.set(pLeft, pTop, pLeft + pTileSizePx, pTop
+						+ pTileSizePx);
+				pCanvas.drawBitmap(bitmap, mFallbackSrcRect, mFallbackDestRect,
+						mFallbackPaint);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the bitmap of a tile in the cache, or null if it isn't there or
+	 *         can't be drawn
+	 */
+	private static Bitmap getCachedBitmap(final MapTileCache pCache,
+			final long pKey) {
+		final Drawable drawable = pCache.getMapTile(pKey);
+		if (drawable instanceof BitmapDrawable) {
+			final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+			if (bitmap != null && !bitmap.isRecycled()) {
+				return bitmap;
+			}
+		}
+		return null;
+	}
+
+	private static int floorDiv(final int pNumber, final int pDivisor) {
+		return pNumber >= 0 ? pNumber / pDivisor : -((-pNumber - 1) / pDivisor) - 1;
+	}
+
 	public int getLoadingBackgroundColor() {
 		return mLoadingBackgroundColor;
 	}
@@ -260,6 +569,7 @@ public class TilesOverlay extends Overlay implements IOverlayMenuProvider {
 
 	@Override
 	public void onDetach(final MapView pMapView) {
+		clearComposite();
 		mTileProvider.detach();
 	}
 
@@ -351,6 +661,31 @@ public class TilesOverlay extends Overlay implements IOverlayMenuProvider {
 		mOvershootTileCache = overshootTileCache;
 	}
 
+	/**
+	 * Whether the tiles are drawn through a composite of the viewport.
+	 */
+	public boolean isCompositeEnabled() {
+		return mCompositeEnabled;
+	}
+
+	/**
+	 * Set whether to draw the tiles through a composite of the viewport that
+	 * is kept between frames. When the map pans, only the newly exposed part
+	 * of the viewport and the tiles that have changed are drawn, instead of
+	 * all tiles on every frame. The whole composite is drawn again when the
+	 * zoom level or the tile source changes. It takes a bitmap the size of the
+	 * viewport.
+	 * 
+	 * @param pCompositeEnabled
+	 *            true to draw through the composite
+	 */
+	public void setCompositeEnabled(final boolean pCompositeEnabled) {
+		mCompositeEnabled = pCompositeEnabled;
+		if (!pCompositeEnabled) {
+			clearComposite();
+		}
+	}
+
 	/**
 	 * Set whether to use the network connection if it's available.
 	 * 
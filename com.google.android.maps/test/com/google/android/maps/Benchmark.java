@@ -0,0 +1,99 @@
+package com.google.android.maps;
+
+/**
+ * Times a piece of code for the benchmarks in this folder. The code is run a
+ * few times to warm up the JIT, then the fastest of several timed runs is
+ * reported, as the one least disturbed by the GC and other processes.
+ *
+ * The benchmarks and tests in this folder are plain Java programs with a main
+ * method. Build them with the test-jar target and run them on a device, e.g.:
+ *
+ * <pre>
+ * adb push bin/com.google.android.maps-test.jar /data/local/tmp/
+ * adb shell CLASSPATH=/data/local/tmp/com.google.android.maps-test.jar \
+ *     app_process / com.google.android.maps.LongHashMapTest
+ * </pre>
+ *
+ * A test throws an {@link AssertionError} if it fails, so the process exits
+ * with an error.
+ */
+abstract class Benchmark {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final int WARMUP_RUNS = 5;
+
+	private static final int TIMED_RUNS = 10;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final String mName;
+	private final int mOperations;
+
+	/** so the JIT can't drop the code whose result isn't used */
+	static volatile long sSink;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pOperations
+	 *            the number of operations in one run, to report the time per
+	 *            operation
+	 */
+	Benchmark(final String pName, final int pOperations) {
+		mName = pName;
+		mOperations = pOperations;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Run the code once.
+	 *
+	 * @return any value computed from the results
+	 */
+	protected abstract long run();
+
+	/**
+	 * Called before every run, outside the timing.
+	 */
+	protected void setUp() {
+	}
+
+	/**
+	 * Time the code and print the result.
+	 *
+	 * @return the time per operation in nanoseconds
+	 */
+	double measure() {
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			setUp();
+			sSink += run();
+		}
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < TIMED_RUNS; i++) {
+			setUp();
+			final long start = System.nanoTime();
+			sSink += run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		final double nsPerOperation = (double) best / mOperations;
+		System.out.println(String.format("%-50s %10.1f ns/op", mName,
+				nsPerOperation));
+		return nsPerOperation;
+	}
+
+	static void check(final boolean pCondition, final String pMessage) {
+		if (!pCondition) {
+			throw new AssertionError(pMessage);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.google.android.maps;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares {@link GEMFRangeIndex} with the linear scan over a list of boxed
+ * ranges that {@link GEMFFile} used before, on the header of a synthetic
+ * archive with 10000 ranges: two sources over ten zoom levels, each cut into
+ * blocks of 8 x 8 tiles like the GEMF tools write them. One group of ranges
+ * overlaps, so the index falls back to a scan there.
+ *
+ * Before timing, it checks that the index finds the same range as the scan
+ * for every tile looked up.
+ */
+public class GEMFRangeIndexBenchmark {
+
+	private static final int SOURCES = 2;
+	private static final int MINIMUM_ZOOM = 8;
+	private static final int ZOOM_LEVELS = 10;
+	private static final int BLOCKS_X = 25;
+	private static final int BLOCKS_Y = 20;
+	private static final int BLOCK_SIZE = 8;
+
+	private static final int LOOKUPS = 100000;
+
+	/**
+	 * A range as {@link GEMFFile} kept it before.
+	 */
+	private static class GEMFRange {
+		Integer zoom;
+		Integer xMin;
+		Integer xMax;
+		Integer yMin;
+		Integer yMax;
+		Integer sourceIndex;
+		Long offset;
+	}
+
+	public static void main(final String[] pArgs) {
+		final List<GEMFRange> rangeData = new ArrayList<GEMFRange>();
+		final GEMFRangeIndex index = new GEMFRangeIndex();
+		long offset = 0;
+		for (int source = 0; source < SOURCES; source++) {
+			for (int zoom = MINIMUM_ZOOM; zoom < MINIMUM_ZOOM + ZOOM_LEVELS; zoom++) {
+				// somewhere in the middle of the world
+				final int left = (1 << zoom) / 2 - BLOCKS_X * BLOCK_SIZE / 2;
+				final int top = (1 << zoom) / 2 - BLOCKS_Y * BLOCK_SIZE / 2;
+				for (int bx = 0; bx < BLOCKS_X; bx++) {
+					for (int by = 0; by < BLOCKS_Y; by++) {
+						final GEMFRange range = new GEMFRange();
+						range.zoom = zoom;
+						range.xMin = left + bx * BLOCK_SIZE;
+						range.xMax = range.xMin + BLOCK_SIZE - 1;
+						range.yMin = top + by * BLOCK_SIZE;
+						range.yMax = range.yMin + BLOCK_SIZE - 1;
+						range.sourceIndex = source;
+						range.offset = offset;
+						offset += BLOCK_SIZE * BLOCK_SIZE * 12;
+						if (source == 1 && zoom == MINIMUM_ZOOM && bx == 0) {
+							// overlap the next block
+							range.xMax += BLOCK_SIZE / 2;
+						}
+						rangeData.add(range);
+						index.add(range.zoom, range.xMin, range.xMax,
+								range.yMin, range.yMax, range.sourceIndex,
+								range.offset);
+					}
+				}
+			}
+		}
+		index.build();
+		System.out.println(rangeData.size() + " ranges");
+
+		// tiles around the ranges, some of them outside
+		final Random random = new Random(1);
+		final int[] zooms = new int[LOOKUPS];
+		final int[] xs = new int[LOOKUPS];
+		final int[] ys = new int[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			zooms[i] = MINIMUM_ZOOM - 1 + random.nextInt(ZOOM_LEVELS + 2);
+			final int size = 1 << zooms[i];
+			xs[i] = size / 2 + random.nextInt(BLOCKS_X * BLOCK_SIZE * 5 / 4)
+					- BLOCKS_X * BLOCK_SIZE * 5 / 8;
+			ys[i] = size / 2 + random.nextInt(BLOCKS_Y * BLOCK_SIZE * 5 / 4)
+					- BLOCKS_Y * BLOCK_SIZE * 5 / 8;
+		}
+
+		for (int i = 0; i < LOOKUPS; i++) {
+			final GEMFRange expected = scan(rangeData, zooms[i], xs[i],
+					ys[i], -1);
+			final int found = index.find(zooms[i], xs[i], ys[i]);
+			Benchmark.check(expected == null ? found == -1 : found >= 0
+					&& index.getOffset(found) == expected.offset,
+					"different range for " + zooms[i] + "/" + xs[i] + "/"
+							+ ys[i]);
+			for (int source = 0; source < SOURCES; source++) {
+				final GEMFRange expectedInSource = scan(rangeData, zooms[i],
+						xs[i], ys[i], source);
+				final int foundInSource = index.find(zooms[i], xs[i], ys[i],
+						source);
+				Benchmark.check(expectedInSource == null ? foundInSource == -1
+						: foundInSource >= 0
+								&& index.getOffset(foundInSource) == expectedInSource.offset,
+						"different range in source " + source + " for "
+								+ zooms[i] + "/" + xs[i] + "/" + ys[i]);
+			}
+		}
+
+		final double before = new Benchmark("linear scan", LOOKUPS) {
+			@Override
+			protected long run() {
+				long sum = 0;
+				for (int i = 0; i < LOOKUPS; i++) {
+					final GEMFRange range = scan(rangeData, zooms[i], xs[i],
+							ys[i], -1);
+					if (range != null) {
+						sum += range.offset;
+					}
+				}
+				return sum;
+			}
+		}.measure();
+
+		final double after = new Benchmark("GEMFRangeIndex", LOOKUPS) {
+			@Override
+			protected long run() {
+				long sum = 0;
+				for (int i = 0; i < LOOKUPS; i++) {
+					final int range = index.find(zooms[i], xs[i], ys[i]);
+					if (range >= 0) {
+						sum += index.getOffset(range);
+					}
+				}
+				return sum;
+			}
+		}.measure();
+
+		System.out.println(String.format("speedup %.1fx", before / after));
+	}
+
+	/**
+	 * Find a range the way {@link GEMFFile} did before.
+	 *
+	 * @param pSource
+	 *            the source, or -1 for any source
+	 */
+	private static GEMFRange scan(final List<GEMFRange> pRangeData,
+			final int pZ, final int pX, final int pY, final int pSource) {
+		for (final GEMFRange rs : pRangeData) {
+			if ((pZ == rs.zoom) && (pX >= rs.xMin) && (pX <= rs.xMax)
+					&& (pY >= rs.yMin) && (pY <= rs.yMax)
+					&& ((pSource < 0) || (rs.sourceIndex == pSource))) {
+				return rs;
+			}
+		}
+		return null;
+	}
+}
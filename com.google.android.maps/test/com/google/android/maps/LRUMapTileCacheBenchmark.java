@@ -0,0 +1,156 @@
+package com.google.android.maps;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Measures the read throughput of {@link LRUMapTileCache} with several reader
+ * threads while a writer keeps adding tiles, like the loader threads do. The
+ * readers look up the tiles of a screen over and over, as the UI thread does
+ * every frame.
+ *
+ * It compares the cache with an access ordered {@link LinkedHashMap} behind a
+ * lock, the cache it replaced. That cache only took a read lock to look a tile
+ * up, which was wrong because a lookup reorders the map, so it's measured with
+ * the exclusive lock it needed.
+ */
+public class LRUMapTileCacheBenchmark {
+
+	private static final int CAPACITY = 200;
+	private static final int SCREEN_COLUMNS = 8;
+	private static final int SCREEN_ROWS = 12;
+	private static final int ZOOM_LEVEL = 10;
+	private static final int AREA_SIZE = 40;
+
+	private static final long WRITE_INTERVAL_NANOSECONDS = 20 * 1000;
+	private static final long DURATION_MILLISECONDS = 2000;
+
+	private interface Cache {
+		Drawable get(long pKey);
+
+		void put(long pKey, Drawable pDrawable);
+	}
+
+	private static class LockedLinkedHashMapCache implements Cache {
+		private final LinkedHashMap<Long, Drawable> mMap = new LinkedHashMap<Long, Drawable>(
+				CAPACITY + 2, 0.1f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<Long, Drawable> pEldest) {
+				return size() > CAPACITY;
+			}
+		};
+
+		@Override
+		public synchronized Drawable get(final long pKey) {
+			return mMap.get(pKey);
+		}
+
+		@Override
+		public synchronized void put(final long pKey, final Drawable pDrawable) {
+			mMap.put(pKey, pDrawable);
+		}
+	}
+
+	private static class ClockCache implements Cache {
+		// no budget beyond the capacity, like the other cache
+		private final LRUMapTileCache mCache = new LRUMapTileCache(CAPACITY, -1);
+
+		@Override
+		public Drawable get(final long pKey) {
+			return mCache.get(pKey);
+		}
+
+		@Override
+		public void put(final long pKey, final Drawable pDrawable) {
+			mCache.put(pKey, pDrawable);
+		}
+	}
+
+	public static void main(final String[] pArgs) throws InterruptedException {
+		for (final int readers : new int[] { 1, 2, 4 }) {
+			measure("locked LinkedHashMap", new LockedLinkedHashMapCache(),
+					readers);
+			measure("LRUMapTileCache", new ClockCache(), readers);
+		}
+	}
+
+	private static void measure(final String pName, final Cache pCache,
+			final int pReaders) throws InterruptedException {
+		final long[] screen = new long[SCREEN_COLUMNS * SCREEN_ROWS];
+		for (int i = 0; i < screen.length; i++) {
+			screen[i] = MapTile.getKey(ZOOM_LEVEL, i % SCREEN_COLUMNS, i
+					/ SCREEN_COLUMNS);
+			pCache.put(screen[i], createDrawable());
+		}
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong reads = new AtomicLong();
+		final AtomicLong writes = new AtomicLong();
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < pReaders; i++) {
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					long count = 0;
+					long found = 0;
+					while (!stop.get()) {
+						for (final long key : screen) {
+							if (pCache.get(key) != null) {
+								found++;
+							}
+						}
+						count += screen.length;
+					}
+					reads.addAndGet(count);
+					Benchmark.sSink += found;
+				}
+			});
+		}
+		threads.add(new Thread() {
+			@Override
+			public void run() {
+				final Random random = new Random(1);
+				long count = 0;
+				while (!stop.get()) {
+					pCache.put(MapTile.getKey(ZOOM_LEVEL, random
+							.nextInt(AREA_SIZE), random.nextInt(AREA_SIZE)),
+							createDrawable());
+					count++;
+					LockSupport.parkNanos(WRITE_INTERVAL_NANOSECONDS);
+				}
+				writes.addAndGet(count);
+			}
+		});
+
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+		Thread.sleep(DURATION_MILLISECONDS);
+		stop.set(true);
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		System.out.println(String.format(
+				"%-25s %d readers: %6.1f M reads/s, %6d writes/s", pName,
+				pReaders, reads.get() / 1000.0 / DURATION_MILLISECONDS,
+				writes.get() * 1000 / DURATION_MILLISECONDS));
+	}
+
+	private static Drawable createDrawable() {
+		return new ExpirableBitmapDrawable(Bitmap.createBitmap(1, 1,
+				Bitmap.Config.RGB_565));
+	}
+}
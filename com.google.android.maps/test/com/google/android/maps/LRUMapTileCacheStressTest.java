@@ -0,0 +1,154 @@
+package com.google.android.maps;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Hammers an {@link LRUMapTileCache} from several threads: writers put,
+ * replace, revalidate and remove tiles while readers look tiles up without a
+ * lock, most of them in a small set like the tiles on screen. It checks that
+ * a read never returns the drawable of another tile, and that the cache is
+ * consistent once the threads have stopped: it holds no more tiles than its
+ * capacity, every tile it counts can be found, and clearing it empties it.
+ */
+public class LRUMapTileCacheStressTest {
+
+	private static final int CAPACITY = 200;
+	private static final int WRITERS = 4;
+	private static final int READERS = 4;
+	private static final long DURATION_MILLISECONDS = 5000;
+
+	/** the tiles used are at one zoom level in a square of this size */
+	private static final int AREA_ZOOM_LEVEL = 10;
+	private static final int AREA_SIZE = 40;
+	/** most reads are in a square of this size, like the tiles on screen */
+	private static final int HOT_AREA_SIZE = 10;
+
+	/**
+	 * A drawable that knows which tile it was put for.
+	 */
+	private static class TileDrawable extends ExpirableBitmapDrawable {
+		final long mKey;
+
+		TileDrawable(final long pKey) {
+			super(Bitmap.createBitmap(1, 1, Bitmap.Config.RGB_565));
+			mKey = pKey;
+		}
+	}
+
+	public static void main(final String[] pArgs) throws InterruptedException {
+		// no budget beyond the capacity, so the cache holds exactly that many
+		final LRUMapTileCache cache = new LRUMapTileCache(CAPACITY, -1);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		final AtomicLong reads = new AtomicLong();
+		final AtomicLong hits = new AtomicLong();
+		final AtomicLong writes = new AtomicLong();
+
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < WRITERS; i++) {
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					final Random random = new Random();
+					long count = 0;
+					while (!stop.get()) {
+						final long key = randomKey(random, AREA_SIZE);
+						final int operation = random.nextInt(100);
+						if (operation < 80) {
+							cache.put(key, new TileDrawable(key));
+						} else if (operation < 90) {
+							cache.putIfAbsent(key, new TileDrawable(key));
+						} else if (operation < 95) {
+							final Drawable drawable = cache.get(key);
+							if (drawable != null) {
+								cache.revalidate(key, drawable);
+								// putting the same drawable again keeps it
+								cache.put(key, drawable);
+							}
+						} else {
+							cache.remove(key);
+						}
+						count++;
+					}
+					writes.addAndGet(count);
+				}
+			});
+		}
+		for (int i = 0; i < READERS; i++) {
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					final Random random = new Random();
+					long count = 0;
+					long hitCount = 0;
+					while (!stop.get()) {
+						final long key = randomKey(random,
+								random.nextInt(100) < 80 ? HOT_AREA_SIZE
+										: AREA_SIZE);
+						final Drawable drawable = cache.get(key);
+						if (drawable != null) {
+							hitCount++;
+							if (((TileDrawable) drawable).mKey != key) {
+								failure.set("got the drawable of "
+										+ ((TileDrawable) drawable).mKey
+										+ " for " + key);
+							}
+						}
+						count++;
+					}
+					reads.addAndGet(count);
+					hits.addAndGet(hitCount);
+				}
+			});
+		}
+
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+		Thread.sleep(DURATION_MILLISECONDS);
+		stop.set(true);
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		Benchmark.check(failure.get() == null, String.valueOf(failure.get()));
+		Benchmark.check(cache.size() <= CAPACITY, "holds " + cache.size()
+				+ " tiles, more than " + CAPACITY);
+		int found = 0;
+		for (int x = 0; x < AREA_SIZE; x++) {
+			for (int y = 0; y < AREA_SIZE; y++) {
+				final long key = MapTile.getKey(AREA_ZOOM_LEVEL, x, y);
+				final Drawable drawable = cache.get(key);
+				if (drawable != null) {
+					Benchmark.check(((TileDrawable) drawable).mKey == key,
+							"wrong drawable for " + key);
+					found++;
+				}
+			}
+		}
+		Benchmark.check(found == cache.size(), "counts " + cache.size()
+				+ " tiles but " + found + " can be found");
+		cache.clear();
+		Benchmark.check(cache.size() == 0 && cache.getSize() == 0,
+				"not empty after clearing");
+
+		System.out.println(String.format(
+				"OK: %d reads/s (%.0f%% hits), %d writes/s",
+				reads.get() * 1000 / DURATION_MILLISECONDS, 100.0 * hits.get()
+						/ reads.get(), writes.get() * 1000
+						/ DURATION_MILLISECONDS));
+	}
+
+	private static long randomKey(final Random pRandom, final int pAreaSize) {
+		return MapTile.getKey(AREA_ZOOM_LEVEL, pRandom.nextInt(pAreaSize),
+				pRandom.nextInt(pAreaSize));
+	}
+}
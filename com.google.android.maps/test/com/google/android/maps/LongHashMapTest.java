@@ -0,0 +1,99 @@
+package com.google.android.maps;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs random puts, removes and lookups on a {@link LongHashMap} and a
+ * {@link HashMap} side by side and checks they always agree. Every so often
+ * it removes entries while walking the slots, the way the request queues
+ * cancel requests, and checks that no entry was skipped or lost. The keys are
+ * {@link MapTile#getKey() tile keys} over many zoom levels, so they collide in
+ * the low bits like real ones do.
+ *
+ * It also checks that tile keys round trip, and that a tile and the tile with
+ * x and y swapped don't hash the same, which they always did before tiles had
+ * keys.
+ */
+public class LongHashMapTest {
+
+	private static final int OPERATIONS = 2000000;
+	private static final int SWEEP_INTERVAL = 100000;
+
+	public static void main(final String[] pArgs) {
+		final long seed = pArgs.length > 0 ? Long.parseLong(pArgs[0]) : 1;
+		final Random random = new Random(seed);
+		final LongHashMap<Long> map = new LongHashMap<Long>();
+		final HashMap<Long, Long> expected = new HashMap<Long, Long>();
+
+		for (int i = 0; i < OPERATIONS; i++) {
+			final long key = MapTile.getKey(random.nextInt(23), random
+					.nextInt(300), random.nextInt(300));
+			final int operation = random.nextInt(10);
+			if (operation < 5) {
+				final Long value = Long.valueOf(i);
+				checkEqual(expected.put(key, value), map.put(key, value),
+						"put", key);
+			} else if (operation < 8) {
+				checkEqual(expected.remove(key), map.remove(key), "remove",
+						key);
+			} else {
+				checkEqual(expected.get(key), map.get(key), "get", key);
+				Benchmark.check(expected.containsKey(key) == map
+						.containsKey(key), "containsKey " + key);
+			}
+			Benchmark.check(map.size() == expected.size(), "size after "
+					+ i + " operations");
+
+			if (i % SWEEP_INTERVAL == 0) {
+				sweep(map, expected);
+			}
+		}
+
+		final MapTile tile = new MapTile(22, (1 << 22) - 1, 12345);
+		final long key = tile.getKey();
+		Benchmark.check(MapTile.getZoomLevel(key) == 22
+				&& MapTile.getX(key) == (1 << 22) - 1
+				&& MapTile.getY(key) == 12345, "key doesn't round trip");
+		Benchmark.check(
+				new MapTile(5, 3, 7).hashCode() != new MapTile(5, 7, 3)
+						.hashCode(), "swapped tiles hash the same");
+
+		map.clear();
+		Benchmark.check(map.size() == 0 && map.isEmpty(),
+				"not empty after clearing");
+		System.out.println("OK with seed " + seed);
+	}
+
+	/**
+	 * Remove every entry whose value is a multiple of three while walking the
+	 * slots, then check all the others are still there.
+	 */
+	private static void sweep(final LongHashMap<Long> pMap,
+			final Map<Long, Long> pExpected) {
+		int slot = 0;
+		while (slot < pMap.capacity()) {
+			final Long value = pMap.getValueAt(slot);
+			if (value != null && value % 3 == 0) {
+				pExpected.remove(pMap.getKeyAt(slot));
+				// another entry may move into the slot
+				pMap.removeAt(slot);
+			} else {
+				slot++;
+			}
+		}
+		Benchmark.check(pMap.size() == pExpected.size(), "size after sweep");
+		for (final Map.Entry<Long, Long> entry : pExpected.entrySet()) {
+			checkEqual(entry.getValue(), pMap.get(entry.getKey()), "sweep",
+					entry.getKey());
+		}
+	}
+
+	private static void checkEqual(final Long pExpected, final Long pActual,
+			final String pOperation, final long pKey) {
+		Benchmark.check(pExpected == null ? pActual == null : pExpected
+				.equals(pActual), pOperation + " " + pKey + ": expected "
+				+ pExpected + " but got " + pActual);
+	}
+}
@@ -0,0 +1,229 @@
+package com.google.android.maps;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Measures how long the UI thread spends in {@link MapTileProviderArray}
+ * drawing frames while the loader threads complete requests. Every frame asks
+ * for all tiles of the viewport, like {@link TileLooper}, and the map pans by
+ * a column of tiles every few frames so that there are always tiles missing.
+ * The loaders take a moment for every tile, so that many requests are in the
+ * chain at a time.
+ *
+ * It compares the provider with the one it replaced, which kept the requests
+ * in the chain in a {@link ConcurrentHashMap} keyed by request and looked for
+ * a tile by scanning all of its values, twice for every missing tile and
+ * under the lock the loaders need to complete a request.
+ */
+public class MapTileProviderArrayBenchmark implements
+		OpenStreetMapTileProviderConstants {
+
+	private static final int ZOOM_LEVEL = 16;
+	private static final int COLUMNS = 8;
+	private static final int ROWS = 12;
+	private static final int FRAMES_PER_COLUMN = 4;
+
+	private static final int WARMUP_FRAMES = 1000;
+	private static final int FRAMES = 4000;
+
+	private static final long LOAD_TIME_NANOSECONDS = 300 * 1000;
+
+	/**
+	 * A provider that makes up tiles on the file system threads.
+	 */
+	private static class SimulatedProvider extends MapTileModuleProviderBase {
+
+		private class TileLoader extends MapTileModuleProviderBase.TileLoader {
+			@Override
+			protected Drawable loadTile(final MapTileRequestState pState) {
+				LockSupport.parkNanos(LOAD_TIME_NANOSECONDS);
+				return new ExpirableBitmapDrawable(Bitmap.createBitmap(1, 1,
+						Bitmap.Config.RGB_565));
+			}
+		}
+
+		SimulatedProvider() {
+			super(NUMBER_OF_TILE_FILESYSTEM_THREADS,
+					TILE_FILESYSTEM_MAXIMUM_QUEUE_SIZE);
+		}
+
+		@Override
+		public int getMaximumZoomLevel() {
+			return MAXIMUM_ZOOMLEVEL;
+		}
+
+		@Override
+		public int getMinimumZoomLevel() {
+			return MINIMUM_ZOOMLEVEL;
+		}
+
+		@Override
+		protected String getName() {
+			return "Simulated Provider";
+		}
+
+		@Override
+		protected String getThreadGroupName() {
+			return "simulated";
+		}
+
+		@Override
+		protected Runnable getTileLoader() {
+			return new TileLoader();
+		}
+
+		@Override
+		public boolean getUsesDataConnection() {
+			return false;
+		}
+
+		@Override
+		public void setTileSource(final ITileSource pTileSource) {
+		}
+	}
+
+	/**
+	 * The provider array that was used before, reduced to one provider.
+	 */
+	private static class ScanningProviderArray extends MapTileProviderBase {
+
+		private final ConcurrentHashMap<MapTileRequestState, MapTile> mWorking = new ConcurrentHashMap<MapTileRequestState, MapTile>();
+
+		private final MapTileModuleProviderBase mProvider;
+
+		ScanningProviderArray(final MapTileModuleProviderBase pProvider) {
+			super(null);
+			mProvider = pProvider;
+		}
+
+		@Override
+		public Drawable getMapTile(final MapTile pTile) {
+			final Drawable tile = mTileCache.getMapTile(pTile);
+			if (tile != null
+					&& !ExpirableBitmapDrawable.isDrawableExpired(tile)) {
+				return tile;
+			}
+			synchronized (mWorking) {
+				if (isInProgress(pTile)) {
+					return tile;
+				}
+			}
+			final MapTileRequestState state = new MapTileRequestState(pTile,
+					new MapTileModuleProviderBase[] { mProvider }, this);
+			synchronized (mWorking) {
+				if (isInProgress(pTile)) {
+					return tile;
+				}
+				mWorking.put(state, pTile);
+			}
+			state.getNextProvider().loadMapTileAsync(state);
+			return tile;
+		}
+
+		private boolean isInProgress(final MapTile pTile) {
+			boolean inProgress = false;
+			for (final Map.Entry<MapTileRequestState, MapTile> entry : mWorking
+					.entrySet()) {
+				if (entry.getKey().isCanceled()) {
+					mWorking.remove(entry.getKey());
+				} else if (entry.getValue().equals(pTile)) {
+					inProgress = true;
+				}
+			}
+			return inProgress;
+		}
+
+		@Override
+		public void mapTileRequestCompleted(final MapTileRequestState pState,
+				final Drawable pDrawable) {
+			synchronized (mWorking) {
+				mWorking.remove(pState);
+			}
+			super.mapTileRequestCompleted(pState, pDrawable);
+		}
+
+		@Override
+		public void mapTileRequestFailed(final MapTileRequestState pState) {
+			synchronized (mWorking) {
+				mWorking.remove(pState);
+			}
+			super.mapTileRequestFailed(pState);
+		}
+
+		@Override
+		public void detach() {
+			mProvider.detach();
+		}
+
+		@Override
+		public int getMaximumZoomLevel() {
+			return MAXIMUM_ZOOMLEVEL;
+		}
+
+		@Override
+		public int getMinimumZoomLevel() {
+			return MINIMUM_ZOOMLEVEL;
+		}
+	}
+
+	public static void main(final String[] pArgs) {
+		final SimulatedProvider before = new SimulatedProvider();
+		measure("ConcurrentHashMap scan", new ScanningProviderArray(before));
+
+		final SimulatedProvider after = new SimulatedProvider();
+		measure("MapTileProviderArray", new MapTileProviderArray(null, null,
+				new MapTileModuleProviderBase[] { after }));
+	}
+
+	private static void measure(final String pName,
+			final MapTileProviderBase pProvider) {
+		pProvider.ensureCapacity(COLUMNS * ROWS * 2);
+		final long[] frameTimes = new long[FRAMES];
+		long frame = 0;
+		long sum = 0;
+		for (int i = 0; i < WARMUP_FRAMES; i++) {
+			sum += drawFrame(pProvider, frame++);
+		}
+		for (int i = 0; i < FRAMES; i++) {
+			final long start = System.nanoTime();
+			sum += drawFrame(pProvider, frame++);
+			frameTimes[i] = System.nanoTime() - start;
+		}
+		pProvider.detach();
+		Benchmark.sSink += sum;
+
+		Arrays.sort(frameTimes);
+		long total = 0;
+		for (final long time : frameTimes) {
+			total += time;
+		}
+		System.out.println(String.format(
+				"%-30s %8.1f us/frame, 99th percentile %8.1f us", pName,
+				total / 1000.0 / FRAMES, frameTimes[FRAMES * 99 / 100] / 1000.0));
+	}
+
+	/**
+	 * Ask for the tiles of the viewport like {@link TileLooper} does.
+	 *
+	 * @return the number of tiles that were in the cache
+	 */
+	private static int drawFrame(final MapTileProviderBase pProvider,
+			final long pFrame) {
+		final int left = (int) (pFrame / FRAMES_PER_COLUMN % (1 << ZOOM_LEVEL));
+		int found = 0;
+		for (int y = 0; y < ROWS; y++) {
+			for (int x = left; x < left + COLUMNS; x++) {
+				if (pProvider.getMapTile(new MapTile(ZOOM_LEVEL, x, y)) != null) {
+					found++;
+				}
+			}
+		}
+		return found;
+	}
+}
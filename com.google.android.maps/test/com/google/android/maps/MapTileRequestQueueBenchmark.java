@@ -0,0 +1,156 @@
+package com.google.android.maps;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compares {@link MapTileRequestQueue} with the queue it replaced in
+ * {@link MapTileModuleProviderBase}: an access ordered {@link LinkedHashMap}
+ * of pending requests that was walked to the end for every request taken,
+ * skipping the tiles in a map of the requests being worked on.
+ *
+ * Every operation requests a new tile, takes the next request and completes
+ * the eldest one being worked on, with a full pending queue and as many
+ * requests being worked on as a file system provider has threads.
+ */
+public class MapTileRequestQueueBenchmark implements
+		OpenStreetMapTileProviderConstants {
+
+	private static final int OPERATIONS = 100000;
+
+	private static final MapTileModuleProviderBase[] NO_PROVIDERS = new MapTileModuleProviderBase[0];
+
+	/**
+	 * The queue that was used before, reduced to what the loaders did with it.
+	 */
+	private static class LinkedHashMapQueue {
+		private final ConcurrentHashMap<MapTile, MapTileRequestState> mWorking = new ConcurrentHashMap<MapTile, MapTileRequestState>();
+		private final LinkedHashMap<MapTile, MapTileRequestState> mPending;
+
+		LinkedHashMapQueue(final int pPendingQueueSize) {
+			mPending = new LinkedHashMap<MapTile, MapTileRequestState>(
+					pPendingQueueSize + 2, 0.1f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						final Map.Entry<MapTile, MapTileRequestState> pEldest) {
+					if (size() > pPendingQueueSize) {
+						mWorking.remove(pEldest.getKey());
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		synchronized void put(final MapTileRequestState pState) {
+			mPending.put(pState.getMapTile(), pState);
+		}
+
+		synchronized MapTileRequestState poll() {
+			MapTile result = null;
+			final Iterator<MapTile> iterator = mPending.keySet().iterator();
+			while (iterator.hasNext()) {
+				final MapTile tile = iterator.next();
+				if (!mWorking.containsKey(tile)) {
+					result = tile;
+				}
+			}
+			if (result != null) {
+				mWorking.put(result, mPending.get(result));
+			}
+			return result != null ? mPending.get(result) : null;
+		}
+
+		synchronized void remove(final MapTileRequestState pState) {
+			mPending.remove(pState.getMapTile());
+			mWorking.remove(pState.getMapTile());
+		}
+	}
+
+	public static void main(final String[] pArgs) {
+		for (final int pendingSize : new int[] {
+				TILE_FILESYSTEM_MAXIMUM_QUEUE_SIZE, 200, 1000 }) {
+			final MapTileRequestState[] requests = createRequests(pendingSize
+					+ OPERATIONS);
+
+			final double before = new Benchmark("LinkedHashMap queue, "
+					+ pendingSize + " pending", OPERATIONS) {
+				private LinkedHashMapQueue mQueue;
+
+				@Override
+				protected void setUp() {
+					mQueue = new LinkedHashMapQueue(pendingSize);
+					for (int i = 0; i < pendingSize; i++) {
+						mQueue.put(requests[i]);
+					}
+				}
+
+				@Override
+				protected long run() {
+					final ArrayDeque<MapTileRequestState> working = new ArrayDeque<MapTileRequestState>();
+					long sum = 0;
+					for (int i = 0; i < OPERATIONS; i++) {
+						mQueue.put(requests[pendingSize + i]);
+						final MapTileRequestState next = mQueue.poll();
+						sum += next.getMapTile().getX();
+						working.add(next);
+						if (working.size() > NUMBER_OF_TILE_FILESYSTEM_THREADS) {
+							mQueue.remove(working.poll());
+						}
+					}
+					return sum;
+				}
+			}.measure();
+
+			final double after = new Benchmark("MapTileRequestQueue, "
+					+ pendingSize + " pending", OPERATIONS) {
+				private MapTileRequestQueue mQueue;
+
+				@Override
+				protected void setUp() {
+					mQueue = new MapTileRequestQueue(pendingSize);
+					for (int i = 0; i < pendingSize; i++) {
+						mQueue.put(requests[i]);
+					}
+				}
+
+				@Override
+				protected long run() {
+					final ArrayDeque<MapTileRequestState> working = new ArrayDeque<MapTileRequestState>();
+					long sum = 0;
+					for (int i = 0; i < OPERATIONS; i++) {
+						mQueue.put(requests[pendingSize + i]);
+						final MapTileRequestState next = mQueue.poll();
+						sum += next.getMapTile().getX();
+						working.add(next);
+						if (working.size() > NUMBER_OF_TILE_FILESYSTEM_THREADS) {
+							mQueue.remove(working.poll());
+						}
+					}
+					return sum;
+				}
+			}.measure();
+
+			System.out.println(String.format("speedup %.1fx", before / after));
+		}
+	}
+
+	/**
+	 * @return requests for different tiles, spread over a few zoom levels
+	 */
+	private static MapTileRequestState[] createRequests(final int pCount) {
+		final MapTileRequestState[] requests = new MapTileRequestState[pCount];
+		for (int i = 0; i < pCount; i++) {
+			final int zoom = 10 + i % 8;
+			final MapTile tile = new MapTile(zoom, (i / 8) % (1 << zoom), i
+					/ 8 / (1 << zoom));
+			requests[i] = new MapTileRequestState(tile, NO_PROVIDERS, null);
+		}
+		return requests;
+	}
+}